@@ -30,6 +30,7 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.components.ApplicationComponent
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.io.FileUtil
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownLexParserManager
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettingsListener
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownNonRoamingGlobalSettings
@@ -143,6 +144,8 @@ class MultiMarkdownPlugin : ApplicationComponent {
                 }
 
             }
+
+            prewarmProcessors()
         }
 
         MultiMarkdownGlobalSettings.getInstance().addListener(globalSettingsListener as MultiMarkdownGlobalSettingsListener)
@@ -248,7 +251,14 @@ class MultiMarkdownPlugin : ApplicationComponent {
         }
 
     override fun initComponent() {
-        // empty
+        prewarmProcessors()
+    }
+
+    // pay for pegdown parser construction in the background instead of on the first keystroke
+    protected fun prewarmProcessors() {
+        ApplicationManager.getApplication().executeOnPooledThread(Runnable {
+            MultiMarkdownLexParserManager.prewarmProcessors()
+        })
     }
 
     override fun disposeComponent() {
@@ -29,6 +29,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootAdapter;
 import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.FileStatusManager;
 import com.intellij.openapi.vcs.ProjectLevelVcsManager;
@@ -43,6 +44,7 @@ import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusConnection;
 import com.vladsch.idea.multimarkdown.psi.MultiMarkdownFile;
 import com.vladsch.idea.multimarkdown.psi.MultiMarkdownNamedElement;
+import com.vladsch.idea.multimarkdown.psi.impl.MultiMarkdownResolveCache;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettingsListener;
 import com.vladsch.idea.multimarkdown.util.*;
@@ -54,6 +56,7 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualFileListener, LinkResolver.ProjectResolver {
     private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownProjectComponent.class);
@@ -65,6 +68,10 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
     private ConcurrentHashMap<String, Object> gitHubRepos = null;
 
     private Project project;
+    private final LinkTargetIndex linkTargetIndex;
+    private final AtomicLong linkTargetModificationCount = new AtomicLong();
+    private final ConcurrentHashMap<VirtualFile, Boolean> linkTargetsLeaving = new ConcurrentHashMap<VirtualFile, Boolean>();
+    private final MultiMarkdownResolveCache resolveCache = new MultiMarkdownResolveCache();
     protected MultiMarkdownGlobalSettingsListener globalSettingsListener;
     protected int refactoringRenameFlags = MultiMarkdownNamedElement.RENAME_NO_FLAGS;
 
@@ -379,10 +386,13 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
 
     public MultiMarkdownProjectComponent(final Project project) {
         this.project = project;
+        this.linkTargetIndex = new LinkTargetIndex(project);
 
         // Listen to settings changes
         MultiMarkdownGlobalSettings.getInstance().addListener(globalSettingsListener = new MultiMarkdownGlobalSettingsListener() {
             public void handleSettingsChanged(@NotNull final MultiMarkdownGlobalSettings newSettings) {
+                // wiki and GitHub link options change what links resolve to
+                linkTargetModificationCount.incrementAndGet();
                 reparseMarkdown(true);
             }
         });
@@ -436,6 +446,24 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
         return project;
     }
 
+    @NotNull
+    public LinkTargetIndex getLinkTargetIndex() {
+        return linkTargetIndex;
+    }
+
+    /**
+     * @return count of changes to the paths of project files, to the project's roots or to the settings, link resolution
+     * depends only on these
+     */
+    public long getLinkTargetModificationCount() {
+        return linkTargetModificationCount.get();
+    }
+
+    @NotNull
+    public MultiMarkdownResolveCache getResolveCache() {
+        return resolveCache;
+    }
+
     public void projectOpened() {
         VirtualFileManager.getInstance().addVirtualFileListener(this);
         boolean initialized = project.isInitialized();
@@ -445,6 +473,8 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
         messageBus.connect().subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootAdapter() {
             public void rootsChanged(ModuleRootEvent event) {
                 if (project.isDisposed()) return;
+                linkTargetIndex.invalidate();
+                linkTargetModificationCount.incrementAndGet();
                 reparseMarkdown();
             }
         });
@@ -453,6 +483,7 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
             @Override
             public void directoryMappingChanged() {
                 gitHubRepos = null;
+                linkTargetModificationCount.incrementAndGet();
             }
         });
 
@@ -460,12 +491,19 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
             @Override
             public void directoryMappingChanged() {
                 gitHubRepos = null;
+                linkTargetModificationCount.incrementAndGet();
             }
         });
     }
 
     public void projectClosed() {
         VirtualFileManager.getInstance().removeVirtualFileListener(this);
+
+        // cached matchers hold on to link refs of this project's files
+        GitHubLinkMatcher.clearCache(this);
+
+        logger.info("Link resolve cache for " + project.getName() + ": " + resolveCache);
+        resolveCache.clear();
     }
 
     @NonNls
@@ -492,6 +530,10 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
     // TODO: detect extension change in a file and attach our editors if possible
     @Override
     public void propertyChanged(@NotNull VirtualFilePropertyEvent event) {
+        if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+            linkTargetIndex.fileRenamed(event.getFile(), (String) event.getOldValue());
+            if (isInContent(event.getFile())) linkTargetModificationCount.incrementAndGet();
+        }
         updateHighlighters();
     }
 
@@ -502,21 +544,32 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
 
     @Override
     public void fileCreated(@NotNull VirtualFileEvent event) {
+        linkTargetIndex.fileCreated(event.getFile());
+        if (isInContent(event.getFile())) linkTargetModificationCount.incrementAndGet();
         updateHighlighters();
     }
 
     @Override
     public void fileDeleted(@NotNull VirtualFileEvent event) {
+        linkTargetIndex.fileDeleted(event.getFile());
+        // the file is no longer valid, membership was taken in beforeFileDeletion
+        if (linkTargetsLeaving.remove(event.getFile()) != null) linkTargetModificationCount.incrementAndGet();
         updateHighlighters();
     }
 
     @Override
     public void fileMoved(@NotNull VirtualFileMoveEvent event) {
+        linkTargetIndex.fileMoved(event.getFile());
+        // moving into or out of the project's content both change what links resolve to
+        boolean wasInContent = linkTargetsLeaving.remove(event.getFile()) != null;
+        if (wasInContent || isInContent(event.getFile())) linkTargetModificationCount.incrementAndGet();
         updateHighlighters();
     }
 
     @Override
     public void fileCopied(@NotNull VirtualFileCopyEvent event) {
+        linkTargetIndex.fileCreated(event.getFile());
+        if (isInContent(event.getFile())) linkTargetModificationCount.incrementAndGet();
         updateHighlighters();
     }
 
@@ -537,11 +590,16 @@ public class MultiMarkdownProjectComponent implements ProjectComponent, VirtualF
 
     @Override
     public void beforeFileDeletion(@NotNull VirtualFileEvent event) {
-        //int tmp = 0;
+        if (isInContent(event.getFile())) linkTargetsLeaving.put(event.getFile(), Boolean.TRUE);
     }
 
     @Override
     public void beforeFileMovement(@NotNull VirtualFileMoveEvent event) {
-        //int tmp = 0;
+        if (isInContent(event.getFile())) linkTargetsLeaving.put(event.getFile(), Boolean.TRUE);
+    }
+
+    // VFS events arrive for every project and for excluded output, only this project's content can be a link target
+    protected boolean isInContent(@NotNull VirtualFile file) {
+        return !project.isDisposed() && file.isValid() && ProjectRootManager.getInstance(project).getFileIndex().isInContent(file);
     }
 }
@@ -23,13 +23,18 @@ package com.vladsch.idea.multimarkdown.annotator;
 
 import com.intellij.codeInsight.intention.impl.BaseIntentionAction;
 import com.intellij.lang.annotation.AnnotationHolder;
-import com.intellij.lang.annotation.Annotator;
+import com.intellij.lang.annotation.ExternalAnnotator;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiNamedElement;
 import com.intellij.psi.PsiReference;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.vladsch.idea.multimarkdown.MultiMarkdownBundle;
 import com.vladsch.idea.multimarkdown.MultiMarkdownPlugin;
 import com.vladsch.idea.multimarkdown.psi.*;
@@ -38,35 +43,177 @@ import com.vladsch.idea.multimarkdown.psi.impl.MultiMarkdownReferenceWikiLinkRef
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 import com.vladsch.idea.multimarkdown.util.*;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
+import java.util.*;
 
 import static com.vladsch.idea.multimarkdown.annotator.AnnotationState.*;
 import static com.vladsch.idea.multimarkdown.psi.MultiMarkdownNamedElement.*;
 import static com.vladsch.idea.multimarkdown.util.GitHubLinkInspector.*;
 
-//public class MultiMarkdownAnnotator extends ExternalAnnotator<String, Set<MultiMarkdownAnnotator.HighlightableToken>> {
-public class MultiMarkdownAnnotator implements Annotator {
+/**
+ * Validates links of a file. Link refs are collected in the highlighting pass, resolved and inspected together on a
+ * background thread and their annotations are applied once all are done, so highlighting does not wait on link
+ * resolution.
+ * <p/>
+ * Links are resolved a few at a time in separate read actions so that edits do not wait for all the links of the file,
+ * and the run is abandoned as soon as the file changes.
+ */
+public class MultiMarkdownAnnotator extends ExternalAnnotator<MultiMarkdownAnnotator.FileLinks, MultiMarkdownAnnotator.FileLinkMatches> {
     private static final Logger LOGGER = Logger.getInstance(MultiMarkdownAnnotator.class);
 
-    @SuppressWarnings("ConstantIfStatement,StatementWithEmptyBody")
+    public static final int LINKS_PER_READ_ACTION = 16;
+
+    // wiki link refs of a file and the distinct links to resolve for them, including wiki link texts for the swap check
+    public static class FileLinks {
+        protected final PsiFile file;
+        protected final long modificationStamp;
+        protected final GitHubLinkResolver resolver;
+        protected final IdentityHashMap<MultiMarkdownLinkRefElement, LinkRef> elementLinkRefs = new IdentityHashMap<MultiMarkdownLinkRefElement, LinkRef>();
+        protected final LinkedHashMap<String, LinkRef> linkRefs = new LinkedHashMap<String, LinkRef>();
+
+        public FileLinks(@NotNull PsiFile file, @NotNull GitHubLinkResolver resolver) {
+            this.file = file;
+            this.modificationStamp = file.getModificationStamp();
+            this.resolver = resolver;
+        }
+
+        public boolean isChanged() {
+            return !file.isValid() || file.getModificationStamp() != modificationStamp;
+        }
+    }
+
+    // matches of the links by link key and inspection results of each link ref element
+    public static class FileLinkMatches {
+        protected final GitHubLinkResolver resolver;
+        protected final HashMap<String, LinkResolver.LinkMatches> linkMatches = new HashMap<String, LinkResolver.LinkMatches>();
+        protected final IdentityHashMap<MultiMarkdownLinkRefElement, List<InspectionResult>> inspectionResults = new IdentityHashMap<MultiMarkdownLinkRefElement, List<InspectionResult>>();
+
+        public FileLinkMatches(@NotNull GitHubLinkResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        // used on the event thread, links that were not collected with the file's links are treated as not matched
+        @NotNull
+        public LinkResolver.LinkMatches getLinkMatches(@NotNull LinkRef linkRef) {
+            LinkResolver.LinkMatches matches = linkMatches.get(getLinkMatchesKey(linkRef));
+            return matches != null ? matches : new LinkResolver.LinkMatches(linkRef, Collections.<PathInfo>emptyList(), Collections.<PathInfo>emptyList());
+        }
+
+        @NotNull
+        public List<InspectionResult> getInspectionResults(@NotNull MultiMarkdownLinkRefElement element) {
+            List<InspectionResult> results = inspectionResults.get(element);
+            return results != null ? results : Collections.<InspectionResult>emptyList();
+        }
+    }
+
+    @NotNull
+    protected static String getLinkMatchesKey(@NotNull LinkRef linkRef) {
+        return linkRef.getClass().getName() + "|" + linkRef.getFilePathWithAnchor();
+    }
+
+    @Nullable
     @Override
-    public void annotate(@NotNull final PsiElement element, @NotNull AnnotationHolder holder) {
-        //noinspection StatementWithEmptyBody
-        AnnotationState state = new AnnotationState(holder);
+    public FileLinks collectInformation(@NotNull PsiFile file) {
+        if (file.getVirtualFile() == null) return null;
+
+        FileLinks fileLinks = null;
+        for (MultiMarkdownWikiLink wikiLink : PsiTreeUtil.findChildrenOfType(file, MultiMarkdownWikiLink.class)) {
+            PsiElement linkRefElement = MultiMarkdownPsiImplUtil.findChildByType(wikiLink, MultiMarkdownPsiImplUtil.WIKI_LINK_ELEMENT.linkRefType);
+            if (!(linkRefElement instanceof MultiMarkdownLinkRefElement)) continue;
+
+            LinkRef linkRef = MultiMarkdownPsiImplUtil.getLinkRef(MultiMarkdownPsiImplUtil.WIKI_LINK_ELEMENT, linkRefElement);
+            if (linkRef == null || linkRef.getFilePathWithAnchor().trim().isEmpty()) continue;
+
+            if (fileLinks == null) fileLinks = new FileLinks(file, new GitHubLinkResolver(file));
+            fileLinks.elementLinkRefs.put((MultiMarkdownLinkRefElement) linkRefElement, linkRef);
+            fileLinks.linkRefs.put(getLinkMatchesKey(linkRef), linkRef);
+
+            PsiElement textElement = MultiMarkdownPsiImplUtil.findChildByType(wikiLink, MultiMarkdownPsiImplUtil.WIKI_LINK_ELEMENT.textType);
+            String wikiPageTextName = textElement instanceof PsiNamedElement ? ((PsiNamedElement) textElement).getName() : null;
+            if (wikiPageTextName != null && !wikiPageTextName.trim().isEmpty()) {
+                LinkRef textLinkRef = LinkRef.parseWikiLinkRef(linkRef.getContainingFile(), wikiPageTextName, null);
+                fileLinks.linkRefs.put(getLinkMatchesKey(textLinkRef), textLinkRef);
+            }
+        }
+        return fileLinks;
+    }
+
+    @Nullable
+    @Override
+    public FileLinkMatches doAnnotate(final FileLinks fileLinks) {
+        // resolving needs the indices but not the event thread
+        final FileLinkMatches fileLinkMatches = new FileLinkMatches(fileLinks.resolver);
+        final Project project = fileLinks.file.getProject();
+        Application application = ApplicationManager.getApplication();
+        ArrayList<LinkRef> linkRefs = new ArrayList<LinkRef>(fileLinks.linkRefs.values());
+
+        for (int i = 0; i < linkRefs.size(); i += LINKS_PER_READ_ACTION) {
+            ProgressManager.checkCanceled();
+
+            final List<LinkRef> batch = linkRefs.subList(i, Math.min(i + LINKS_PER_READ_ACTION, linkRefs.size()));
+            boolean resolved = application.runReadAction(new Computable<Boolean>() {
+                @Override
+                public Boolean compute() {
+                    if (fileLinks.isChanged()) return false;
+
+                    for (LinkResolver.LinkMatches linkMatches : fileLinks.resolver.multiResolveAll(batch, LinkResolver.ANY)) {
+                        fileLinkMatches.linkMatches.put(getLinkMatchesKey(linkMatches.getLinkRef()), linkMatches);
+                    }
+                    return true;
+                }
+            });
 
-        //noinspection ConstantConditions, StatementWithEmptyBody
-        if (false) {
-        } else if (element instanceof MultiMarkdownWikiLink) {
-        } else if (element instanceof MultiMarkdownWikiLinkText) {
-        } else if (element instanceof MultiMarkdownWikiLinkRef) {
+            if (!resolved) return null;
+        }
+
+        // same target as annotateLinkRef, each element gets its own results since handled ones are marked
+        for (final Map.Entry<MultiMarkdownLinkRefElement, LinkRef> entry : fileLinks.elementLinkRefs.entrySet()) {
+            ProgressManager.checkCanceled();
+
+            final PathInfo targetInfo = getTargetInfo(fileLinkMatches.getLinkMatches(entry.getValue()));
+            if (!(targetInfo instanceof FileRef)) continue;
+
+            boolean inspected = application.runReadAction(new Computable<Boolean>() {
+                @Override
+                public Boolean compute() {
+                    if (fileLinks.isChanged()) return false;
+
+                    ProjectFileRef targetRef = targetInfo.projectFileRef(project);
+                    if (targetRef != null) {
+                        fileLinkMatches.inspectionResults.put(entry.getKey(), fileLinks.resolver.inspect(entry.getValue(), targetRef, null));
+                    }
+                    return true;
+                }
+            });
+
+            if (!inspected) return null;
+        }
+        return fileLinkMatches;
+    }
+
+    @Override
+    public void apply(@NotNull PsiFile file, FileLinkMatches fileLinkMatches, @NotNull AnnotationHolder holder) {
+        if (fileLinkMatches == null) return;
+
+        for (MultiMarkdownWikiLinkRef element : PsiTreeUtil.findChildrenOfType(file, MultiMarkdownWikiLinkRef.class)) {
+            if (!(element.getParent() instanceof MultiMarkdownWikiLink)) continue;
+
+            AnnotationState state = new AnnotationState(holder);
             // TODO: implement inspections and move these annotation to info type inspections
-            checkWikiLinkSwapRefTitle((MultiMarkdownWikiLink) element.getParent(), state);
-            annotateLinkRef((MultiMarkdownLinkRefElement) element, state);
+            checkWikiLinkSwapRefTitle((MultiMarkdownWikiLink) element.getParent(), state, fileLinkMatches);
+            annotateLinkRef((MultiMarkdownLinkRefElement) element, state, fileLinkMatches);
         }
     }
 
-    public void annotateLinkRef(@NotNull MultiMarkdownLinkRefElement element, @NotNull AnnotationState state) {
+    @Nullable
+    protected static PathInfo getTargetInfo(@NotNull LinkResolver.LinkMatches linkMatches) {
+        List<PathInfo> targetRefs = linkMatches.getMatches();
+        List<PathInfo> looseTargetRefs = linkMatches.getLooseMatches();
+        return targetRefs.size() > 0 ? targetRefs.get(0) : looseTargetRefs.size() > 0 ? looseTargetRefs.get(0) : null;
+    }
+
+    public void annotateLinkRef(@NotNull MultiMarkdownLinkRefElement element, @NotNull AnnotationState state, @NotNull FileLinkMatches fileLinkMatches) {
         MultiMarkdownPsiImplUtil.LinkRefElementTypes elementTypes = MultiMarkdownPsiImplUtil.getNamedElementTypes(element);
 
         if (elementTypes == null || !(element.getParent() instanceof MultiMarkdownLinkElement)
@@ -76,7 +223,7 @@ public class MultiMarkdownAnnotator implements Annotator {
 
         if (linkRefInfo == null || linkRefInfo.getFilePathWithAnchor().isEmpty() || linkRefInfo instanceof WikiLinkRef && linkRefInfo.getFilePathWithAnchor().trim().isEmpty()) return;
 
-        GitHubLinkResolver resolver = new GitHubLinkResolver(element);
+        GitHubLinkResolver resolver = fileLinkMatches.resolver;
         Project project = element.getProject();
         GitHubVcsRoot gitHubVcsRoot = resolver.getProjectResolver().getVcsRoot(linkRefInfo.getContainingFile());
 
@@ -86,8 +233,9 @@ public class MultiMarkdownAnnotator implements Annotator {
         }
 
         //noinspection StatementWithEmptyBody
-        final List<PathInfo> looseTargetRefs = resolver.multiResolve(linkRefInfo, LinkResolver.ANY | LinkResolver.LOOSE_MATCH, null);
-        final List<PathInfo> targetRefs = resolver.multiResolve(linkRefInfo, LinkResolver.ANY, looseTargetRefs);
+        LinkResolver.LinkMatches linkMatches = fileLinkMatches.getLinkMatches(linkRefInfo);
+        final List<PathInfo> looseTargetRefs = linkMatches.getLooseMatches();
+        final List<PathInfo> targetRefs = linkMatches.getMatches();
         PathInfo resolvedTargetInfo = targetRefs.size() > 0 ? targetRefs.get(0) : null;
         PathInfo targetInfo = resolvedTargetInfo != null ? resolvedTargetInfo : looseTargetRefs.size() > 0 ? looseTargetRefs.get(0) : null;
         PsiElement parentElement = element.getParent();
@@ -117,7 +265,7 @@ public class MultiMarkdownAnnotator implements Annotator {
                 state.unresolved = true;
             }
 
-            List<InspectionResult> inspectionResults = resolver.inspect(linkRefInfo, targetRef, null);
+            List<InspectionResult> inspectionResults = fileLinkMatches.getInspectionResults(element);
 
             for (InspectionResult reason : inspectionResults) {
                 if (reason.getHandled()) continue;
@@ -385,7 +533,7 @@ public class MultiMarkdownAnnotator implements Annotator {
         }
     }
 
-    protected void checkWikiLinkSwapRefTitle(@NotNull MultiMarkdownWikiLink element, @NotNull AnnotationState state) {
+    protected void checkWikiLinkSwapRefTitle(@NotNull MultiMarkdownWikiLink element, @NotNull AnnotationState state, @NotNull FileLinkMatches fileLinkMatches) {
         // see if need to swap link ref and link text
         MultiMarkdownPsiImplUtil.LinkRefElementTypes elementTypes = MultiMarkdownPsiImplUtil.getNamedElementTypes(element);
 
@@ -409,9 +557,9 @@ public class MultiMarkdownAnnotator implements Annotator {
                 } else {
                     Project project = element.getProject();
                     ProjectFileRef containingFile = new ProjectFileRef(element.getContainingFile());
-                    GitHubLinkResolver resolver = new GitHubLinkResolver(element.getContainingFile());
+                    GitHubLinkResolver resolver = fileLinkMatches.resolver;
                     LinkRef linkRefInfo = LinkRef.parseWikiLinkRef(containingFile, wikiPageTextName, null);
-                    List<PathInfo> targetRefs = resolver.multiResolve(linkRefInfo, LinkResolver.ANY, null);
+                    List<PathInfo> targetRefs = fileLinkMatches.getLinkMatches(linkRefInfo).getMatches();
                     PathInfo targetInfo = targetRefs.size() > 0 ? targetRefs.get(0) : null;
 
                     if (targetRefs.size() > 0 && targetInfo != null) {
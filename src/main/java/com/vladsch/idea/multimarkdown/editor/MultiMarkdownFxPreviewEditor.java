@@ -50,6 +50,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.vladsch.idea.multimarkdown.MultiMarkdownBundle;
 import com.vladsch.idea.multimarkdown.MultiMarkdownPlugin;
 import com.vladsch.idea.multimarkdown.MultiMarkdownProjectComponent;
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownBackgroundParser;
 import com.vladsch.idea.multimarkdown.parser.MultiMarkdownLexParserManager;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettingsListener;
@@ -651,26 +652,43 @@ public class MultiMarkdownFxPreviewEditor extends UserDataHolderBase implements
         if (!isEditorTabVisible)
             return;
 
+        if (!isActive && !isMyTabSelected()) {
+            // not showing, selectNotify() updates the preview when it is
+            previewIsObsolete = true;
+            if (fullKit) {
+                needStyleSheetUpdate = true;
+            }
+            return;
+        }
+
         updateDelayTimer = new Timer();
         updateDelayTimer.schedule(new TimerTask() {
             @Override
             public void run() {
                 if (project.isDisposed()) return;
 
-                ApplicationManager.getApplication().invokeLater(new Runnable() {
+                // parse off the EDT, the update then gets the cached result
+                MultiMarkdownBackgroundParser.queue(document, MultiMarkdownGlobalSettings.getInstance().getExtensionsValue(), getParsingTimeout(), new Runnable() {
                     @Override
                     public void run() {
                         if (project.isDisposed()) return;
 
-                        previewIsObsolete = true;
+                        ApplicationManager.getApplication().invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (project.isDisposed()) return;
 
-                        if (fullKit) {
-                            needStyleSheetUpdate = true;
-                            //processor.remove();     // make it re-initialize when accessed
-                        }
-                        updateHtmlContent(isActive || isMyTabSelected());
+                                previewIsObsolete = true;
+
+                                if (fullKit) {
+                                    needStyleSheetUpdate = true;
+                                    //processor.remove();     // make it re-initialize when accessed
+                                }
+                                updateHtmlContent(isActive || isMyTabSelected());
+                            }
+                        }, ModalityState.any());
                     }
-                }, ModalityState.any());
+                });
             }
         }, getUpdateDelay());
     }
@@ -760,7 +778,7 @@ public class MultiMarkdownFxPreviewEditor extends UserDataHolderBase implements
 
         if (previewIsObsolete && isEditorTabVisible && (isActive || force)) {
             try {
-                final RootNode rootNode = MultiMarkdownLexParserManager.parseMarkdownRoot(document.getCharsSequence(), MultiMarkdownGlobalSettings.getInstance().getExtensionsValue(), getParsingTimeout());
+                final RootNode rootNode = MultiMarkdownLexParserManager.parseMarkdownRoot(document, MultiMarkdownGlobalSettings.getInstance().getExtensionsValue(), getParsingTimeout());
                 if (isRawHtml) {
                     final String htmlTxt = isShowModified() ? makeHtmlPage(markdownToHtml(true, rootNode)) : markdownToHtml(false, rootNode);
                     updateRawHtmlText(htmlTxt);
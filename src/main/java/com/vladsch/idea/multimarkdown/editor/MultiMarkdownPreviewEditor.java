@@ -49,6 +49,7 @@ import com.intellij.ui.components.JBScrollPane;
 import com.vladsch.idea.multimarkdown.MultiMarkdownBundle;
 import com.vladsch.idea.multimarkdown.MultiMarkdownPlugin;
 import com.vladsch.idea.multimarkdown.MultiMarkdownProjectComponent;
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownBackgroundParser;
 import com.vladsch.idea.multimarkdown.parser.MultiMarkdownLexParserManager;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettingsListener;
@@ -129,6 +130,12 @@ public class MultiMarkdownPreviewEditor extends UserDataHolderBase implements Fi
         return MultiMarkdownGlobalSettings.getInstance().parsingTimeout.getValue();
     }
 
+    // Swing preview drops task list items and wraps anchor links
+    public static int getPegdownExtensions() {
+        int options = MultiMarkdownGlobalSettings.getInstance().getExtensionsValue();
+        return (options & ~Extensions.TASKLISTITEMS) | ((options & Extensions.EXTANCHORLINKS) != 0 ? Extensions.EXTANCHORLINKS_WRAP : 0);
+    }
+
     public static int getUpdateDelay() {
         return MultiMarkdownGlobalSettings.getInstance().updateDelay.getValue();
     }
@@ -435,27 +442,44 @@ public class MultiMarkdownPreviewEditor extends UserDataHolderBase implements Fi
         if (!isEditorTabVisible)
             return;
 
+        if (!isActive && !isMyTabSelected()) {
+            // not showing, selectNotify() updates the preview when it is
+            previewIsObsolete = true;
+            if (fullKit) {
+                setStyleSheet();
+            }
+            return;
+        }
+
         updateDelayTimer = new Timer();
         updateDelayTimer.schedule(new TimerTask() {
             @Override
             public void run() {
                 if (project.isDisposed()) return;
 
-                ApplicationManager.getApplication().invokeLater(new Runnable() {
+                // parse off the EDT, the update then gets the cached result
+                MultiMarkdownBackgroundParser.queue(document, getPegdownExtensions(), getParsingTimeout(), new Runnable() {
                     @Override
                     public void run() {
                         if (project.isDisposed()) return;
 
-                        previewIsObsolete = true;
+                        ApplicationManager.getApplication().invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (project.isDisposed()) return;
 
-                        if (fullKit) {
-                            setStyleSheet();
-                            //processor.remove();     // make it re-initialize when accessed
-                        }
+                                previewIsObsolete = true;
+
+                                if (fullKit) {
+                                    setStyleSheet();
+                                    //processor.remove();     // make it re-initialize when accessed
+                                }
 
-                        updateHtmlContent(isActive || isMyTabSelected());
+                                updateHtmlContent(isActive || isMyTabSelected());
+                            }
+                        }, ModalityState.any());
                     }
-                }, ModalityState.any());
+                });
             }
         }, getUpdateDelay());
     }
@@ -576,9 +600,7 @@ public class MultiMarkdownPreviewEditor extends UserDataHolderBase implements Fi
 
         if (previewIsObsolete && isEditorTabVisible && (isActive || force)) {
             try {
-                int options = MultiMarkdownGlobalSettings.getInstance().getExtensionsValue();
-                int pegdownExtensions = (options & ~Extensions.TASKLISTITEMS) | ((options & Extensions.EXTANCHORLINKS) != 0 ? Extensions.EXTANCHORLINKS_WRAP : 0);
-                RootNode rootNode = MultiMarkdownLexParserManager.parseMarkdownRoot(document.getCharsSequence(), pegdownExtensions, getParsingTimeout());
+                RootNode rootNode = MultiMarkdownLexParserManager.parseMarkdownRoot(document, getPegdownExtensions(), getParsingTimeout());
 
                 if (isRawHtml) {
                     updateRawHtmlText(isShowModified() ? makeHtmlPage(markdownToHtml(true, rootNode)) : markdownToHtml(false, rootNode));
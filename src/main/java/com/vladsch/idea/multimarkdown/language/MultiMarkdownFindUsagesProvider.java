@@ -20,13 +20,12 @@
  */
 package com.vladsch.idea.multimarkdown.language;
 
-import com.intellij.lang.cacheBuilder.DefaultWordsScanner;
 import com.intellij.lang.cacheBuilder.WordsScanner;
 import com.intellij.lang.findUsages.FindUsagesProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.TokenSet;
 import com.vladsch.idea.multimarkdown.MultiMarkdownBundle;
-import com.vladsch.idea.multimarkdown.parser.MultiMarkdownLexer;
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownIndexLexer;
 import com.vladsch.idea.multimarkdown.psi.MultiMarkdownNamedElement;
 import com.vladsch.idea.multimarkdown.psi.MultiMarkdownWikiLinkAnchor;
 import com.vladsch.idea.multimarkdown.psi.MultiMarkdownWikiLinkRef;
@@ -51,16 +50,13 @@ public class MultiMarkdownFindUsagesProvider implements FindUsagesProvider {
          * @param skipCodeContextTokenSet the set of token types which should not be considered as code context.
          */
 
-        DefaultWordsScanner wordsScanner = new DefaultWordsScanner(new MultiMarkdownLexer(),
+        // the streaming lexer gives the same words as MultiMarkdownLexer without parsing the file
+        MultiMarkdownWordsScanner wordsScanner = new MultiMarkdownWordsScanner(new MultiMarkdownIndexLexer(),
                 TokenSet.create(WIKI_LINK_REF, WIKI_LINK_TEXT),
                 TokenSet.create(COMMENT),
                 TokenSet.EMPTY,
-                TokenSet.EMPTY) {
-            @Override
-            public int getVersion() {
-                return super.getVersion() + 7;
-            }
-        };
+                TokenSet.EMPTY,
+                8);
 
         return wordsScanner;
     }
@@ -29,18 +29,20 @@ import com.intellij.lexer.Lexer;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.TokenSet;
 import com.intellij.util.Processor;
-import org.apache.log4j.Logger;
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownIndexLexer;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * The default implementation of a words scanner based on a custom language lexer.
+ * <p/>
+ * Words are taken from the tokens as the lexer produces them, so with a streaming lexer like
+ * {@link MultiMarkdownIndexLexer} a file is scanned in one pass without parsing it or holding its tokens, and the
+ * scanner's memory does not grow with the size of the file.
  *
  * @author max
  */
 
 public class MultiMarkdownWordsScanner extends VersionedWordsScanner {
-    private static final Logger logger = Logger.getLogger(MultiMarkdownWordsScanner.class);
-
     private final Lexer myLexer;
     private final TokenSet myIdentifierTokenSet;
     private final TokenSet myCommentTokenSet;
@@ -118,78 +120,54 @@ public class MultiMarkdownWordsScanner extends VersionedWordsScanner {
             boolean keepTokensWhole,
             boolean useSpaceBreaks
     ) {
+        if (keepTokensWhole) {
+            return processWord(processor, tokenText, from, to, kind, occurrence, mayHaveFileRefs);
+        }
+
         // This code seems strange but it is more effective as Character.isJavaIdentifier_xxx_ is quite costly operation due to unicode
         int index = from;
-        StringBuilder tokens = new StringBuilder(to - from + 100);
-        StringBuilder foreign = new StringBuilder(to - from + 100);
-        try {
-            if (keepTokensWhole) {
-                tokens.append('\'');
-                tokens.append(tokenText.subSequence(from, to));
-                tokens.append('\'');
-                tokens.append(' ');
-                occurrence.init(tokenText, from, to, kind);
-                if (!processor.process(occurrence)) return false;
-
-                if (mayHaveFileRefs) {
-                    foreign.append('\'');
-                    foreign.append(tokenText.subSequence(from, to));
-                    foreign.append('\'');
-                    foreign.append(' ');
-                    occurrence.init(tokenText, from, to, WordOccurrence.Kind.FOREIGN_LANGUAGE);
-                    if (!processor.process(occurrence)) return false;
-                }
-            } else {
+
 ScanWordsLoop:
-                while (true) {
-                    while (true) {
-                        if (index == to) break ScanWordsLoop;
-                        char c = tokenText.charAt(index);
-                        if ((useSpaceBreaks && c != ' ' && c != '\n' && c != '\t') || isAsciiIdentifierPart(c) || Character.isJavaIdentifierStart(c)) {
-                            break;
-                        }
-                        index++;
-                    }
-                    int wordStart = index;
-                    while (true) {
-                        index++;
-                        if (index == to) break;
-                        char c = tokenText.charAt(index);
-                        if (c == ' ' || c == '\n' || c == '\t') break;
-                        if (useSpaceBreaks || isAsciiIdentifierPart(c)) continue;
-                        if (!Character.isJavaIdentifierPart(c)) break;
-                    }
-                    int wordEnd = index;
-
-                    tokens.append('\'');
-                    tokens.append(tokenText.subSequence(wordStart, wordEnd));
-                    tokens.append('\'');
-                    tokens.append(' ');
-                    occurrence.init(tokenText, wordStart, wordEnd, kind);
-                    if (!processor.process(occurrence)) return false;
-
-                    if (mayHaveFileRefs) {
-                        foreign.append('\'');
-                        foreign.append(tokenText.subSequence(wordStart, wordEnd));
-                        foreign.append('\'');
-                        foreign.append(' ');
-                        occurrence.init(tokenText, wordStart, wordEnd, WordOccurrence.Kind.FOREIGN_LANGUAGE);
-                        if (!processor.process(occurrence)) return false;
-                    }
+        while (true) {
+            while (true) {
+                if (index == to) break ScanWordsLoop;
+                char c = tokenText.charAt(index);
+                if ((useSpaceBreaks && c != ' ' && c != '\n' && c != '\t') || isAsciiIdentifierPart(c) || Character.isJavaIdentifierStart(c)) {
+                    break;
                 }
+                index++;
             }
-            return true;
-        } finally {
-            if (tokens.length() > 0) {
-                logger.info(kind.toString() + ": " + tokens.subSequence(0, Math.min(tokens.length(), 100)).toString());
-            } else {
-                logger.info(" no " + kind.toString() + ": " + "tokens in " + tokenText.subSequence(from, Math.min(to, from + 100)));
+            int wordStart = index;
+            while (true) {
+                index++;
+                if (index == to) break;
+                char c = tokenText.charAt(index);
+                if (c == ' ' || c == '\n' || c == '\t') break;
+                if (useSpaceBreaks || isAsciiIdentifierPart(c)) continue;
+                if (!Character.isJavaIdentifierPart(c)) break;
             }
 
-            if (foreign.length() > 0) {
-                logger.info(kind.toString() + ": " + tokens.subSequence(0, Math.min(foreign.length(), 100)).toString());
-            }
+            if (!processWord(processor, tokenText, wordStart, index, kind, occurrence, mayHaveFileRefs)) return false;
+        }
+        return true;
+    }
+
+    protected static boolean processWord(final Processor<WordOccurrence> processor,
+            final CharSequence text,
+            int start,
+            int end,
+            final WordOccurrence.Kind kind,
+            @NotNull WordOccurrence occurrence,
+            boolean mayHaveFileRefs
+    ) {
+        occurrence.init(text, start, end, kind);
+        if (!processor.process(occurrence)) return false;
+
+        if (mayHaveFileRefs) {
+            occurrence.init(text, start, end, WordOccurrence.Kind.FOREIGN_LANGUAGE);
+            if (!processor.process(occurrence)) return false;
         }
+        return true;
     }
 
     private static boolean isAsciiIdentifierPart(char c) {
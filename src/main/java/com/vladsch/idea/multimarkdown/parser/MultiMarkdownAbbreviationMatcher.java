@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Finds whole word abbreviations in text with an Aho-Corasick automaton, in one pass over the text regardless of
+ * the number of abbreviations.
+ * <p/>
+ * Matches are the same as those of the alternation regex of quoted abbreviations, each between word boundaries,
+ * that the lex parser used before: at each offset the earliest defined abbreviation that matches wins and the
+ * search continues after it.
+ * <p/>
+ * Matchers are immutable and cached by abbreviation list, so re-parsing a document reuses its matcher.
+ */
+public class MultiMarkdownAbbreviationMatcher {
+    public static final int CACHE_SIZE = 16;
+
+    protected static final int[] NO_MATCHES = new int[0];
+
+    protected static final LinkedHashMap<List<String>, MultiMarkdownAbbreviationMatcher> matcherCache = new LinkedHashMap<List<String>, MultiMarkdownAbbreviationMatcher>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, MultiMarkdownAbbreviationMatcher> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // trie nodes, transitions of each node are sorted by char for binary search
+    protected final char[][] nodeChars;
+    protected final int[][] nodeNext;
+    protected final int[] fail;
+    // pattern ending at node or -1, next node on the fail chain that ends a pattern or 0
+    protected final int[] nodePattern;
+    protected final int[] dictionaryLink;
+    protected final int[] patternLengths;
+
+    @NotNull
+    public static MultiMarkdownAbbreviationMatcher getMatcher(@NotNull List<String> abbreviations) {
+        synchronized (matcherCache) {
+            MultiMarkdownAbbreviationMatcher matcher = matcherCache.get(abbreviations);
+            if (matcher == null) {
+                ArrayList<String> key = new ArrayList<String>(abbreviations);
+                matcher = new MultiMarkdownAbbreviationMatcher(key);
+                matcherCache.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * @param abbreviations in order of priority, empty abbreviations never match
+     */
+    public MultiMarkdownAbbreviationMatcher(@NotNull List<String> abbreviations) {
+        ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+        ArrayList<Integer> patterns = new ArrayList<Integer>();
+        trie.add(new TreeMap<Character, Integer>());
+        patterns.add(-1);
+
+        patternLengths = new int[abbreviations.size()];
+        for (int i = 0; i < abbreviations.size(); i++) {
+            String abbreviation = abbreviations.get(i);
+            patternLengths[i] = abbreviation.length();
+            if (abbreviation.isEmpty()) continue;
+
+            int node = 0;
+            for (int j = 0; j < abbreviation.length(); j++) {
+                Integer next = trie.get(node).get(abbreviation.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    patterns.add(-1);
+                    trie.get(node).put(abbreviation.charAt(j), next);
+                }
+                node = next;
+            }
+
+            // a duplicate keeps the priority of its first definition
+            if (patterns.get(node) < 0) patterns.set(node, i);
+        }
+
+        int size = trie.size();
+        nodeChars = new char[size][];
+        nodeNext = new int[size][];
+        nodePattern = new int[size];
+        for (int node = 0; node < size; node++) {
+            TreeMap<Character, Integer> transitions = trie.get(node);
+            nodeChars[node] = new char[transitions.size()];
+            nodeNext[node] = new int[transitions.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> entry : transitions.entrySet()) {
+                nodeChars[node][j] = entry.getKey();
+                nodeNext[node][j++] = entry.getValue();
+            }
+            nodePattern[node] = patterns.get(node);
+        }
+
+        // breadth first so fail links of shorter prefixes are known
+        fail = new int[size];
+        dictionaryLink = new int[size];
+        int[] queue = new int[size];
+        int head = 0, tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int j = 0; j < nodeChars[node].length; j++) {
+                int child = nodeNext[node][j];
+                int childFail = node == 0 ? 0 : step(fail[node], nodeChars[node][j]);
+                fail[child] = childFail;
+                dictionaryLink[child] = nodePattern[childFail] >= 0 ? childFail : dictionaryLink[childFail];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    protected int next(int node, char c) {
+        int index = Arrays.binarySearch(nodeChars[node], c);
+        return index >= 0 ? nodeNext[node][index] : -1;
+    }
+
+    protected int step(int node, char c) {
+        int next;
+        while ((next = next(node, c)) < 0 && node != 0) node = fail[node];
+        return next < 0 ? 0 : next;
+    }
+
+    // same as \b in java.util.regex
+    protected static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    protected static boolean isWordBoundary(CharSequence text, int offset) {
+        boolean before = offset > 0 && isWordChar(text.charAt(offset - 1));
+        boolean after = offset < text.length() && isWordChar(text.charAt(offset));
+        return before != after;
+    }
+
+    /**
+     * @return non-overlapping matches in text packed as start, end pairs
+     */
+    @NotNull
+    public int[] findMatches(@NotNull CharSequence text) {
+        int length = text.length();
+        int[] best = null;
+        int node = 0;
+
+        for (int i = 0; i < length; i++) {
+            node = step(node, text.charAt(i));
+
+            for (int match = nodePattern[node] >= 0 ? node : dictionaryLink[node]; match != 0; match = dictionaryLink[match]) {
+                int pattern = nodePattern[match];
+                int start = i + 1 - patternLengths[pattern];
+
+                if (isWordBoundary(text, start) && isWordBoundary(text, i + 1)) {
+                    if (best == null) {
+                        best = new int[length];
+                        Arrays.fill(best, Integer.MAX_VALUE);
+                    }
+                    if (pattern < best[start]) best[start] = pattern;
+                }
+            }
+        }
+
+        if (best == null) return NO_MATCHES;
+
+        int[] matches = new int[8];
+        int count = 0;
+        for (int start = 0; start < length; start++) {
+            if (best[start] != Integer.MAX_VALUE) {
+                if (count + 2 > matches.length) matches = Arrays.copyOf(matches, matches.length * 2);
+                matches[count++] = start;
+                matches[count++] = start + patternLengths[best[start]];
+                start += patternLengths[best[start]] - 1;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+}
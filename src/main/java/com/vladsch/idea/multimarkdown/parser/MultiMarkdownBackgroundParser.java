@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses documents off the event dispatch thread so that the preview only has to pick up the cached result.
+ * <p/>
+ * Each request snapshots the document text with its modification stamp and runs under its own progress indicator.
+ * Queueing a newer request for the same document cancels the indicator of the previous one: a request still in
+ * the queue is dropped and a running one stops at the next checkpoint in the manager. Pegdown itself cannot be
+ * interrupted, so a running pegdown parse finishes or times out first.
+ */
+public class MultiMarkdownBackgroundParser {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownBackgroundParser.class);
+
+    protected static final WeakHashMap<Document, ProgressIndicator> pending = new WeakHashMap<Document, ProgressIndicator>();
+    protected static ExecutorService executor = null;
+
+    protected static final AtomicLong completed = new AtomicLong();
+    protected static final AtomicLong cancelled = new AtomicLong();
+
+    public static long getCompleted() { return completed.get(); }
+
+    public static long getCancelled() { return cancelled.get(); }
+
+    @NotNull
+    protected static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MultiMarkdown Background Parser");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Queue a parse of the document's current text, cancelling any queued or running parse of an older version.
+     *
+     * @param onParsed run on the parser thread once the text is parsed and cached, not run if the request was
+     *                 cancelled
+     */
+    public static void queue(@NotNull final Document document, @Nullable final Integer pegdownExtensions, @Nullable final Integer parsingTimeout, @NotNull final Runnable onParsed) {
+        final ProgressIndicator indicator = new EmptyProgressIndicator();
+
+        synchronized (pending) {
+            ProgressIndicator previous = pending.put(document, indicator);
+            if (previous != null) previous.cancel();
+        }
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!indicator.isCanceled()) {
+                        ProgressManager.getInstance().runProcess(new Runnable() {
+                            @Override
+                            public void run() {
+                                parse(document, pegdownExtensions, parsingTimeout);
+                            }
+                        }, indicator);
+                    }
+
+                    if (indicator.isCanceled()) {
+                        cancelled.incrementAndGet();
+                    } else {
+                        completed.incrementAndGet();
+                        onParsed.run();
+                    }
+                } catch (ProcessCanceledException ignored) {
+                    cancelled.incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.error("Background parse failed", e);
+                } finally {
+                    synchronized (pending) {
+                        if (pending.get(document) == indicator) pending.remove(document);
+                    }
+                }
+            }
+        });
+    }
+
+    protected static void parse(@NotNull final Document document, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
+        final String[] text = new String[1];
+        ApplicationManager.getApplication().runReadAction(new Runnable() {
+            @Override
+            public void run() {
+                text[0] = document.getText();
+            }
+        });
+
+        ProgressManager.checkCanceled();
+        MultiMarkdownLexParserManager.parseSnapshot(document, text[0], pegdownExtensions, parsingTimeout);
+    }
+}
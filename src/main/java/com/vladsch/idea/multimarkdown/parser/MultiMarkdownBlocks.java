@@ -0,0 +1,621 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.pegdown.Extensions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Top level block boundaries of a markdown document, found by a single linear scan without parsing.
+ * <p/>
+ * A boundary is the start of a line at column 0 that follows a blank line and cannot continue the preceding
+ * block: it is not inside a fenced code block or an open HTML block and is not a list item, block quote or
+ * definition continuation. A closed fence line that ends a paragraph is also a boundary. Parsing the text between
+ * two boundaries on its own gives the same tokens as parsing the whole document, which is what makes blocks usable
+ * as lexer restart points and units of re-parsing.
+ * <p/>
+ * Fenced code blocks are paired the way pegdown pairs them, fence lines in inline code spans and lazy lines of list
+ * items are text. Where the scan cannot tell if a fence opens a block, such as a fence over a setext underline or in
+ * an html block, both possibilities are followed and there is no boundary until they agree again.
+ * <p/>
+ * Abbreviation definitions affect the whole document and are flagged so callers can fall back to a full parse. So
+ * is text with too many fences the scan cannot tell apart to follow all of them.
+ */
+public class MultiMarkdownBlocks {
+    // ambiguous fences followed at the same time before the text is flagged as ambiguous
+    protected static final int MAX_SCAN_STATES = 16;
+
+    protected final int[] starts;
+    protected final int length;
+    protected final boolean hasAbbreviations;
+    protected final boolean isAmbiguous;
+
+    protected MultiMarkdownBlocks(int[] starts, int length, boolean hasAbbreviations, boolean isAmbiguous) {
+        this.starts = starts;
+        this.length = length;
+        this.hasAbbreviations = hasAbbreviations;
+        this.isAmbiguous = isAmbiguous;
+    }
+
+    public int getBlockCount() { return starts.length; }
+
+    public int getBlockStart(int index) { return starts[index]; }
+
+    public int getBlockEnd(int index) { return index + 1 < starts.length ? starts[index + 1] : length; }
+
+    public int getLength() { return length; }
+
+    public boolean hasAbbreviations() { return hasAbbreviations; }
+
+    /**
+     * @return true if blocks may not parse the same on their own as in the whole document
+     */
+    public boolean isAmbiguous() { return isAmbiguous; }
+
+    /**
+     * @return index of the block containing offset, offsets at or past the end belong to the last block
+     */
+    public int getBlockIndex(int offset) {
+        int index = Arrays.binarySearch(starts, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public boolean isBlockStart(int offset) {
+        return Arrays.binarySearch(starts, offset) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiMarkdownBlocks{blocks: " + starts.length + ", length: " + length + (hasAbbreviations ? ", abbreviations" : "") + (isAmbiguous ? ", ambiguous" : "") + "}";
+    }
+
+    /**
+     * State of the scan at a line, one for each way the fences before it can be paired
+     */
+    protected static class ScanState {
+        // end of the fenced code block or html block the line is in, 0 outside of them
+        int fenceEnd = 0;
+        int htmlEnd = 0;
+        // end of an inline code span that goes past the end of its line, the lines it takes are paragraph text
+        int codeEnd = 0;
+        boolean prevBlank = false;
+        boolean inDefinition = false;
+        // the last run of lines started with a list item or definition, indented lines after it continue it
+        boolean inList = false;
+        // the line follows a fenced code block or horizontal rule, it starts a block
+        boolean afterBlock = false;
+        // the line is a lazy continuation of a list item, block quote or definition
+        boolean lazy = false;
+        // the line is in an indented code block
+        boolean verbatim = false;
+
+        ScanState copy() {
+            ScanState state = new ScanState();
+            state.fenceEnd = fenceEnd;
+            state.htmlEnd = htmlEnd;
+            state.codeEnd = codeEnd;
+            state.prevBlank = prevBlank;
+            state.inDefinition = inDefinition;
+            state.inList = inList;
+            state.afterBlock = afterBlock;
+            state.lazy = lazy;
+            state.verbatim = verbatim;
+            return state;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ScanState)) return false;
+
+            ScanState state = (ScanState) o;
+            return fenceEnd == state.fenceEnd && htmlEnd == state.htmlEnd && codeEnd == state.codeEnd && prevBlank == state.prevBlank && inDefinition == state.inDefinition
+                    && inList == state.inList && afterBlock == state.afterBlock && lazy == state.lazy
+                    && verbatim == state.verbatim;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fenceEnd + htmlEnd;
+        }
+    }
+
+    /**
+     * Blocks of the text parsed with fenced code blocks
+     */
+    @NotNull
+    public static MultiMarkdownBlocks of(@NotNull CharSequence text) {
+        return of(text, Extensions.FENCED_CODE_BLOCKS);
+    }
+
+    @NotNull
+    public static MultiMarkdownBlocks of(@NotNull CharSequence text, int pegdownExtensions) {
+        int length = text.length();
+        int[] starts = new int[16];
+        int count = 0;
+        starts[count++] = 0;
+
+        boolean hasAbbreviations = false;
+        boolean isAmbiguous = false;
+        boolean fencedCode = (pegdownExtensions & Extensions.FENCED_CODE_BLOCKS) != 0;
+        boolean relaxedRules = (pegdownExtensions & Extensions.RELAXEDHRULES) != 0;
+        BlockEndFinder blockEndFinder = new BlockEndFinder(text);
+        // pegdown looks ahead to the closing fence to end a paragraph, even without fenced code blocks
+        int lookaheadEnd = 0;
+        ArrayList<ScanState> states = new ArrayList<ScanState>();
+        ArrayList<ScanState> forks = new ArrayList<ScanState>();
+        states.add(new ScanState());
+
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n') lineEnd++;
+            int nextLineStart = lineEnd < length ? lineEnd + 1 : length;
+
+            int indent = getIndent(text, lineStart, lineEnd);
+            int firstNonBlank = lineStart;
+            while (firstNonBlank < lineEnd && Character.isWhitespace(text.charAt(firstNonBlank))) firstNonBlank++;
+            boolean isBlank = firstNonBlank >= lineEnd;
+
+            char c = text.charAt(lineStart);
+            boolean isBoundary = !isBlank && lineStart >= lookaheadEnd && lineStart > 0;
+            boolean isBlockStart = indent == 0 && isBlockStart(text, lineStart, lineEnd);
+            int fenceEnd = -1;
+            // without relaxed rules pegdown needs a blank line after a horizontal rule
+            boolean isRule = indent < 4 && isHorizontalRule(text, firstNonBlank, lineEnd)
+                    && (relaxedRules || isBlankLine(text, nextLineStart));
+
+            // a line is a boundary only if it is one for every way the fences can be paired
+            for (ScanState state : states) {
+                if (state.fenceEnd > lineStart) {
+                    // inside fenced code, only the end of the block matters
+                    isBoundary = false;
+                    state.prevBlank = false;
+                    state.afterBlock = true;
+                    continue;
+                }
+
+                state.fenceEnd = 0;
+                if (state.htmlEnd <= lineStart) state.htmlEnd = 0;
+                if (state.codeEnd <= lineStart) state.codeEnd = 0;
+                if (isBlank) {
+                    state.prevBlank = true;
+                    state.afterBlock = false;
+                    continue;
+                }
+
+                boolean runStart = state.prevBlank || state.afterBlock || lineStart == 0 || state.verbatim && indent < 4;
+                state.afterBlock = false;
+                if (runStart) {
+                    // up to 3 spaces of indent don't change the block, more is code unless it continues a list item
+                    state.verbatim = indent >= 4 && !state.inList;
+                    if (indent < 4) {
+                        state.lazy = !isBlockStart(text, firstNonBlank, lineEnd);
+                        state.inList = state.lazy && text.charAt(firstNonBlank) != '>';
+                    } else {
+                        state.lazy = state.inList;
+                    }
+                } else if (indent == 0 && (c == '>' || c == ':')) {
+                    // a block quote or definition after a paragraph line takes the lines after it
+                    state.lazy = true;
+                }
+
+                boolean stateBoundary = isBlockStart && state.prevBlank && state.htmlEnd == 0 && !(state.inDefinition && isDefinition(text, nextLineStart, length));
+                if (stateBoundary) state.inDefinition = false;
+
+                if (isRule && (runStart || state.inList)) {
+                    // a horizontal rule also ends a list item
+                    isBoundary &= stateBoundary;
+                    state.lazy = false;
+                    state.inList = false;
+                    state.afterBlock = true;
+                    state.prevBlank = false;
+                    continue;
+                }
+
+                if (fenceEnd < 0) fenceEnd = c == '`' || c == '~' ? blockEndFinder.getFenceEnd(lineStart, lineEnd) : 0;
+                // a paragraph ends before a fence line that has a closing fence, the line starts a block
+                boolean endsParagraph = fenceEnd > 0 && !runStart && !state.lazy && state.htmlEnd == 0 && state.codeEnd == 0;
+
+                if (fenceEnd > 0 && !fencedCode) {
+                    // the fence is text, but a paragraph before it ends depending on text up to its closing fence
+                    if (!state.prevBlank && lineStart > 0) lookaheadEnd = Math.max(lookaheadEnd, fenceEnd);
+                    stateBoundary |= endsParagraph;
+                } else if (fenceEnd > 0) {
+                    // a fence line is text in a code span or after a list item, block quote or definition line it may
+                    // continue, otherwise pegdown tries headings, tables and definitions before fenced code. Html blocks
+                    // are only approximated, a fence in one may be a fence after all
+                    int blockBeforeFence = state.htmlEnd != 0 ? MAYBE : state.codeEnd != 0 || !runStart && state.lazy ? YES : getBlockBeforeFence(text, lineStart, lineEnd, nextLineStart);
+
+                    if (blockBeforeFence == NO) {
+                        isBoundary &= stateBoundary || endsParagraph;
+                        state.fenceEnd = fenceEnd;
+                        state.prevBlank = false;
+                        state.lazy = false;
+                        continue;
+                    }
+
+                    if (blockBeforeFence == MAYBE) {
+                        ScanState fork = state.copy();
+                        fork.fenceEnd = fenceEnd;
+                        fork.prevBlank = false;
+                        fork.lazy = false;
+                        forks.add(fork);
+                    }
+                }
+
+                if ((state.prevBlank || lineStart == 0) && indent == 0 && c == '<' && state.htmlEnd == 0) {
+                    String htmlClose = getHtmlClose(text, lineStart, lineEnd);
+                    if (htmlClose != null) state.htmlEnd = blockEndFinder.getHtmlEnd(htmlClose, lineStart);
+                }
+
+                if (state.htmlEnd == 0 && !state.verbatim && state.codeEnd <= lineEnd) {
+                    state.codeEnd = getCodeSpanEnd(text, Math.max(lineStart, state.codeEnd), lineEnd);
+                }
+
+                if (indent == 0 && c == ':') {
+                    state.inDefinition = true;
+                }
+
+                if (indent == 0 && c == '*' && lineStart + 1 < lineEnd && text.charAt(lineStart + 1) == '[' && indexOf(text, lineStart, lineEnd, "]:") > 0) {
+                    hasAbbreviations = true;
+                }
+
+                isBoundary &= stateBoundary;
+                state.prevBlank = false;
+            }
+
+            if (isBoundary) {
+                if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = lineStart;
+            }
+
+            if (!forks.isEmpty() || states.size() > 1) {
+                states.addAll(forks);
+                forks.clear();
+
+                // ways of pairing that ended up in the same state are followed as one
+                for (int i = states.size(); i-- > 1; ) {
+                    if (states.indexOf(states.get(i)) < i) states.remove(i);
+                }
+
+                if (states.size() > MAX_SCAN_STATES) {
+                    isAmbiguous = true;
+                    while (states.size() > MAX_SCAN_STATES) states.remove(states.size() - 1);
+                }
+            }
+
+            lineStart = nextLineStart;
+        }
+
+        return new MultiMarkdownBlocks(Arrays.copyOf(starts, count), length, hasAbbreviations, isAmbiguous);
+    }
+
+    /**
+     * Finds where pegdown closes fenced code and html blocks, a block that is never closed is not a block. The first
+     * closing line found by a search is remembered so that blocks that are never closed don't have the rest of the
+     * text searched again for each of them.
+     */
+    protected static class BlockEndFinder {
+        protected final CharSequence text;
+        // fence length or html close tag to {searched from, first closing line found or -1}
+        protected final HashMap<Object, int[]> searched = new HashMap<Object, int[]>();
+
+        public BlockEndFinder(CharSequence text) {
+            this.text = text;
+        }
+
+        /**
+         * @return end of the first line from lineStart on that has the html close tag, 0 if there is none
+         */
+        public int getHtmlEnd(@NotNull String htmlClose, int lineStart) {
+            int[] found = searched.get(htmlClose);
+            int close;
+
+            if (found != null && found[0] <= lineStart && (found[1] < 0 || found[1] >= lineStart)) {
+                close = found[1];
+            } else {
+                close = -1;
+                int length = text.length();
+                for (int start = lineStart; start < length; ) {
+                    int end = getLineEnd(text, start);
+                    if (indexOf(text, start, end, htmlClose) >= 0) {
+                        close = start;
+                        break;
+                    }
+                    start = end + 1;
+                }
+                searched.put(htmlClose, new int[] { lineStart, close });
+            }
+
+            if (close < 0) return 0;
+            int closeEnd = getLineEnd(text, close);
+            return closeEnd < text.length() ? closeEnd + 1 : closeEnd;
+        }
+
+        /**
+         * @return end of the line that closes the fenced code block opened on the line, 0 if the line does not open
+         * one. Pegdown needs at least one line of code and a closing fence of the same length, any other fence
+         * line is code.
+         */
+        public int getFenceEnd(int lineStart, int lineEnd) {
+            int fenceLength = getFenceLength(text, lineStart, lineEnd);
+            if (fenceLength == 0 || lineEnd >= text.length()) return 0;
+
+            int codeStart = lineEnd + 1;
+            int close = findFenceLine(fenceLength, codeStart);
+            if (close < 0 || close == codeStart) return 0;
+
+            int closeEnd = getLineEnd(text, close);
+            return closeEnd < text.length() ? closeEnd + 1 : closeEnd;
+        }
+
+        protected int findFenceLine(int fenceLength, int from) {
+            int[] found = searched.get(fenceLength);
+            if (found != null && found[0] <= from && (found[1] < 0 || found[1] >= from)) return found[1];
+
+            int fenceLine = -1;
+            int length = text.length();
+            for (int lineStart = from; lineStart < length; ) {
+                int lineEnd = getLineEnd(text, lineStart);
+                if (getFenceLength(text, lineStart, lineEnd) == fenceLength) {
+                    fenceLine = lineStart;
+                    break;
+                }
+                lineStart = lineEnd + 1;
+            }
+
+            searched.put(fenceLength, new int[] { from, fenceLine });
+            return fenceLine;
+        }
+    }
+
+    /**
+     * @return length of the run of backticks or tildes if the line is a code fence for pegdown, 0 otherwise: an
+     * unindented run of 3 or more, followed by text without backticks or tildes
+     */
+    protected static int getFenceLength(CharSequence text, int lineStart, int lineEnd) {
+        if (lineStart >= lineEnd) return 0;
+
+        char c = text.charAt(lineStart);
+        if (c != '`' && c != '~') return 0;
+
+        int run = countLeading(text, lineStart, lineEnd, c);
+        if (run < 3) return 0;
+
+        for (int i = lineStart + run; i < lineEnd; i++) {
+            char r = text.charAt(i);
+            if (r == '`' || r == '~') return 0;
+        }
+        return run;
+    }
+
+    protected static int getLineEnd(CharSequence text, int lineStart) {
+        int length = text.length();
+        int lineEnd = lineStart;
+        while (lineEnd < length && text.charAt(lineEnd) != '\n') lineEnd++;
+        return lineEnd;
+    }
+
+    protected static boolean isBlankLine(CharSequence text, int lineStart) {
+        int lineEnd = getLineEnd(text, lineStart);
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    protected static int countLeading(CharSequence text, int start, int end, char c) {
+        int count = 0;
+        while (start + count < end && text.charAt(start + count) == c) count++;
+        return count;
+    }
+
+    /**
+     * @return indent column of the line with tabs expanded to the next multiple of 4 the way pegdown does, when less
+     * than 4 it is also the number of leading spaces
+     */
+    protected static int getIndent(CharSequence text, int start, int end) {
+        int indent = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ' ') indent++;
+            else if (c == '\t') indent = (indent & ~3) + 4;
+            else break;
+        }
+        return indent;
+    }
+
+    protected static int indexOf(CharSequence text, int start, int end, String s) {
+        int sLength = s.length();
+        for (int i = start; i + sLength <= end; i++) {
+            int j = 0;
+            while (j < sLength && Character.toLowerCase(text.charAt(i + j)) == s.charAt(j)) j++;
+            if (j == sLength) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Lines that continue the preceding block after a blank line: list items, block quotes and definitions
+     */
+    protected static boolean isBlockStart(CharSequence text, int lineStart, int lineEnd) {
+        char c = text.charAt(lineStart);
+        char c1 = lineStart + 1 < lineEnd ? text.charAt(lineStart + 1) : '\n';
+
+        switch (c) {
+            case '>':
+            case ':':
+                return false;
+
+            case '*':
+            case '+':
+            case '-':
+                return !(c1 == ' ' || c1 == '\t');
+
+            default:
+                if (c >= '0' && c <= '9') {
+                    int i = lineStart;
+                    while (i < lineEnd && text.charAt(i) >= '0' && text.charAt(i) <= '9') i++;
+                    return !(i + 1 < lineEnd && text.charAt(i) == '.' && (text.charAt(i + 1) == ' ' || text.charAt(i + 1) == '\t'));
+                }
+                return true;
+        }
+    }
+
+    /**
+     * @return true if the first non-blank line from lineStart on is a definition, a term can have blank lines after it
+     */
+    protected static boolean isDefinition(CharSequence text, int lineStart, int length) {
+        while (lineStart < length && isBlankLine(text, lineStart)) lineStart = getLineEnd(text, lineStart) + 1;
+        return lineStart < length && text.charAt(lineStart) == ':';
+    }
+
+    protected static final int NO = 0;
+    protected static final int YES = 1;
+    protected static final int MAYBE = 2;
+
+    /**
+     * Whether pegdown parses a fence line at the start of a block as a block it tries before fenced code: a setext
+     * heading, a table or a definition term. A heading is certain when the fence is a run of more backticks than an
+     * inline code span can have, otherwise the text after the fence decides.
+     */
+    protected static int getBlockBeforeFence(CharSequence text, int lineStart, int lineEnd, int nextLineStart) {
+        int length = text.length();
+        if (isSetextUnderline(text, nextLineStart, length)) {
+            return text.charAt(lineStart) == '`' && countLeading(text, lineStart, lineEnd, '`') > 5 ? YES : MAYBE;
+        }
+
+        if (nextLineStart < length && text.charAt(nextLineStart) == ':') return MAYBE;
+        if (indexOf(text, lineStart, lineEnd, "|") >= 0) return MAYBE;
+        return NO;
+    }
+
+    /**
+     * @return true if the line is 3 or more of = or - with trailing spaces, the way pegdown underlines setext headings
+     */
+    protected static boolean isSetextUnderline(CharSequence text, int lineStart, int length) {
+        if (lineStart >= length) return false;
+        char c = text.charAt(lineStart);
+        if (c != '=' && c != '-') return false;
+
+        int run = countLeading(text, lineStart, length, c);
+        int i = lineStart + run;
+        while (i < length && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) i++;
+        return run >= 3 && (i >= length || text.charAt(i) == '\n');
+    }
+
+    // tags pegdown starts html blocks with, hr and other empty tags don't need closing
+    protected static final HashSet<String> HTML_BLOCK_TAGS = new HashSet<String>(Arrays.asList(
+            "address", "blockquote", "center", "dd", "dir", "div", "dl", "dt", "fieldset", "form", "frameset", "h1", "h2", "h3", "h4", "h5", "h6",
+            "li", "menu", "noframes", "noscript", "ol", "p", "pre", "script", "style", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul"));
+
+    /**
+     * Pegdown ends a paragraph before a fence line but an inline code span takes lines up to its closing ticks without
+     * checking them. Spans have up to 5 ticks, from a longer run the last 5 can start one, and end before a blank line.
+     *
+     * @return end of the last code span starting in the line if it goes past the line end, 0 otherwise
+     */
+    protected static int getCodeSpanEnd(CharSequence text, int start, int lineEnd) {
+        int i = start;
+        while (i < lineEnd) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c != '`') {
+                i++;
+            } else {
+                int run = countLeading(text, i, lineEnd, '`');
+                int close = -1;
+                int ticks = Math.min(run, 5);
+
+                // a run without a closing one is text, but from its next tick on a shorter run may have one
+                while (ticks > 0 && (close = findTicks(text, i + run, ticks)) < 0) ticks--;
+                if (close < 0) {
+                    i += run;
+                } else {
+                    i = close + ticks;
+                    if (i > lineEnd) return i;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return start of the first run of exactly ticks backticks from start on, -1 if a blank line comes first
+     */
+    protected static int findTicks(CharSequence text, int start, int ticks) {
+        int length = text.length();
+        int i = start;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '`') {
+                int run = countLeading(text, i, length, '`');
+                if (run == ticks) return i;
+                i += run;
+            } else {
+                if (c == '\n' && isBlankLine(text, i + 1)) return -1;
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the line is 3 or more of *, - or _ with only spaces between and after them
+     */
+    protected static boolean isHorizontalRule(CharSequence text, int start, int lineEnd) {
+        if (start >= lineEnd) return false;
+        char c = text.charAt(start);
+        if (c != '*' && c != '-' && c != '_') return false;
+
+        int count = 0;
+        for (int i = start; i < lineEnd; i++) {
+            char r = text.charAt(i);
+            if (r == c) count++;
+            else if (r != ' ' && r != '\t') return false;
+        }
+        return count >= 3;
+    }
+
+    protected static String getHtmlClose(CharSequence text, int lineStart, int lineEnd) {
+        if (indexOf(text, lineStart, lineEnd, "<!--") == lineStart) return "-->";
+
+        int i = lineStart + 1;
+        while (i < lineEnd && Character.isLetterOrDigit(text.charAt(i))) i++;
+        if (i == lineStart + 1) return null;
+
+        String tag = text.subSequence(lineStart + 1, i).toString().toLowerCase();
+        if (!HTML_BLOCK_TAGS.contains(tag)) return null;
+
+        int lastNonBlank = lineEnd;
+        while (lastNonBlank > i && Character.isWhitespace(text.charAt(lastNonBlank - 1))) lastNonBlank--;
+        if (lastNonBlank - 2 >= i && text.charAt(lastNonBlank - 2) == '/' && text.charAt(lastNonBlank - 1) == '>') return null;
+
+        return "</" + tag;
+    }
+}
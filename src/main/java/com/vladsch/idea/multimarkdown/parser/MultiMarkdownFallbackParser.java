@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.pegdown.Extensions;
+import org.pegdown.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for pegdown on text that pegdown timed out or failed on, a single linear scan that recognizes only the
+ * elements that matter most for highlighting and navigation: ATX headers, fenced code, HTML comments, wiki links and
+ * inline links. Everything else is plain paragraph text.
+ * <p/>
+ * The result is a pegdown AST with the same node types and offsets pegdown would use for these elements so that the
+ * lexer, PSI and preview handle degraded text without knowing about it. Bracket searches remember the next closing
+ * position so that unbalanced brackets, the usual cause of pegdown's exponential backtracking, cannot make the scan
+ * quadratic.
+ */
+public class MultiMarkdownFallbackParser {
+    protected final CharSequence text;
+    protected final int length;
+    protected final boolean wikiLinks;
+    protected final boolean fencedCode;
+
+    protected static final int NONE = Integer.MAX_VALUE;
+
+    // next closing positions at or after the scan position, NONE when there is none left
+    protected int nextWikiClose;
+    protected int nextWikiBreak;
+    protected int nextBracketClose;
+    protected int nextParenClose;
+    protected int nextCommentClose;
+    protected int nextBlockCommentClose = -1;
+
+    protected MultiMarkdownFallbackParser(@NotNull CharSequence text, int pegdownExtensions) {
+        this.text = text;
+        this.length = text.length();
+        this.wikiLinks = (pegdownExtensions & Extensions.WIKILINKS) != 0;
+        this.fencedCode = (pegdownExtensions & Extensions.FENCED_CODE_BLOCKS) != 0;
+    }
+
+    @NotNull
+    public static RootNode parse(@NotNull CharSequence text, int pegdownExtensions) {
+        return new MultiMarkdownFallbackParser(text, pegdownExtensions).parse();
+    }
+
+    @NotNull
+    protected RootNode parse() {
+        ArrayList<Node> children = new ArrayList<Node>();
+        int paraStart = -1;
+        int paraEnd = -1;
+        int pos = 0;
+
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n') lineEnd++;
+            int nextLine = lineEnd < length ? lineEnd + 1 : length;
+
+            int indent = countLeading(pos, lineEnd, ' ');
+            int first = pos + indent;
+            while (first < lineEnd && Character.isWhitespace(text.charAt(first))) first++;
+
+            if (first >= lineEnd) {
+                addParagraph(children, paraStart, paraEnd);
+                paraStart = -1;
+                pos = nextLine;
+                continue;
+            }
+
+            if (indent < 4) {
+                char c = text.charAt(first);
+                int run = countLeading(first, lineEnd, c);
+                int end;
+
+                if (fencedCode && (c == '`' || c == '~') && run >= 3) {
+                    addParagraph(children, paraStart, paraEnd);
+                    paraStart = -1;
+                    pos = addFencedCode(children, pos, first + run, lineEnd, nextLine, c, run);
+                    continue;
+                }
+
+                if (c == '#' && indent == 0 && run <= 6 && (first + run == lineEnd || text.charAt(first + run) == ' ' || text.charAt(first + run) == '\t')) {
+                    addParagraph(children, paraStart, paraEnd);
+                    paraStart = -1;
+                    addHeader(children, pos, first + run, lineEnd, run);
+                    pos = nextLine;
+                    continue;
+                }
+
+                if (c == '<' && startsWith(first, "<!--") && (end = findBlockCommentClose(first + 4)) >= 0) {
+                    // comments can span blank lines so they are taken whole, the rest of the last line continues as text
+                    addParagraph(children, paraStart, paraEnd);
+                    paraStart = -1;
+                    children.add(newTextNode(new InlineHtmlNode(text.subSequence(first, end + 3).toString()), first, end + 3));
+                    pos = end + 3;
+                    continue;
+                }
+            }
+
+            if (paraStart < 0) paraStart = first;
+            paraEnd = lineEnd;
+            pos = nextLine;
+        }
+
+        addParagraph(children, paraStart, paraEnd);
+
+        RootNode rootNode = new RootNode(children);
+        rootNode.setStartIndex(0);
+        rootNode.setEndIndex(length);
+        return rootNode;
+    }
+
+    protected int addFencedCode(@NotNull List<Node> children, int start, int infoStart, int lineEnd, int nextLine, char fenceChar, int fenceLength) {
+        String info = text.subSequence(infoStart, lineEnd).toString().trim();
+        int contentStart = nextLine;
+        int pos = nextLine;
+
+        // unclosed fences run to the end of the text, same as pegdown
+        int contentEnd = length;
+        int end = length;
+
+        while (pos < length) {
+            int end1 = pos;
+            while (end1 < length && text.charAt(end1) != '\n') end1++;
+
+            int indent = countLeading(pos, end1, ' ');
+            if (indent < 4 && countLeading(pos + indent, end1, fenceChar) >= fenceLength) {
+                contentEnd = pos;
+                end = end1 < length ? end1 + 1 : length;
+                break;
+            }
+            pos = end1 < length ? end1 + 1 : length;
+        }
+
+        VerbatimNode node = new VerbatimNode(text.subSequence(contentStart, contentEnd).toString(), info);
+        node.setStartIndex(start);
+        node.setEndIndex(end);
+        children.add(node);
+        return end;
+    }
+
+    protected void addHeader(@NotNull List<Node> children, int start, int contentStart, int lineEnd, int level) {
+        int end = lineEnd;
+        while (end > contentStart && Character.isWhitespace(text.charAt(end - 1))) end--;
+        while (contentStart < end && Character.isWhitespace(text.charAt(contentStart))) contentStart++;
+
+        SuperNode content = new SuperNode(parseInline(contentStart, end));
+        content.setStartIndex(contentStart);
+        content.setEndIndex(end);
+
+        HeaderNode node = new HeaderNode(level, false, content);
+        node.setStartIndex(start);
+        node.setEndIndex(lineEnd);
+        children.add(node);
+    }
+
+    protected void addParagraph(@NotNull List<Node> children, int start, int end) {
+        if (start < 0) return;
+
+        ParaNode node = new ParaNode(parseInline(start, end));
+        node.setStartIndex(start);
+        node.setEndIndex(end);
+        children.add(node);
+    }
+
+    @NotNull
+    protected List<Node> parseInline(int start, int end) {
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nextWikiClose = nextWikiBreak = nextBracketClose = nextParenClose = nextCommentClose = -1;
+
+        int textStart = start;
+        int pos = start;
+
+        while (pos < end) {
+            char c = text.charAt(pos);
+            int nodeEnd = -1;
+            Node node = null;
+
+            if (c == '[') {
+                if (wikiLinks && pos + 1 < end && text.charAt(pos + 1) == '[') {
+                    int close = findWikiClose(pos + 2, end);
+                    if (close > pos + 2) {
+                        nodeEnd = close + 2;
+                        node = new WikiLinkNode(text.subSequence(pos + 2, close).toString());
+                    }
+                }
+
+                if (node == null) {
+                    int close = findBracketClose(pos + 1, end);
+                    if (close >= 0 && close + 1 < end && text.charAt(close + 1) == '(') {
+                        int paren = findParenClose(close + 2, end);
+                        if (paren >= 0) {
+                            nodeEnd = paren + 1;
+                            node = newLinkNode(pos + 1, close, close + 2, paren);
+                        }
+                    }
+                }
+            } else if (c == '<' && startsWith(pos, "<!--")) {
+                int close = findCommentClose(pos + 4, end);
+                if (close >= 0) {
+                    nodeEnd = close + 3;
+                    node = new InlineHtmlNode(text.subSequence(pos, nodeEnd).toString());
+                }
+            }
+
+            if (node != null) {
+                if (textStart < pos) nodes.add(newTextNode(textStart, pos));
+                ((AbstractNode) node).setStartIndex(pos);
+                ((AbstractNode) node).setEndIndex(nodeEnd);
+                nodes.add(node);
+                textStart = pos = nodeEnd;
+            } else {
+                pos++;
+            }
+        }
+
+        if (textStart < end) nodes.add(newTextNode(textStart, end));
+        return nodes;
+    }
+
+    @NotNull
+    protected Node newLinkNode(int textStart, int textEnd, int urlStart, int urlEnd) {
+        SuperNode linkText = new SuperNode(textStart < textEnd ? parseLinkText(textStart, textEnd) : new ArrayList<Node>());
+        linkText.setStartIndex(textStart);
+        linkText.setEndIndex(textEnd);
+        return new ExpLinkNode("", text.subSequence(urlStart, urlEnd).toString().trim(), linkText);
+    }
+
+    @NotNull
+    protected List<Node> parseLinkText(int start, int end) {
+        ArrayList<Node> nodes = new ArrayList<Node>(1);
+        nodes.add(newTextNode(start, end));
+        return nodes;
+    }
+
+    @NotNull
+    protected TextNode newTextNode(int start, int end) {
+        return newTextNode(new TextNode(text.subSequence(start, end).toString()), start, end);
+    }
+
+    @NotNull
+    protected static TextNode newTextNode(@NotNull TextNode node, int start, int end) {
+        node.setStartIndex(start);
+        node.setEndIndex(end);
+        return node;
+    }
+
+    /**
+     * @return offset of the "]]" closing a wiki link whose text starts at from, -1 if there is none before end
+     */
+    protected int findWikiClose(int from, int end) {
+        if (nextWikiClose < from) {
+            nextWikiClose = NONE;
+            for (int i = from; i + 1 < end; i++) {
+                if (text.charAt(i) == ']' && text.charAt(i + 1) == ']') {
+                    nextWikiClose = i;
+                    break;
+                }
+            }
+        }
+
+        // wiki link text cannot contain brackets or line breaks
+        if (nextWikiBreak < from) {
+            nextWikiBreak = NONE;
+            for (int i = from; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '[' || c == '\n') {
+                    nextWikiBreak = i;
+                    break;
+                }
+            }
+        }
+
+        return nextWikiClose != NONE && nextWikiClose < nextWikiBreak ? nextWikiClose : -1;
+    }
+
+    protected int findBracketClose(int from, int end) {
+        if (nextBracketClose < from) nextBracketClose = indexOf(from, end, ']');
+        return nextBracketClose != NONE ? nextBracketClose : -1;
+    }
+
+    protected int findParenClose(int from, int end) {
+        if (nextParenClose < from) nextParenClose = indexOf(from, end, ')');
+        return nextParenClose != NONE ? nextParenClose : -1;
+    }
+
+    protected int findCommentClose(int from, int end) {
+        if (nextCommentClose < from) nextCommentClose = indexOf(from, end, "-->");
+        return nextCommentClose != NONE ? nextCommentClose : -1;
+    }
+
+    protected int findBlockCommentClose(int from) {
+        if (nextBlockCommentClose < from) nextBlockCommentClose = indexOf(from, length, "-->");
+        return nextBlockCommentClose != NONE ? nextBlockCommentClose : -1;
+    }
+
+    protected int countLeading(int start, int end, char c) {
+        int count = 0;
+        while (start + count < end && text.charAt(start + count) == c) count++;
+        return count;
+    }
+
+    protected boolean startsWith(int pos, @NotNull String s) {
+        int sLength = s.length();
+        if (pos + sLength > length) return false;
+        for (int i = 0; i < sLength; i++) {
+            if (text.charAt(pos + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    protected int indexOf(int from, int end, @NotNull String s) {
+        for (int i = from; i + s.length() <= end; i++) {
+            if (startsWith(i, s)) return i;
+        }
+        return NONE;
+    }
+
+    protected int indexOf(int from, int end, char c) {
+        for (int i = from; i < end; i++) {
+            if (text.charAt(i) == c) return i;
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-lexes an edited version of a previously lexed text by parsing only the top level blocks affected by the edit
+ * and splicing the resulting tokens into the previous token array.
+ * <p/>
+ * Block boundaries are found by a line scan which cannot model every pegdown rule, so the re-parsed chunk includes
+ * one unchanged block on each side of the edit. The tokens of these blocks must come out the same as before,
+ * otherwise the edit changed how the surrounding text parses and the caller has to do a full parse.
+ */
+public class MultiMarkdownIncrementalParser {
+    // below this size a full parse is cheap enough
+    public static final int MIN_INCREMENTAL_LENGTH = 16 * 1024;
+
+    protected static final AtomicLong splices = new AtomicLong();
+    protected static final AtomicLong fallbacks = new AtomicLong();
+
+    public static long getSplices() { return splices.get(); }
+
+    public static long getFallbacks() { return fallbacks.get(); }
+
+    public interface ChunkParser {
+        /**
+         * @return lexer tokens for the chunk with offsets relative to its start or null if the parse failed
+         */
+        @Nullable
+        MultiMarkdownLexerTokens parseChunk(@NotNull CharSequence chunk);
+    }
+
+    /**
+     * @param previous     cache entry with lexer tokens for a previous version of the text
+     * @param buffer       new text
+     * @param chunkParser  parser for the affected part of the text
+     * @return tokens for the new text or null if it needs a full parse
+     */
+    @Nullable
+    public static MultiMarkdownLexerTokens reparse(@NotNull MultiMarkdownParseCache.Entry previous, @NotNull CharSequence buffer, @NotNull ChunkParser chunkParser) {
+        MultiMarkdownLexerTokens tokens = splice(previous, buffer, chunkParser);
+        if (tokens == null) fallbacks.incrementAndGet();
+        else splices.incrementAndGet();
+        return tokens;
+    }
+
+    @Nullable
+    protected static MultiMarkdownLexerTokens splice(@NotNull MultiMarkdownParseCache.Entry previous, @NotNull CharSequence buffer, @NotNull ChunkParser chunkParser) {
+        MultiMarkdownLexerTokens oldTokens = previous.getLexerTokens();
+        if (oldTokens == null || !previous.isBufferValid()) return null;
+
+        CharSequence oldBuffer = previous.getBuffer();
+        if (previous.getBlocks().hasAbbreviations()) return null;
+
+        int oldLength = oldBuffer.length();
+        int newLength = buffer.length();
+        int minLength = Math.min(oldLength, newLength);
+
+        int prefix = 0;
+        while (prefix < minLength && oldBuffer.charAt(prefix) == buffer.charAt(prefix)) prefix++;
+
+        int suffix = 0;
+        while (suffix < minLength - prefix && oldBuffer.charAt(oldLength - suffix - 1) == buffer.charAt(newLength - suffix - 1)) suffix++;
+
+        // not worth it if most of the text changed
+        if (prefix + suffix < newLength / 2) return null;
+
+        MultiMarkdownBlocks blocks = MultiMarkdownBlocks.of(buffer, previous.pegdownExtensions);
+        if (blocks.hasAbbreviations()) return null;
+
+        int delta = newLength - oldLength;
+        int editEnd = newLength - suffix;
+
+        // one unchanged block before and after the edited ones is re-parsed to check that the edit stays contained
+        int firstEdited = blocks.getBlockIndex(prefix);
+        int lastEdited = editEnd > prefix ? blocks.getBlockIndex(editEnd - 1) : firstEdited;
+        int firstIndex = Math.max(firstEdited - 1, 0);
+        int lastIndex = Math.min(lastEdited + 1, blocks.getBlockCount() - 1);
+
+        int chunkStart = blocks.getBlockStart(firstIndex);
+        int chunkEnd = blocks.getBlockEnd(lastIndex);
+        int leadingEnd = firstIndex < firstEdited ? blocks.getBlockStart(firstEdited) : chunkStart;
+        int trailingStart = lastIndex > lastEdited ? blocks.getBlockStart(lastIndex) : chunkEnd;
+
+        // trailing sync block has to be in the unchanged suffix
+        if (trailingStart < editEnd) return null;
+
+        if (crosses(oldTokens, chunkStart) || crosses(oldTokens, chunkEnd - delta)) return null;
+
+        MultiMarkdownLexerTokens chunkTokens = chunkParser.parseChunk(buffer.subSequence(chunkStart, chunkEnd));
+        if (chunkTokens == null) return null;
+
+        int oldSize = oldTokens.size();
+        int chunkSize = chunkTokens.size();
+
+        // leading sync block, same offsets in old and new text
+        int oldIndex = oldTokens.getFirstTokenAt(chunkStart);
+        int chunkIndex = 0;
+        while (chunkIndex < chunkSize && chunkTokens.getStart(chunkIndex) + chunkStart < leadingEnd) {
+            if (oldIndex >= oldSize || !isSame(oldTokens, oldIndex, chunkTokens, chunkIndex, chunkStart)) return null;
+            oldIndex++;
+            chunkIndex++;
+        }
+        if (oldIndex < oldSize && oldTokens.getStart(oldIndex) < leadingEnd) return null;
+
+        // trailing sync block, old offsets are shifted by delta
+        int chunkTrailing = chunkIndex;
+        while (chunkTrailing < chunkSize && chunkTokens.getStart(chunkTrailing) + chunkStart < trailingStart) chunkTrailing++;
+
+        int oldTrailing = oldTokens.getFirstTokenAt(trailingStart - delta);
+        int oldAfter = oldTokens.getFirstTokenAt(chunkEnd - delta);
+        if (oldAfter - oldTrailing != chunkSize - chunkTrailing) return null;
+
+        for (int i = chunkTrailing; i < chunkSize; i++) {
+            if (!isSame(oldTokens, oldTrailing + i - chunkTrailing, chunkTokens, i, chunkStart - delta)) return null;
+        }
+
+        int oldBefore = oldTokens.getFirstTokenAt(chunkStart);
+        MultiMarkdownLexerTokens.Builder tokens = new MultiMarkdownLexerTokens.Builder(oldBefore + chunkSize + oldSize - oldAfter);
+        tokens.addAll(oldTokens, 0, oldBefore, 0);
+        tokens.addAll(chunkTokens, 0, chunkSize, chunkStart);
+        tokens.addAll(oldTokens, oldAfter, oldSize, delta);
+        return tokens.build();
+    }
+
+    protected static boolean crosses(@NotNull MultiMarkdownLexerTokens tokens, int offset) {
+        int index = tokens.getFirstTokenAt(offset);
+        return index > 0 && tokens.getEnd(index - 1) > offset;
+    }
+
+    protected static boolean isSame(@NotNull MultiMarkdownLexerTokens tokens, int index, @NotNull MultiMarkdownLexerTokens chunkTokens, int chunkIndex, int chunkOffset) {
+        return tokens.getTypeIndex(index) == chunkTokens.getTypeIndex(chunkIndex)
+                && tokens.getStart(index) == chunkTokens.getStart(chunkIndex) + chunkOffset
+                && tokens.getEnd(index) == chunkTokens.getEnd(chunkIndex) + chunkOffset;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerPosition;
+import com.intellij.psi.tree.IElementType;
+import com.vladsch.idea.multimarkdown.psi.MultiMarkdownTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * Single pass lexer for the id and todo indexers, which only need the words of a file and where its comments are.
+ * It recognizes HTML comments, fenced and indented code, code spans and wiki links, everything else is text.
+ * <p/>
+ * Word occurrences must come out the same as with {@link MultiMarkdownLexer}, so text is split where pegdown's
+ * tokens would split a word: at emphasis marker runs of underscores on either edge of a word. Code, comments and
+ * wiki links are not split, the same as in the full lexer.
+ * <p/>
+ * The state is a set of line flags used at the start of the next line to tell indented code from list item
+ * continuations, with a flag for being inside a wiki link.
+ */
+public class MultiMarkdownIndexLexer extends Lexer {
+    // previous line was blank
+    protected static final int PREV_BLANK = 1;
+    // previous line was indented code
+    protected static final int PREV_CODE = 2;
+    // inside a list, indented lines are item continuations
+    protected static final int IN_LIST = 4;
+    // after the [[ of a wiki link
+    protected static final int IN_WIKI_LINK = 8;
+
+    protected static final int INITIAL_STATE = PREV_BLANK;
+
+    protected final boolean githubWikiLinks;
+
+    protected CharSequence buffer = null;
+    protected int endOffset = 0;
+
+    // current token, tokenType is null at the end
+    protected IElementType tokenType = null;
+    protected int tokenStart = 0;
+    protected int tokenEnd = 0;
+
+    // state at the start of the current token and after it
+    protected int tokenState = INITIAL_STATE;
+    protected int state = INITIAL_STATE;
+
+    // construct found at the end of a text token, it is the next token so it is not scanned twice
+    protected int nextOffset = -1;
+    protected IElementType nextType = null;
+    protected int nextEnd = 0;
+    protected int nextState = 0;
+
+    // fence, length and indentation to the offset after which it has no closing fence
+    // closing underscore emphasis marker run to split off its word
+    protected int emphasisClose = -1;
+
+    protected final HashMap<Integer, Integer> unclosedFences = new HashMap<Integer, Integer>();
+
+    public MultiMarkdownIndexLexer() {
+        this(MultiMarkdownLexParserManager.getActualPegdownExtensions(null));
+    }
+
+    public MultiMarkdownIndexLexer(int pegdownExtensions) {
+        super();
+        this.githubWikiLinks = (pegdownExtensions & MultiMarkdownLexParserManager.GITHUB_WIKI_LINKS) != 0;
+    }
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+        this.buffer = buffer;
+        this.endOffset = endOffset;
+        nextOffset = -1;
+        emphasisClose = -1;
+        unclosedFences.clear();
+        scan(startOffset, startOffset == 0 ? INITIAL_STATE : initialState);
+    }
+
+    @Override
+    public int getState() {
+        return tokenState;
+    }
+
+    @Nullable
+    @Override
+    public IElementType getTokenType() {
+        return tokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    @Override
+    public void advance() {
+        scan(tokenEnd, state);
+    }
+
+    protected void scan(int offset, int initialState) {
+        tokenStart = tokenEnd = offset;
+        tokenState = state = initialState;
+
+        if (offset >= endOffset) {
+            tokenType = null;
+        } else if (offset == nextOffset) {
+            nextOffset = -1;
+            state = nextState;
+            setToken(nextType, nextEnd);
+        } else if ((state & IN_WIKI_LINK) != 0) {
+            scanWikiLink(offset);
+        } else if (offset == 0 || buffer.charAt(offset - 1) == '\n') {
+            scanLineStart(offset);
+        } else {
+            scanInline(offset);
+        }
+    }
+
+    protected void setToken(IElementType type, int end) {
+        tokenType = type;
+        tokenEnd = end;
+    }
+
+    protected int lineEnd(int offset) {
+        while (offset < endOffset && buffer.charAt(offset) != '\n') offset++;
+        return offset < endOffset ? offset + 1 : endOffset;
+    }
+
+    protected boolean isBlankLine(int offset) {
+        return isBlankLine(offset, endOffset);
+    }
+
+    protected boolean isBlankLine(int offset, int end) {
+        for (; offset < end; offset++) {
+            char c = buffer.charAt(offset);
+            if (c == '\n') return true;
+            if (c != ' ' && c != '\t') return false;
+        }
+        return true;
+    }
+
+    protected void scanLineStart(int offset) {
+        int indent = 0;
+        int pos = offset;
+        for (; pos < endOffset; pos++) {
+            char c = buffer.charAt(pos);
+            if (c == ' ') indent++;
+            else if (c == '\t') indent = (indent + 4) & ~3;
+            else break;
+        }
+
+        if (isBlankLine(pos)) {
+            state = (state & (IN_LIST | PREV_CODE)) | PREV_BLANK;
+            setToken(MultiMarkdownTypes.TEXT, lineEnd(pos));
+            return;
+        }
+
+        if (indent >= 4) {
+            if ((state & PREV_CODE) != 0 || (state & (PREV_BLANK | IN_LIST)) == PREV_BLANK) {
+                state = PREV_CODE;
+                setToken(MultiMarkdownTypes.VERBATIM, lineEnd(pos));
+                return;
+            }
+            // list item content is parsed with one level of indentation removed
+            if ((state & IN_LIST) != 0 && indent < 8 && scanFencedCode(pos, pos - offset)) return;
+            state &= IN_LIST;
+        } else {
+            if (indent == 0 && scanFencedCode(pos, 0)) return;
+
+            if (isListItem(pos)) state = IN_LIST;
+            else if ((state & PREV_BLANK) != 0) state = 0;
+            else state &= IN_LIST;
+        }
+
+        scanInline(offset);
+    }
+
+    /**
+     * Pegdown's fences are not indented, other than in list items, and the closing fence is a run of the same
+     * character and length as the opening one followed by anything up to the end of its line. Without a closing
+     * fence the text is not code, which is remembered so that a run of unclosed fences is not quadratic.
+     *
+     * @param offset offset of the fence
+     * @param prefix length of the indentation before the fence, the closing fence has to have the same
+     */
+    protected boolean scanFencedCode(int offset, int prefix) {
+        int count = countFence(offset);
+        if (count < 3) return false;
+
+        char fence = buffer.charAt(offset);
+        Integer key = (fence == '`' ? count : -count) * 8 - prefix;
+        Integer unclosed = unclosedFences.get(key);
+        if (unclosed != null && offset >= unclosed) return false;
+
+        int pos = lineEnd(offset);
+
+        // an empty block is not code
+        if (!isFence(pos + prefix, fence, count)) {
+            while (pos < endOffset) {
+                int next = lineEnd(pos);
+                if (isFence(pos + prefix, fence, count) && isBlankLine(pos, pos + prefix) && buffer.charAt(next - 1) == '\n') {
+                    state &= IN_LIST;
+                    setToken(MultiMarkdownTypes.VERBATIM, next);
+                    return true;
+                }
+                pos = next;
+            }
+        }
+
+        unclosedFences.put(key, offset);
+        return false;
+    }
+
+    protected int countFence(int offset) {
+        if (offset >= endOffset) return 0;
+        char c = buffer.charAt(offset);
+        return c == '`' || c == '~' ? countRun(offset, c) : 0;
+    }
+
+    protected boolean isFence(int offset, char fence, int count) {
+        return offset < endOffset && buffer.charAt(offset) == fence && countRun(offset, fence) == count;
+    }
+
+    protected boolean isListItem(int offset) {
+        char c = buffer.charAt(offset);
+        int pos = offset + 1;
+        if (c >= '0' && c <= '9') {
+            while (pos < endOffset && Character.isDigit(buffer.charAt(pos))) pos++;
+            if (pos >= endOffset || buffer.charAt(pos) != '.') return false;
+            pos++;
+        } else if (c != '*' && c != '+' && c != '-') {
+            return false;
+        }
+        return pos < endOffset && (buffer.charAt(pos) == ' ' || buffer.charAt(pos) == '\t');
+    }
+
+    protected int countRun(int offset, char c) {
+        int pos = offset;
+        while (pos < endOffset && buffer.charAt(pos) == c) pos++;
+        return pos - offset;
+    }
+
+    protected boolean startsWith(int offset, @NotNull String s) {
+        if (offset + s.length() > endOffset) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.charAt(offset + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    protected int indexOf(int offset, int limit, @NotNull String s) {
+        for (int pos = offset; pos + s.length() <= limit; pos++) {
+            if (startsWith(pos, s)) return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * Same word character test as the id index word scanner, an underscore run next to one of these is a marker on
+     * the edge of a word.
+     */
+    protected static boolean isWordPart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c != '$' && Character.isJavaIdentifierPart(c);
+    }
+
+    protected void scanInline(int offset) {
+        int end = scanConstruct(offset);
+        if (end > offset) return;
+
+        // text up to the end of the line or the next construct, which becomes the next token
+        int textState = state;
+        int pos = offset + 1;
+        while (pos < endOffset) {
+            char c = buffer.charAt(pos - 1);
+            if (c == '\n') break;
+
+            c = buffer.charAt(pos);
+            if ((c == '<' || c == '`' || c == '[' || c == '_' || c == '*' || c == '~') && scanConstruct(pos) > pos) {
+                nextOffset = pos;
+                nextType = tokenType;
+                nextEnd = tokenEnd;
+                nextState = state;
+                break;
+            }
+            pos++;
+        }
+
+        state = textState;
+        setToken(MultiMarkdownTypes.TEXT, pos);
+    }
+
+    /**
+     * Set the token for the construct at offset, if any.
+     *
+     * @return end of the construct, offset if there is none
+     */
+    protected int scanConstruct(int offset) {
+        char c = buffer.charAt(offset);
+        int end = offset;
+
+        switch (c) {
+            case '<':
+                if (startsWith(offset, "<!--")) {
+                    end = indexOf(offset + 4, endOffset, "-->");
+                    end = end < 0 ? endOffset : end + 3;
+                    setToken(MultiMarkdownTypes.COMMENT, end);
+                }
+                break;
+
+            case '`':
+                end = scanCodeSpan(offset);
+                break;
+
+            case '[':
+                if (startsWith(offset, "[[")) {
+                    int close = indexOf(offset + 2, lineEnd(offset), "]]");
+                    if (close > offset + 2) {
+                        end = offset + 2;
+                        state |= IN_WIKI_LINK;
+                        setToken(MultiMarkdownTypes.WIKI_LINK_OPEN, end);
+                    }
+                }
+                break;
+
+            case '_':
+                if (offset == emphasisClose) {
+                    emphasisClose = -1;
+                    end = offset + countRun(offset, '_');
+                    setToken(MultiMarkdownTypes.TEXT, end);
+                } else if (isEmphasisOpen(offset)) {
+                    int run = countRun(offset, '_');
+                    int close = findEmphasisClose(offset + run, run);
+                    if (close > 0) {
+                        emphasisClose = close;
+                        end = offset + run;
+                        setToken(MultiMarkdownTypes.TEXT, end);
+                    }
+                }
+                break;
+
+            case '*':
+            case '~':
+                end = offset + countRun(offset, c);
+                setToken(MultiMarkdownTypes.TEXT, end);
+                break;
+        }
+        return end;
+    }
+
+    protected boolean isEmphasisOpen(int offset) {
+        int after = offset + countRun(offset, '_');
+        return (offset == 0 || !isWordPart(buffer.charAt(offset - 1))) && after < endOffset && isWordPart(buffer.charAt(after));
+    }
+
+    /**
+     * Underscore emphasis markers are split off words only when pegdown would match them, so there has to be a closing
+     * run of the same length after a non-blank in the same paragraph. Like pegdown, only a single underscore has to
+     * be at the end of a word to close.
+     *
+     * @return offset of the closing marker run or -1
+     */
+    protected int findEmphasisClose(int offset, int run) {
+        int pos = offset;
+        while (pos < endOffset) {
+            char c = buffer.charAt(pos);
+            if (c == '_') {
+                int closeRun = countRun(pos, '_');
+                int after = pos + closeRun;
+                if (closeRun == run && !Character.isWhitespace(buffer.charAt(pos - 1)) && (run > 1 || after >= endOffset || !Character.isLetterOrDigit(buffer.charAt(after)))) {
+                    return pos;
+                }
+                pos = after;
+            } else if (c == '\n' && isBlankLine(pos + 1)) {
+                break;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    protected int scanCodeSpan(int offset) {
+        int run = countRun(offset, '`');
+        int pos = offset + run;
+
+        // closing run of the same length in the same paragraph
+        while (pos < endOffset) {
+            char c = buffer.charAt(pos);
+            if (c == '`') {
+                int closeRun = countRun(pos, '`');
+                if (closeRun == run) {
+                    setToken(MultiMarkdownTypes.CODE, pos + run);
+                    return pos + run;
+                }
+                pos += closeRun;
+            } else if (c == '\n' && isBlankLine(pos + 1)) {
+                break;
+            } else {
+                pos++;
+            }
+        }
+
+        setToken(MultiMarkdownTypes.TEXT, offset + run);
+        return offset + run;
+    }
+
+    protected void scanWikiLink(int offset) {
+        int lineEnd = lineEnd(offset);
+        int close = indexOf(offset, lineEnd, "]]");
+        if (close < 0) close = lineEnd;
+
+        if (offset >= close) {
+            state &= ~IN_WIKI_LINK;
+            setToken(MultiMarkdownTypes.WIKI_LINK_CLOSE, Math.min(offset + 2, endOffset));
+        } else if (buffer.charAt(offset) == '|') {
+            setToken(MultiMarkdownTypes.WIKI_LINK_SEPARATOR, offset + 1);
+        } else {
+            int separator = indexOf(offset, close, "|");
+            boolean afterSeparator = buffer.charAt(offset - 1) == '|';
+            IElementType type;
+            if (afterSeparator) type = githubWikiLinks ? MultiMarkdownTypes.WIKI_LINK_REF : MultiMarkdownTypes.WIKI_LINK_TEXT;
+            else if (separator < 0) type = MultiMarkdownTypes.WIKI_LINK_REF;
+            else type = githubWikiLinks ? MultiMarkdownTypes.WIKI_LINK_TEXT : MultiMarkdownTypes.WIKI_LINK_REF;
+            setToken(type, separator < 0 ? close : separator);
+        }
+    }
+
+    class IndexLexerPosition implements LexerPosition {
+        protected final int offset;
+        protected final int state;
+
+        IndexLexerPosition(int offset, int state) {
+            this.offset = offset;
+            this.state = state;
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getState() {
+            return state;
+        }
+    }
+
+    @NotNull
+    @Override
+    public LexerPosition getCurrentPosition() {
+        return new IndexLexerPosition(tokenStart, tokenState);
+    }
+
+    @Override
+    public void restore(@NotNull LexerPosition position) {
+        nextOffset = -1;
+        emphasisClose = -1;
+        scan(position.getOffset(), position.getState());
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+        return buffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+        return buffer.length();
+    }
+}
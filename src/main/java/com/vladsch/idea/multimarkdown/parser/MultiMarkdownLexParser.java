@@ -23,6 +23,7 @@
 package com.vladsch.idea.multimarkdown.parser;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.psi.TokenType;
 import com.intellij.psi.tree.IElementType;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
@@ -47,22 +48,25 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
     private int currentStringLength;
     //private String currentString;
 
-    private static HashSet<IElementType> excludedTokenTypes = new HashSet<IElementType>();
-    private static Map<IElementType, HashSet<IElementType>> overrideExclusions = new HashMap<IElementType, HashSet<IElementType>>();
-    private static Map<IElementType, HashMap<IElementType, IElementType>> combinationSplits = new HashMap<IElementType, HashMap<IElementType, IElementType>>();
+    // only modified by the static initializer, read-only afterwards so instances can be used on any number of threads
+    // rule tables are indexed by IElementType.getIndex() so the visitor does array reads instead of hash lookups
+    private static final BitSet excludedTokenTypes = new BitSet();
+    private static final BitSet NO_EXCLUSIONS = new BitSet();
+    private static BitSet[] parentExclusions = new BitSet[0];
+    private static IElementType[][] combinationSplits = new IElementType[0][];
 
     protected ArrayList<SegmentedRange> parentRanges = new ArrayList<SegmentedRange>();
     protected int minStackLevel = 0;
     protected int tableRows = 0;
     protected int rowColumns = 0;
 
-    protected static boolean recursingBold = false;
-    protected static boolean recursingItalic = false;
-    protected static boolean recursingStrike = false;
+    protected boolean recursingBold = false;
+    protected boolean recursingItalic = false;
+    protected boolean recursingStrike = false;
 
     protected Map<String, MarkdownASTVisitor.ParserNodeInfo> abbreviations = new HashMap<String, MarkdownASTVisitor.ParserNodeInfo>();
-    protected String abbreviationsRegEx = "";
-    protected Pattern abbreviationsPattern = null;
+    protected ArrayList<String> abbreviationList = new ArrayList<String>();
+    protected MultiMarkdownAbbreviationMatcher abbreviationMatcher = null;
 
     protected boolean githubWikiLinks;
 
@@ -70,23 +74,29 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
     // when an exclusion is added then the parent range will not be punched out by the child
     // default child range punches out a hole in the parent range.
-    static protected void addExclusion(IElementType parent, IElementType child) {
-        HashSet<IElementType> childExclusions;
-        if (!overrideExclusions.containsKey(child)) {
-            childExclusions = new HashSet<IElementType>();
-            overrideExclusions.put(child, childExclusions);
-        } else {
-            childExclusions = overrideExclusions.get(child);
-        }
+    static private void addExclusion(IElementType parent, IElementType child) {
+        int index = parent.getIndex();
+        if (index >= parentExclusions.length) parentExclusions = Arrays.copyOf(parentExclusions, index + 1);
+        if (parentExclusions[index] == null) parentExclusions[index] = new BitSet();
+
+        parentExclusions[index].set(child.getIndex());
+    }
 
-        childExclusions.add(parent);
+    /**
+     * @return child type indices that do not punch out their range from a parent of the given type
+     */
+    @NotNull
+    static protected BitSet getExclusions(@NotNull IElementType parent) {
+        int index = parent.getIndex();
+        BitSet exclusions = index < parentExclusions.length ? parentExclusions[index] : null;
+        return exclusions != null ? exclusions : NO_EXCLUSIONS;
     }
 
-    static protected void addInlineExclusions(IElementType parent) {
+    static private void addInlineExclusions(IElementType parent) {
         addInlineExclusions(parent, true);
     }
 
-    static protected void addInlineExclusions(IElementType parent, boolean addEmph) {
+    static private void addInlineExclusions(IElementType parent, boolean addEmph) {
         addExclusion(parent, CODE);
         addExclusion(parent, SPECIAL_TEXT);
         addExclusion(parent, TEXT);
@@ -105,7 +115,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
     }
 
-    static protected void addExcludeFromInlines(IElementType parent) {
+    static private void addExcludeFromInlines(IElementType parent) {
         addExclusion(BOLD, parent);
         addExclusion(BOLD_MARKER, parent);
         addExclusion(BOLDITALIC, parent);
@@ -119,22 +129,44 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
     }
 
     static protected boolean isExcluded(IElementType parent, IElementType child) {
-        HashSet<IElementType> childExclusions;
+        return child == null || parent == null || getExclusions(parent).get(child.getIndex());
+    }
+
+    static private void addCombinationSplit(IElementType resultingType, IElementType elementType1, IElementType elementType2) {
+        addCombinationSplitEntry(resultingType, elementType1, elementType2);
+        addCombinationSplitEntry(resultingType, elementType2, elementType1);
+    }
 
-        if (child == null || parent == null) return true;
-        if (!overrideExclusions.containsKey(child)) return false;
+    static private void addCombinationSplitEntry(IElementType resultingType, IElementType elementType1, IElementType elementType2) {
+        int index1 = elementType1.getIndex();
+        int index2 = elementType2.getIndex();
 
-        childExclusions = overrideExclusions.get(child);
-        return childExclusions.contains(parent);
+        if (index1 >= combinationSplits.length) combinationSplits = Arrays.copyOf(combinationSplits, index1 + 1);
+        IElementType[] splits = combinationSplits[index1];
+        if (splits == null) splits = combinationSplits[index1] = new IElementType[index2 + 1];
+        else if (index2 >= splits.length) splits = combinationSplits[index1] = Arrays.copyOf(splits, index2 + 1);
+
+        // first rule for a pair wins
+        if (splits[index2] == null) splits[index2] = resultingType;
+    }
+
+    static protected boolean hasCombinationSplits(IElementType elementType) {
+        if (elementType == null) return false;
+        int index = elementType.getIndex();
+        return index < combinationSplits.length && combinationSplits[index] != null;
     }
 
-    static protected void addCombinationSplit(IElementType resultingType, IElementType elementType1, IElementType elementType2) {
-        if (!combinationSplits.containsKey(elementType1)) combinationSplits.put(elementType1, new HashMap<IElementType, IElementType>(2));
-        if (!combinationSplits.get(elementType1).containsKey(elementType2))
-            combinationSplits.get(elementType1).put(elementType2, resultingType);
-        if (!combinationSplits.containsKey(elementType2)) combinationSplits.put(elementType2, new HashMap<IElementType, IElementType>(2));
-        if (!combinationSplits.get(elementType2).containsKey(elementType1))
-            combinationSplits.get(elementType2).put(elementType1, resultingType);
+    /**
+     * @return the type for the intersection of the two types or null if they do not combine
+     */
+    @Nullable
+    static protected IElementType getCombinationSplit(IElementType elementType1, IElementType elementType2) {
+        int index1 = elementType1.getIndex();
+        IElementType[] splits = index1 < combinationSplits.length ? combinationSplits[index1] : null;
+        if (splits == null || elementType2 == null) return null;
+
+        int index2 = elementType2.getIndex();
+        return index2 < splits.length ? splits[index2] : null;
     }
 
     static {
@@ -149,8 +181,8 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         addCombinationSplit(STRIKETHROUGH_ITALIC, ITALIC, STRIKETHROUGH);
 
         // these are not used for highlighting, only to punch out the range of their parents
-        excludedTokenTypes.add(TABLE_BODY);
-        excludedTokenTypes.add(TABLE_HEADER);
+        excludedTokenTypes.set(TABLE_BODY.getIndex());
+        excludedTokenTypes.set(TABLE_HEADER.getIndex());
 
         addExclusion(ANCHOR_LINK, INLINE_HTML);
 
@@ -224,201 +256,178 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
     public
     @Nullable
-    LexerToken[] parseMarkdown(final RootNode rootNode, char[] currentChars, int pegdownExtensions) {
+    MultiMarkdownLexerTokens parseMarkdown(final RootNode rootNode, int textLength, int pegdownExtensions) {
         assert !parseCalled;
         if (rootNode == null) return null;
 
-        this.currentStringLength = currentChars.length;
+        this.currentStringLength = textLength;
 
         // process tokens right away and return them
         this.githubWikiLinks = (pegdownExtensions & MultiMarkdownLexParserManager.GITHUB_WIKI_LINKS) != 0;
         MarkdownASTVisitor visitor = new MarkdownASTVisitor();
         rootNode.accept(visitor);
-        ArrayList<LexerToken> lexerTokens = visitor.getTokens();
 
-        LexerToken[] tokens = new LexerToken[lexerTokens.size()];
-        tokens = lexerTokens.toArray(tokens);
-
-        if (tokens.length > 0) {
-            Arrays.sort(tokens);
-
-            // now need to step through and merge consecutive tokens
-            int iMax = tokens.length;
-            LexerToken thisToken = tokens[0];
-            lexerTokens = new ArrayList<LexerToken>(iMax);
-
-            for (int i = 1; i < iMax; i++) {
-                LexerToken thatToken = tokens[i];
-
-                if (!thatToken.doesExtend(thisToken)) {
-                    lexerTokens.add(thisToken);
-                    thisToken = thatToken;
+        int count = visitor.tokenCount;
+        int[] tokens = visitor.tokens;
+        MultiMarkdownLexerTokens lexerTokens = MultiMarkdownLexerTokens.EMPTY;
+
+        if (count > 0) {
+            ProgressManager.checkCanceled();
+            int[] order = sortTokens(tokens, count);
+            ProgressManager.checkCanceled();
+
+            // now need to step through and merge consecutive tokens, ranges are packed as start, end, type
+            int[] merged = new int[count * 3];
+            int mergedCount = 0;
+            int thisToken = order[0] * TOKEN_STRIDE;
+            int thisStart = tokens[thisToken + TOKEN_START];
+            int thisEnd = tokens[thisToken + TOKEN_END];
+            int thisType = tokens[thisToken + TOKEN_TYPE];
+
+            for (int i = 1; i < count; i++) {
+                int thatToken = order[i] * TOKEN_STRIDE;
+                int thatStart = tokens[thatToken + TOKEN_START];
+                int thatEnd = tokens[thatToken + TOKEN_END];
+
+                if (tokens[thatToken + TOKEN_TYPE] != thisType || !(thatStart == thisEnd || thatEnd == thisStart)) {
+                    merged[mergedCount++] = thisStart;
+                    merged[mergedCount++] = thisEnd;
+                    merged[mergedCount++] = thisType;
+                    thisStart = thatStart;
+                    thisEnd = thatEnd;
+                    thisType = tokens[thatToken + TOKEN_TYPE];
                 } else {
-                    thisToken.getRange().expandToInclude(thatToken.getRange());
+                    if (thisStart > thatStart) thisStart = thatStart;
+                    if (thisEnd < thatEnd) thisEnd = thatEnd;
                 }
             }
-            lexerTokens.add(thisToken);
-
-            // now we generate lexemes from the combined optimized tokens
-            tokens = new LexerToken[lexerTokens.size()];
-            tokens = lexerTokens.toArray(tokens);
+            merged[mergedCount++] = thisStart;
+            merged[mergedCount++] = thisEnd;
+            merged[mergedCount++] = thisType;
 
             // we create a list of non-intersecting, sorted, ranges
-            tokens = splitLexerTokens(tokens);
+            ProgressManager.checkCanceled();
+            lexerTokens = splitLexerTokens(merged, mergedCount / 3);
         }
 
         parseCalled = true;
-        return tokens;
-    }
-
-    public static LexerToken getWhiteSpaceToken(int start, int end) {
-        return new LexerToken(new Range(start, end), TokenType.WHITE_SPACE);
+        return lexerTokens;
     }
 
-    public static LexerToken getSkippedSpaceToken(int start, int end) {
-        //if (end > currentStringLength) {
-        //    int tmp = 0;
-        //}
-        return new LexerToken(new Range(start, end), NONE);
-    }
-
-    public LexerToken[] splitLexerTokens(LexerToken[] tokens) {
-        int end = tokens.length;
+    // tokens processed between checks for cancellation, minus one
+    protected static final int CANCEL_CHECK_INTERVAL = 4095;
 
-        if (end > 0) {
-            ArrayList<LexerToken> lexemes = new ArrayList<LexerToken>(tokens.length);
+    // visitor tokens are packed as start, end, nesting, element type index
+    protected static final int TOKEN_START = 0;
+    protected static final int TOKEN_END = 1;
+    protected static final int TOKEN_NESTING = 2;
+    protected static final int TOKEN_TYPE = 3;
+    protected static final int TOKEN_STRIDE = 4;
 
-            // do all of them
-            splitLexemes(lexemes, tokens, 0, Integer.MAX_VALUE);
+    protected static int compareTokens(int[] tokens, int token1, int token2) {
+        int i1 = token1 * TOKEN_STRIDE;
+        int i2 = token2 * TOKEN_STRIDE;
+        int start1 = tokens[i1 + TOKEN_START], start2 = tokens[i2 + TOKEN_START];
+        if (start1 != start2) return start1 < start2 ? -1 : 1;
 
+        // longer ranges first
+        int end1 = tokens[i1 + TOKEN_END], end2 = tokens[i2 + TOKEN_END];
+        if (end1 != end2) return end1 > end2 ? -1 : 1;
 
-            LexerToken[] lexerTokens = new LexerToken[lexemes.size()];
-            return lexemes.toArray(lexerTokens);
-        }
-        return null;
+        int nesting1 = tokens[i1 + TOKEN_NESTING], nesting2 = tokens[i2 + TOKEN_NESTING];
+        return nesting1 < nesting2 ? -1 : (nesting1 > nesting2 ? 1 : 0);
     }
 
-    protected int splitLexemes(ArrayList<LexerToken> lexemes, LexerToken[] tokens, int start, int rangeEnd) {
-        LexerToken token = tokens[start];
-        Range range = token.getRange();
-        Range range1;
-
-        if (range.end <= rangeEnd) {
-            int end = tokens.length;
-
-            start++;
-            for (; start < end && (range1 = tokens[start].getRange()).end <= rangeEnd; start++) {
-                if (range.compare(range1) <= 0 && (range.doesNotOverlap(range1) || range.equals(range1))) {
-                    // it comes before, add it, if it equals, then skip it
-                    if (!range.equals(range1)) {
-                        if (range.equals(token.getRange())) {
-                            lexemes.add(token);
-                        } else {
-                            LexerToken newToken = new LexerToken(range, token.getElementType());
-                            lexemes.add(newToken);
-                        }
-                        token = tokens[start];
-                        range = token.getRange();
-                    }
-                } else if (!range.doesContain(range1)) {
-                    //if (!range.doesNotOverlap(range1)) {
-                    //    int tmp = 0;
-                    //    //assert false;
-                    //}
-                    //if (range.compare(range1) <= 0) {
-                    //    int tmp = 0;
-                    //    //assert false;
-                    //}
-                    lexemes.add(token);
-                    token = tokens[start];
-                    range = token.getRange();
-                } else {
-                    if (range.doesOverlap(range1) && !range.doesContain(range1)) {
-                        // split the range and continue
-                        // if it contains it, then skip it
-                        Range newRange = new Range(range);
-                        newRange.end = range1.start;
-                        if (newRange.isEmpty()) {
-                            token = tokens[start];
-                            range = token.getRange();
-                        } else {
-                            LexerToken newToken = new LexerToken(newRange, token.getElementType());
-                            lexemes.add(newToken);
-
-                            range = new Range(range);
-                            range.start = range1.end;
-                            if (range.isEmpty()) {
-                                token = tokens[start];
-                                range = token.getRange();
-                            } else {
-                                start = splitLexemes(lexemes, tokens, start, range.start);
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (!range.isEmpty()) {
-                if (range.equals(token.getRange())) {
-                    lexemes.add(token);
-                } else {
-                    LexerToken newToken = new LexerToken(range, token.getElementType());
-                    lexemes.add(newToken);
+    /**
+     * Stable merge sort of token indices, equal tokens keep the order in which they were added
+     *
+     * @return token indices in sorted order
+     */
+    protected static int[] sortTokens(int[] tokens, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+
+        // insertion sort short runs
+        final int run = 16;
+        for (int lo = 0; lo < count; lo += run) {
+            int hi = Math.min(lo + run, count);
+            for (int i = lo + 1; i < hi; i++) {
+                int token = order[i];
+                int j = i;
+                while (j > lo && compareTokens(tokens, order[j - 1], token) > 0) {
+                    order[j] = order[j - 1];
+                    j--;
                 }
+                order[j] = token;
             }
         }
-        return start;
-    }
-
-    protected static class LexerToken implements Comparable<LexerToken> {
-
-        @Override
-        public int compareTo(@NotNull LexerToken o) {
-            return compare(o);
-        }
-
-        private final Range range;
-        private final IElementType elementType;
-        private int nesting;
-
-        public LexerToken(final Range range, final IElementType elementType) {
-            this.range = range;
-            this.elementType = elementType;
-            this.nesting = Integer.MAX_VALUE;
-        }
 
-        public LexerToken(int start, int end, final IElementType elementType) {
-            this.range = new Range(start, end);
-            this.elementType = elementType;
-            this.nesting = Integer.MAX_VALUE;
-        }
+        if (count <= run) return order;
 
-        public LexerToken(final Range range, final IElementType elementType, int nesting) {
-            this.range = range;
-            this.elementType = elementType;
-            this.nesting = nesting;
-        }
+        int[] from = order;
+        int[] to = new int[count];
+        for (int width = run; width < count; width *= 2) {
+            for (int lo = 0; lo < count; lo += width * 2) {
+                int mid = Math.min(lo + width, count);
+                int hi = Math.min(lo + width * 2, count);
+                int i = lo, j = mid, k = lo;
 
-        public Range getRange() { return range; }
+                if (mid >= hi || compareTokens(tokens, from[mid - 1], from[mid]) <= 0) {
+                    // already in order
+                    System.arraycopy(from, lo, to, lo, hi - lo);
+                    continue;
+                }
 
-        public IElementType getElementType() { return elementType; }
+                while (i < mid && j < hi) {
+                    to[k++] = compareTokens(tokens, from[j], from[i]) < 0 ? from[j++] : from[i++];
+                }
+                while (i < mid) to[k++] = from[i++];
+                while (j < hi) to[k++] = from[j++];
+            }
 
-        public String toString() {
-            return "MultiMarkdownLexParser$LexerToken" + range.toString() + " " + elementType.toString();
+            int[] tmp = from;
+            from = to;
+            to = tmp;
         }
+        return from;
+    }
 
-        public boolean isWhiteSpace() { return elementType == TokenType.WHITE_SPACE; }
-
-        public boolean isSkippedSpace() { return elementType == NONE; }
-
-        public int compare(LexerToken that) {
-            int rangeCompare = this.range.compare(that.range);
-            return rangeCompare != 0 ? rangeCompare : (this.nesting < that.nesting ? -1 : (this.nesting > that.nesting ? 1 : 0));
+    /**
+     * Turn sorted, merged tokens into lexemes in a single pass. A token that lies within the current lexeme is
+     * dropped, any other token ends the current lexeme and becomes the next one. Tokens that partially overlap the
+     * current lexeme are kept as they are, the lexer skips past the overlap.
+     *
+     * @param tokens merged tokens, packed as start, end, type and sorted by start then longest first
+     * @param count  number of tokens
+     */
+    @NotNull
+    public MultiMarkdownLexerTokens splitLexerTokens(int[] tokens, int count) {
+        if (count <= 0) return MultiMarkdownLexerTokens.EMPTY;
+
+        MultiMarkdownLexerTokens.Builder lexemes = new MultiMarkdownLexerTokens.Builder(count);
+        int token = 0;
+        int start = tokens[0];
+        int end = tokens[1];
+
+        for (int i = 1; i < count; i++) {
+            if ((i & CANCEL_CHECK_INTERVAL) == 0) ProgressManager.checkCanceled();
+
+            int start1 = tokens[i * 3];
+            int end1 = tokens[i * 3 + 1];
+
+            // contained empty tokens at the edges of the range do not overlap it and also end the lexeme
+            if (!(start <= start1 && end >= end1) || end1 <= start || start1 >= end) {
+                lexemes.add(start, end, tokens[token * 3 + 2]);
+                token = i;
+                start = start1;
+                end = end1;
+            }
         }
 
-        public boolean doesExtend(LexerToken that) {
-            return this.elementType == that.elementType && this.range.isAdjacent(that.range);
+        if (start < end) {
+            lexemes.add(start, end, tokens[token * 3 + 2]);
         }
+        return lexemes.build();
     }
 
     protected void pushRange(Range range, IElementType type) {
@@ -451,9 +460,27 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
     }
 
     protected class MarkdownASTVisitor implements Visitor {
-        protected final ArrayList<LexerToken> tokens = new ArrayList<LexerToken>(100);
+        // markdown text averages more than 20 characters per token
+        protected int[] tokens = new int[(100 + currentStringLength / 20) * TOKEN_STRIDE];
+        protected int tokenCount = 0;
+        // range nodes are limited to while the children of emphasis or strikethrough markers are visited
+        protected int limitStart = 0;
+        protected int limitEnd = Integer.MAX_VALUE;
+
+        protected void addLexerToken(int start, int end, IElementType tokenType, int nesting) {
+            if ((tokenCount + 1) * TOKEN_STRIDE > tokens.length) tokens = Arrays.copyOf(tokens, tokens.length * 2);
 
-        public ArrayList<LexerToken> getTokens() { return tokens; }
+            int i = tokenCount * TOKEN_STRIDE;
+            tokens[i + TOKEN_START] = start;
+            tokens[i + TOKEN_END] = end;
+            tokens[i + TOKEN_NESTING] = nesting;
+            tokens[i + TOKEN_TYPE] = tokenType.getIndex();
+            tokenCount++;
+        }
+
+        protected void addLexerToken(Range range, IElementType tokenType) {
+            addLexerToken(range.start, range.end, tokenType, Integer.MAX_VALUE);
+        }
 
         class ParserNodeInfo {
             public int startIndex = 0;
@@ -495,8 +522,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
                 if (!abbreviations.containsKey(abbr)) {
                     // we overwrite the old values? or we keep them all for error resolution
                     abbreviations.put(abbr, abbrNodeInfo);
-                    if (abbreviationsRegEx.length() > 0) abbreviationsRegEx += "|";
-                    abbreviationsRegEx += "\\b\\Q" + abbr + "\\E\\b";
+                    abbreviationList.add(abbr);
                 }
             }
 
@@ -538,8 +564,8 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
 
         protected void addTextTokenWithAbbreviations(TextNode node, IElementType tokenType, IElementType abbreviationType) {
-            int endIndex = node.getEndIndex();
-            int startIndex = node.getStartIndex();
+            int endIndex = getEnd(node);
+            int startIndex = getStart(node);
 
             // compensate for missing EOL at end of input causes pegdown to return a range past end of input
             // in this case IDEA ignores the range. :(
@@ -549,27 +575,26 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
             if (!range.isEmpty() && (parentRanges.size() <= 0 || excludeAncestors(range, tokenType))) {
                 // wasn't stripped out, set it
                 // see if it contains abbreviations, we color them differently from text
-                if (abbreviationsPattern == null) {
-                    abbreviationsPattern = Pattern.compile(abbreviationsRegEx);
+                if (abbreviationMatcher == null) {
+                    abbreviationMatcher = MultiMarkdownAbbreviationMatcher.getMatcher(abbreviationList);
                 }
 
                 String nodeText = node.getText();// currentString.substring(startIndex, endIndex);
-                Matcher m = abbreviationsPattern.matcher(nodeText);
+                int[] matches = abbreviationMatcher.findMatches(nodeText);
                 int lastPos = startIndex;
 
-                while (m.find()) {
-                    //String found = m.group();
-                    int foundStart = startIndex + m.start(0);
-                    int foundEnd = startIndex + m.end(0);
+                for (int i = 0; i < matches.length; i += 2) {
+                    int foundStart = startIndex + matches[i];
+                    int foundEnd = startIndex + matches[i + 1];
 
                     if (lastPos < foundStart) {
                         range = new Range(lastPos, foundStart);
-                        tokens.add(new LexerToken(range, tokenType));
+                        addLexerToken(range, tokenType);
                     }
 
                     if (foundStart < foundEnd) {
                         range = new Range(foundStart, foundEnd);
-                        tokens.add(new LexerToken(range, abbreviationType));
+                        addLexerToken(range, abbreviationType);
                     }
 
                     lastPos = foundEnd;
@@ -577,7 +602,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
                 if (lastPos < endIndex) {
                     range = new Range(lastPos, endIndex);
-                    tokens.add(new LexerToken(range, tokenType));
+                    addLexerToken(range, tokenType);
                 }
 
                 //System.out.print("adding " + tokenType + " for [" + range.getStart() + ", " + range.getEnd() + ")\n");
@@ -616,25 +641,30 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
 
         public void visit(SpecialTextNode node) {
-            if ((node.getEndIndex() - node.getStartIndex() > 1)) addToken(node, SPECIAL_TEXT);
+            if ((getEnd(node) - getStart(node) > 1)) addToken(node, SPECIAL_TEXT);
             else visit((TextNode) node); // so that it is handled in TextNode manner
         }
 
         protected void splitOutMarker(StrongEmphSuperNode node, IElementType markerType) {
             String marker = node.getChars();// != null ? node.getChars() : "~~";
             int markerLength = marker.length();
+            int startIndex = getStart(node);
+            int endIndex = getEnd(node);
 
             ArrayList<Node> children = new ArrayList<Node>(1);
             children.add(node);
 
-            SuperNode parentNode = new SuperNode(children);
-            parentNode.setStartIndex(node.getStartIndex());
-            parentNode.setEndIndex(node.getEndIndex());
+            // now need to truncate children to the range between the markers, while they are visited, the tree is
+            // shared with the preview and must not be changed
+            int prevLimitStart = limitStart;
+            int prevLimitEnd = limitEnd;
+            limitStart = startIndex + markerLength;
+            limitEnd = endIndex - (node.isClosed() ? markerLength : 0);
 
-            // now need to truncate children to this range
-            limitChildrensRange(parentNode, node.getStartIndex() + markerLength, node.getEndIndex() - (node.isClosed() ? markerLength : 0));
+            addTokenWithChildren(startIndex, endIndex, markerType, children);
 
-            addTokenWithChildren(parentNode, markerType);
+            limitStart = prevLimitStart;
+            limitEnd = prevLimitEnd;
         }
 
         /**
@@ -693,12 +723,15 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
             return lastChild;
         }
 
-        protected void limitChildrensRange(SuperNode parentNode, int startIndex, int endIndex) {
-            for (Node node : parentNode.getChildren()) {
-                if (node.getStartIndex() < startIndex) ((AbstractNode) node).setStartIndex(startIndex);
-                if (node.getEndIndex() > endIndex) ((AbstractNode) node).setEndIndex(endIndex);
-                if (node instanceof SuperNode) limitChildrensRange((SuperNode) node, startIndex, endIndex);
-            }
+        // node range limited to the range of the markers being split out
+        protected int getStart(Node node) {
+            int startIndex = node.getStartIndex();
+            return startIndex < limitStart ? limitStart : startIndex;
+        }
+
+        protected int getEnd(Node node) {
+            int endIndex = node.getEndIndex();
+            return endIndex > limitEnd ? limitEnd : endIndex;
         }
 
         public void visit(ExpImageNode node) {
@@ -767,44 +800,44 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
             int pos = 0;
 
             if ((pos = text.indexOf("|")) >= 0) {
-                addToken(node.getStartIndex(), node.getStartIndex() + 2, WIKI_LINK_OPEN);
+                addToken(getStart(node), getStart(node) + 2, WIKI_LINK_OPEN);
                 if (githubWikiLinks) {
                     int anchorPos = text.indexOf('#', pos + 1);
-                    addToken(node.getStartIndex() + 2, node.getStartIndex() + 2 + pos, WIKI_LINK_TEXT);
-                    addToken(node.getStartIndex() + 2 + pos, node.getStartIndex() + 2 + pos + 1, WIKI_LINK_SEPARATOR);
+                    addToken(getStart(node) + 2, getStart(node) + 2 + pos, WIKI_LINK_TEXT);
+                    addToken(getStart(node) + 2 + pos, getStart(node) + 2 + pos + 1, WIKI_LINK_SEPARATOR);
                     if (anchorPos >= 0) {
-                        addToken(node.getStartIndex() + 2 + pos + 1, node.getStartIndex() + 2 + anchorPos, WIKI_LINK_REF);
-                        addToken(node.getStartIndex() + 2 + anchorPos, node.getStartIndex() + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
-                        addToken(node.getStartIndex() + 2 + anchorPos + 1, node.getEndIndex() - 2, WIKI_LINK_REF_ANCHOR);
+                        addToken(getStart(node) + 2 + pos + 1, getStart(node) + 2 + anchorPos, WIKI_LINK_REF);
+                        addToken(getStart(node) + 2 + anchorPos, getStart(node) + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
+                        addToken(getStart(node) + 2 + anchorPos + 1, getEnd(node) - 2, WIKI_LINK_REF_ANCHOR);
                     } else {
-                        addToken(node.getStartIndex() + 2 + pos + 1, node.getEndIndex() - 2, WIKI_LINK_REF);
+                        addToken(getStart(node) + 2 + pos + 1, getEnd(node) - 2, WIKI_LINK_REF);
                     }
-                    addToken(node.getEndIndex() - 2, node.getEndIndex(), WIKI_LINK_CLOSE);
+                    addToken(getEnd(node) - 2, getEnd(node), WIKI_LINK_CLOSE);
                 } else {
                     int anchorPos = text.indexOf('#');
                     if (anchorPos > pos) anchorPos = -1;
                     if (anchorPos >= 0) {
-                        addToken(node.getStartIndex() + 2, node.getStartIndex() + 2 + anchorPos, WIKI_LINK_REF);
-                        addToken(node.getStartIndex() + 2 + anchorPos, node.getStartIndex() + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
-                        addToken(node.getStartIndex() + 2 + anchorPos + 1, node.getStartIndex() + 2 + pos, WIKI_LINK_REF_ANCHOR);
+                        addToken(getStart(node) + 2, getStart(node) + 2 + anchorPos, WIKI_LINK_REF);
+                        addToken(getStart(node) + 2 + anchorPos, getStart(node) + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
+                        addToken(getStart(node) + 2 + anchorPos + 1, getStart(node) + 2 + pos, WIKI_LINK_REF_ANCHOR);
                     } else {
-                        addToken(node.getStartIndex() + 2, node.getStartIndex() + 2 + pos, WIKI_LINK_REF);
+                        addToken(getStart(node) + 2, getStart(node) + 2 + pos, WIKI_LINK_REF);
                     }
-                    addToken(node.getStartIndex() + 2 + pos, node.getStartIndex() + 2 + pos + 1, WIKI_LINK_SEPARATOR);
-                    addToken(node.getStartIndex() + 2 + pos + 1, node.getEndIndex() - 2, WIKI_LINK_TEXT);
-                    addToken(node.getEndIndex() - 2, node.getEndIndex(), WIKI_LINK_CLOSE);
+                    addToken(getStart(node) + 2 + pos, getStart(node) + 2 + pos + 1, WIKI_LINK_SEPARATOR);
+                    addToken(getStart(node) + 2 + pos + 1, getEnd(node) - 2, WIKI_LINK_TEXT);
+                    addToken(getEnd(node) - 2, getEnd(node), WIKI_LINK_CLOSE);
                 }
             } else {
-                addToken(node.getStartIndex(), node.getStartIndex() + 2, WIKI_LINK_OPEN);
+                addToken(getStart(node), getStart(node) + 2, WIKI_LINK_OPEN);
                 int anchorPos = text.indexOf('#');
                 if (anchorPos >= 0) {
-                    addToken(node.getStartIndex() + 2, node.getStartIndex() + 2 + anchorPos, WIKI_LINK_REF);
-                    addToken(node.getStartIndex() + 2 + anchorPos, node.getStartIndex() + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
-                    addToken(node.getStartIndex() + 2 + anchorPos + 1, node.getEndIndex() - 2, WIKI_LINK_REF_ANCHOR);
+                    addToken(getStart(node) + 2, getStart(node) + 2 + anchorPos, WIKI_LINK_REF);
+                    addToken(getStart(node) + 2 + anchorPos, getStart(node) + 2 + anchorPos + 1, WIKI_LINK_REF_ANCHOR_MARKER);
+                    addToken(getStart(node) + 2 + anchorPos + 1, getEnd(node) - 2, WIKI_LINK_REF_ANCHOR);
                 } else {
-                    addToken(node.getStartIndex() + 2, node.getEndIndex() - 2, WIKI_LINK_REF);
+                    addToken(getStart(node) + 2, getEnd(node) - 2, WIKI_LINK_REF);
                 }
-                addToken(node.getEndIndex() - 2, node.getEndIndex(), WIKI_LINK_CLOSE);
+                addToken(getEnd(node) - 2, getEnd(node), WIKI_LINK_CLOSE);
             }
         }
 
@@ -832,7 +865,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
                 TaskListNode taskListNode = (TaskListNode) node;
 
                 // marker is only the marker characters
-                newNode.setStartIndex(taskListNode.getStartIndex() - taskListNode.getTaskListMarker().length());
+                newNode.setStartIndex(getStart(taskListNode) - taskListNode.getTaskListMarker().length());
                 newNode.setEndIndex(newNode.getStartIndex() + 3);
 
                 // new node is all the text following
@@ -945,16 +978,16 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
                     endPos = startComment;
                     if (lastPos < endPos) {
                         textNode = factory.newNode(html.substring(lastPos, endPos));
-                        textNode.setStartIndex(node.getStartIndex() + lastPos);
-                        textNode.setEndIndex(node.getStartIndex() + endPos);
+                        textNode.setStartIndex(getStart(node) + lastPos);
+                        textNode.setEndIndex(getStart(node) + endPos);
                         nodes.add(textNode);
                     }
 
                     lastPos = startComment;
                     endPos = m.end(0);
                     commentNode = new CommentNode(html.substring(lastPos, endPos));
-                    commentNode.setStartIndex(node.getStartIndex() + lastPos);
-                    commentNode.setEndIndex(node.getStartIndex() + endPos);
+                    commentNode.setStartIndex(getStart(node) + lastPos);
+                    commentNode.setEndIndex(getStart(node) + endPos);
                     nodes.add(commentNode);
 
                     lastPos = endPos;
@@ -966,8 +999,8 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
                 endPos = html.length();
                 if (lastPos < endPos) {
                     textNode = factory.newNode(html.substring(lastPos, endPos));
-                    textNode.setStartIndex(node.getStartIndex() + lastPos);
-                    textNode.setEndIndex(node.getStartIndex() + endPos);
+                    textNode.setStartIndex(getStart(node) + lastPos);
+                    textNode.setEndIndex(getStart(node) + endPos);
                     nodes.add(textNode);
                 }
 
@@ -1010,6 +1043,8 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
 
         protected void visitChildren(List<Node> children) {
+            ProgressManager.checkCanceled();
+
             // here we combine multiple segments of TextNode and SpecialText into a single TextNode
             int startIndex = 0, endIndex = 0;
             String combinedText = null;
@@ -1017,12 +1052,12 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
             for (Node child : children) {
                 boolean processed = false;
-                if (child.getClass() == TextNode.class || (child.getClass() == SpecialTextNode.class && child.getEndIndex() - child.getStartIndex() <= 1)) {
+                if (child.getClass() == TextNode.class || (child.getClass() == SpecialTextNode.class && getEnd(child) - getStart(child) <= 1)) {
                     if (combinedText != null) {
                         // combine range and text, if possible
-                        if (endIndex == child.getStartIndex()) {
+                        if (endIndex == getStart(child)) {
                             // combine
-                            endIndex = child.getEndIndex();
+                            endIndex = getEnd(child);
                             combinedText += ((TextNode) child).getText();
                             lastTextNode = null;
                             processed = true;
@@ -1043,8 +1078,8 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
                     }
 
                     if (combinedText == null) {
-                        startIndex = child.getStartIndex();
-                        endIndex = child.getEndIndex();
+                        startIndex = getStart(child);
+                        endIndex = getEnd(child);
                         combinedText = ((TextNode) child).getText();
                         lastTextNode = child;
                         processed = true;
@@ -1084,22 +1119,15 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
 
         protected boolean excludeAncestors(Range range, IElementType type) {
-            for (SegmentedRange parentRange : parentRanges) {
-                if (parentRange != null && parentRange.isExcludedBy(type)) {
-                    //System.out.println("Excluding parent " + parentRange + " by " + type + " " + range);
-                    parentRange.exclude(range);
-                    //System.out.println("    Excluded parent " + parentRange + " by " + type + " " + range + "\n");
-                }
-            }
-            return true;
+            return excludeAncestors(range.start, range.end, type);
         }
 
-        protected boolean excludeAncestors(SegmentedRange segmentedRange) {
-            for (SegmentedRange parentRange : parentRanges) {
-                if (parentRange != null && parentRange.isExcludedBy(segmentedRange.getTokenType())) {
-                    //System.out.println("Excluding parent " + parentRange + " by " + segmentedRange);
-                    parentRange.exclude(segmentedRange);
-                    //System.out.println("    Excluded parent " + parentRange + " by " + segmentedRange + "\n");
+        protected boolean excludeAncestors(int start, int end, IElementType type) {
+            for (int i = 0, iMax = parentRanges.size(); i < iMax; i++) {
+                SegmentedRange parentRange = parentRanges.get(i);
+                if (parentRange != null && !parentRange.isEmpty() && parentRange.isExcludedBy(type)) {
+                    //System.out.println("Excluding parent " + parentRange + " by " + type + " [" + start + ", " + end + ")");
+                    parentRange.exclude(start, end);
                 }
             }
             return true;
@@ -1112,18 +1140,18 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
                 //System.out.println("split combos " + segmentedRange.toString());
 
-                if (combinationSplits.containsKey(tokenType)) {
+                if (hasCombinationSplits(tokenType)) {
                     SegmentedRange combinationRange = null;
 
                     // here we have to combine bold and italic into bolditalic, etc of our parent ranges
                     for (SegmentedRange parentRange : parentRanges) {
+                        IElementType splitType;
                         if (tokenType != parentRange.getTokenType()
                                 && !parentRange.isEmpty()
-                                && combinationSplits.containsKey(tokenType)
-                                && combinationSplits.get(tokenType).containsKey(parentRange.getTokenType())) {
+                                && (splitType = getCombinationSplit(tokenType, parentRange.getTokenType())) != null) {
 
                             // we will create an intersection and make it punch through parents and this range
-                            tokenType = combinationSplits.get(tokenType).get(parentRange.getTokenType());
+                            tokenType = splitType;
                             SegmentedRange splitRange = new SegmentedRange();
                             splitRange.setTokenType(tokenType);
                             splitRange.addIntersections(segmentedRange, parentRange);
@@ -1150,7 +1178,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
         }
 
         protected void addTokenWithChildren(Node node, IElementType tokenType, List<Node> children) {
-            addTokenWithChildren(node.getStartIndex(), node.getEndIndex(), tokenType, children);
+            addTokenWithChildren(getStart(node), getEnd(node), tokenType, children);
         }
 
         protected void addTokenWithChildren(int startIndex, int endIndex, IElementType tokenType, List<Node> children) {
@@ -1211,24 +1239,27 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
 
         protected void addSegmentedToken(SegmentedRange segmentedRange, boolean excludeAncestors) {
             IElementType tokenType = segmentedRange.getTokenType();
-            boolean renderRange = !excludedTokenTypes.contains(tokenType);
+            boolean renderRange = tokenType == null || !excludedTokenTypes.get(tokenType.getIndex());
 
             if (parentRanges.size() <= 0) excludeAncestors = false;
 
-            for (Range range : segmentedRange.getSegments()) {
+            for (int i = 0; i < segmentedRange.getSegmentCount(); i++) {
+                int start = segmentedRange.getStart(i);
+                int end = segmentedRange.getEnd(i);
+
                 // now exclude from ancestors what is left by the children
-                if (!excludeAncestors || excludeAncestors(range, tokenType)) {
+                if (!excludeAncestors || excludeAncestors(start, end, tokenType)) {
                     // wasn't stripped out, set it
                     if (renderRange) {
-                        tokens.add(new LexerToken(range, tokenType, parentRanges.size()));
-                        //System.out.print("adding " + tokenType + " for [" + range.getStart() + ", " + range.getEnd() + ")\n");
+                        addLexerToken(start, end, tokenType, parentRanges.size());
+                        //System.out.print("adding " + tokenType + " for [" + start + ", " + end + ")\n");
                     }
                 }
             }
         }
 
         protected void addToken(Node node, IElementType tokenType) {
-            addToken(node.getStartIndex(), node.getEndIndex(), tokenType);
+            addToken(getStart(node), getEnd(node), tokenType);
         }
 
         protected void addToken(Range range, IElementType tokenType) {
@@ -1246,7 +1277,7 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
             Range range = new Range(startIndex, endIndex);
             if (!range.isEmpty() && (parentRanges.size() <= 0 || excludeAncestors(range, tokenType))) {
                 // wasn't stripped out, set it
-                tokens.add(new LexerToken(range, tokenType));
+                addLexerToken(range, tokenType);
                 //System.out.print("adding " + tokenType + " for [" + range.getStart() + ", " + range.getEnd() + ")\n");
             }
         }
@@ -1309,152 +1340,125 @@ public class MultiMarkdownLexParser { //implements Lexer, PsiParser {
             return !isEmpty();
         }
 
-        public int compare(Range that) {
-            if (this.start < that.start) {
-                return -1;
-            } else if (this.start > that.start) {
-                return 1;
-            } else if (this.end > that.end) {
-                return -1;
-            } else if (this.end < that.end) {
-                return 1;
-            }
-            return 0;
-        }
-
         @Override
         public String toString() {
             return "[" + start + ", " + end + ")";
         }
-
-        public boolean isAdjacent(Range that) {
-            return this.start == that.end || this.end == that.start;
-        }
-
-        public void expandToInclude(Range that) {
-            if (this.start > that.start) this.start = that.start;
-            if (this.end < that.end) this.end = that.end;
-        }
     }
 
+    /**
+     * Ranges of a parent token that are left after its children punched out their ranges. Segments are kept sorted
+     * and non-overlapping, packed as start, end pairs, so that the segments affected by a child are found with a
+     * binary search instead of a scan of all segments.
+     */
     static class SegmentedRange {
 
-        protected ArrayList<Range> segments;
+        protected int[] segments;
+        protected int size;
         protected IElementType tokenType;
-
-        public ArrayList<Range> getSegments() { return segments; }
+        protected BitSet notExcludedBy;
 
         public IElementType getTokenType() { return tokenType; }
 
-        public void setTokenType(IElementType tokenType) { this.tokenType = tokenType; }
+        public void setTokenType(IElementType tokenType) {
+            this.tokenType = tokenType;
+            this.notExcludedBy = tokenType == null ? null : getExclusions(tokenType);
+        }
+
+        public boolean isEmpty() { return size == 0; }
+
+        public int getSegmentCount() { return size; }
 
-        public boolean isEmpty() { return segments.isEmpty(); }
+        public int getStart(int index) { return segments[index * 2]; }
 
-        SegmentedRange() { segments = new ArrayList<Range>(); }
+        public int getEnd(int index) { return segments[index * 2 + 1]; }
+
+        SegmentedRange() { segments = new int[4]; }
 
         SegmentedRange(int start, int end) {
-            segments = new ArrayList<Range>(1);
-            segments.add(0, new Range(start, end));
+            segments = new int[4];
+            segments[0] = start;
+            segments[1] = end;
+            size = 1;
         }
 
         SegmentedRange(Range range) {
-            segments = new ArrayList<Range>(1);
-            segments.add(0, range);
+            this(range.start, range.end);
         }
 
-        SegmentedRange(ArrayList<Range> ranges) { segments = new ArrayList<Range>(ranges); }
-
-        SegmentedRange(SegmentedRange that) { segments = new ArrayList<Range>(that.segments); }
+        protected void add(int start, int end) {
+            insert(size, start, end);
+        }
 
-        public boolean doesContain(Range range) {
-            for (Range range1 : segments) {
-                if (range1.doesContain(range)) return true;
-            }
-            return false;
+        protected void insert(int index, int start, int end) {
+            if ((size + 1) * 2 > segments.length) segments = Arrays.copyOf(segments, segments.length * 2);
+            if (index < size) System.arraycopy(segments, index * 2, segments, index * 2 + 2, (size - index) * 2);
+            segments[index * 2] = start;
+            segments[index * 2 + 1] = end;
+            size++;
         }
 
-        public void addIntersections(Range range, SegmentedRange segmentedRange) {
-            for (Range range1 : segmentedRange.getSegments()) {
-                if (range.doesOverlap(range1)) {
-                    Range newRange = new Range(range);
-                    newRange.intersect(range1);
-                    segments.add(newRange);
-                }
-            }
+        protected void remove(int index) {
+            size--;
+            if (index < size) System.arraycopy(segments, index * 2 + 2, segments, index * 2, (size - index) * 2);
         }
 
         public void addIntersections(SegmentedRange segmentedRange1, SegmentedRange segmentedRange2) {
-            for (Range range1 : segmentedRange1.getSegments()) {
-                for (Range range2 : segmentedRange2.getSegments()) {
-                    if (range1.doesOverlap(range2)) {
-                        Range newRange = new Range(range1);
-                        newRange.intersect(range2);
-                        segments.add(newRange);
-                    }
+            // both are sorted so the overlapping pairs are found in one pass
+            int i = 0, j = 0;
+            while (i < segmentedRange1.size && j < segmentedRange2.size) {
+                int start1 = segmentedRange1.getStart(i), end1 = segmentedRange1.getEnd(i);
+                int start2 = segmentedRange2.getStart(j), end2 = segmentedRange2.getEnd(j);
+
+                if (!(end2 <= start1 || start2 >= end1)) {
+                    add(Math.max(start1, start2), Math.min(end1, end2));
                 }
+
+                if (end1 < end2) i++;
+                else j++;
             }
         }
 
-        public SegmentedRange exclude(SegmentedRange segmentedRange) {
-            for (Range range : segmentedRange.getSegments()) {
-                exclude(range);
+        /**
+         * @return index of the first segment that ends after offset
+         */
+        protected int getSegmentIndex(int offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (segments[mid * 2 + 1] <= offset) low = mid + 1;
+                else high = mid;
             }
-            return this;
+            return low;
         }
 
-        public SegmentedRange exclude(Range range) {
-            int i, iMax = segments.size();
-
-            for (i = 0; i < iMax; i++) {
-                Range range1 = segments.get(i);
-                if (range1.doesOverlap(range)) {
-                    if (range1.doesContain(range)) {
-                        if (range1.doesProperlyContain(range)) {
-                            // split range1 into 2 and add the new one
-                            Range newRange1 = new Range(range1);
-                            Range newRange2 = new Range(range1);
-                            newRange1.setEnd(range.getStart());
-                            newRange2.setStart(range.getEnd());
-                            segments.set(i, newRange1);
-                            i++;
-                            segments.add(i, newRange2);
-                            iMax++;
-                        } else {
-                            if (range1.isEqual(range)) {
-                                // remove, they are the same
-                                segments.remove(i);
-                                i--;
-                                iMax--;
-                            } else {
-                                // truncate range1 and replace
-                                Range newRange1 = new Range(range1);
-                                newRange1.exclude(range);
-                                segments.set(i, newRange1);
-                            }
-                        }
-                    } else if (range.doesContain(range1)) {
-                        // delete it
-                        segments.remove(i);
-                        i--;
-                        iMax--;
-                    } else {
-                        // they overlap but neither contains the other
-                        // truncate range1 and replace
-                        Range newRange1 = new Range(range1);
-                        newRange1.exclude(range);
-                        segments.set(i, newRange1);
-                    }
+        public SegmentedRange exclude(int start, int end) {
+            // segments that overlap the range, what is left of each is the part before and the part after the range
+            for (int i = getSegmentIndex(start); i < size && segments[i * 2] < end; i++) {
+                int start1 = segments[i * 2];
+                int end1 = segments[i * 2 + 1];
+
+                if (start1 < start) {
+                    segments[i * 2 + 1] = start;
+                    if (end < end1) insert(++i, end, end1);
+                } else if (end < end1) {
+                    segments[i * 2] = end;
+                } else {
+                    remove(i--);
                 }
             }
             return this;
         }
 
-        protected boolean isExcludedBy(IElementType child) { return !isExcluded(tokenType, child); }
+        protected boolean isExcludedBy(IElementType child) {
+            return child != null && notExcludedBy != null && !notExcludedBy.get(child.getIndex());
+        }
 
         @Override
         public String toString() {
             String out = "" + tokenType + " ";
-            if (!isEmpty()) for (Range range : segments) out += range.toString();
+            if (!isEmpty()) for (int i = 0; i < size; i++) out += "[" + getStart(i) + ", " + getEnd(i) + ")";
             else out += "<empty>";
             return out;
         }
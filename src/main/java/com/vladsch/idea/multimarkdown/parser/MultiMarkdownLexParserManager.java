@@ -23,130 +23,396 @@
  */
 package com.vladsch.idea.multimarkdown.parser;
 
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.text.CharArrayUtil;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.parboiled.errors.ParserRuntimeException;
+import org.pegdown.Extensions;
 import org.pegdown.ParsingTimeoutException;
 import org.pegdown.PegDownProcessor;
-import org.pegdown.ast.Node;
 import org.pegdown.ast.RootNode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MultiMarkdownLexParserManager {
     private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownLexParserManager.class);
     private static final boolean log = false;
-    private static final boolean disable = true;
 
-    private static final ThreadLocal<ParsingInfo> lastParsingResult = new ThreadLocal<ParsingInfo>();
+    private static final MultiMarkdownParseCache parseCache = new MultiMarkdownParseCache();
+    private static final AtomicLong documentParseCount = new AtomicLong();
+    private static final AtomicLong pegdownRunCount = new AtomicLong();
+    private static final AtomicLong degradedBlocks = new AtomicLong();
     public static final int GITHUB_WIKI_LINKS = 0x80000000;
 
+    // size of the chunks a document is re-parsed in when pegdown fails on it
+    public static final int DEGRADED_CHUNK_LENGTH = 4 * 1024;
+
+    @NotNull
+    public static MultiMarkdownParseCache getParseCache() {
+        return parseCache;
+    }
+
+    protected static int getActualPegdownExtensions(@Nullable Integer pegdownExtensions) {
+        return (pegdownExtensions != null ? pegdownExtensions : MultiMarkdownGlobalSettings.getInstance().getExtensionsValue()) | (MultiMarkdownGlobalSettings.getInstance().githubWikiLinks.getValue() ? GITHUB_WIKI_LINKS : 0);
+    }
+
+    protected static int getActualParsingTimeout(@Nullable Integer parsingTimeout) {
+        return parsingTimeout != null ? parsingTimeout : MultiMarkdownGlobalSettings.getInstance().parsingTimeout.getValue();
+    }
+
+    /**
+     * Create pegdown processors for the configured settings ahead of the first parse. Call from a background thread.
+     */
+    public static void prewarmProcessors() {
+        MultiMarkdownGlobalSettings settings = MultiMarkdownGlobalSettings.getInstance();
+        int options = settings.getExtensionsValue();
+        int parsingTimeout = getActualParsingTimeout(null);
+
+        // lexer and JavaFX preview
+        MultiMarkdownProcessorPool.prewarm(getActualPegdownExtensions(options), parsingTimeout);
+
+        if (settings.useOldPreview.getValue()) {
+            // Swing preview drops task list items and wraps anchor links
+            int previewOptions = (options & ~Extensions.TASKLISTITEMS) | ((options & Extensions.EXTANCHORLINKS) != 0 ? Extensions.EXTANCHORLINKS_WRAP : 0);
+            MultiMarkdownProcessorPool.prewarm(getActualPegdownExtensions(previewOptions), parsingTimeout);
+        }
+    }
+
+    public static RootNode parseMarkdownRoot(@NotNull final Document document, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
+        return parseMarkdownRoot(document, getActualPegdownExtensions(pegdownExtensions), getActualParsingTimeout(parsingTimeout));
+    }
+
     public static RootNode parseMarkdownRoot(@NotNull final CharSequence buffer, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
-        int actualPegdownExtensions = (pegdownExtensions != null ? pegdownExtensions : MultiMarkdownGlobalSettings.getInstance().getExtensionsValue()) | (MultiMarkdownGlobalSettings.getInstance().githubWikiLinks.getValue() ? GITHUB_WIKI_LINKS : 0);
+        return parseMarkdownRoot(buffer, getActualPegdownExtensions(pegdownExtensions), getActualParsingTimeout(parsingTimeout));
+    }
+
+    /**
+     * Preview's parse of the document with the actual extensions, including {@link #GITHUB_WIKI_LINKS}, and timeout,
+     * global settings are not consulted.
+     */
+    protected static RootNode parseMarkdownRoot(@NotNull final Document document, int actualPegdownExtensions, int actualParsingTimeout) {
+        return getParsingInfo(document, document.getCharsSequence(), actualPegdownExtensions, actualParsingTimeout).getRootNode();
+    }
+
+    protected static RootNode parseMarkdownRoot(@NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout) {
+        return getParsingInfo(null, buffer, actualPegdownExtensions, actualParsingTimeout).getRootNode();
+    }
+
+    /**
+     * Parse a snapshot of the document's text and cache the root node for the preview. The entry is keyed by
+     * the text because the document may have changed since the snapshot was taken, the document only selects the
+     * parse time budget.
+     */
+    @NotNull
+    public static MultiMarkdownParseCache.Entry parseSnapshot(@NotNull final Document document, @NotNull final CharSequence text, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
+        return parseSnapshot(document, text, getActualPegdownExtensions(pegdownExtensions), getActualParsingTimeout(parsingTimeout));
+    }
+
+    @NotNull
+    protected static MultiMarkdownParseCache.Entry parseSnapshot(@NotNull final Document document, @NotNull final CharSequence text, int actualPegdownExtensions, int actualParsingTimeout) {
+        return getParsingInfo(null, document, text, actualPegdownExtensions, actualParsingTimeout);
+    }
+
+    public static
+    @Nullable
+    MultiMarkdownLexerTokens parseMarkdown(@NotNull final CharSequence buffer, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
+        return getLexerParsingInfo(buffer, pegdownExtensions, parsingTimeout).getLexerTokens();
+    }
 
-        if (!disable) {
-            final ParsingInfo info = lastParsingResult.get();
-            if (info != null && info.pegdownExtensions == actualPegdownExtensions && info.bufferHash == buffer.hashCode() && info.buffer.equals(buffer)) {
-                if (log) logger.info("Root Parsing request satisfied by cache for thread " + Thread.currentThread());
-                return info.rootNode;
+    /**
+     * Parsing result for the lexer, tokens and top level blocks. Large buffers are re-lexed incrementally when
+     * they are an edited version of a recently lexed text.
+     */
+    @NotNull
+    public static MultiMarkdownParseCache.Entry getLexerParsingInfo(@NotNull final CharSequence buffer, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
+        return getLexerParsingInfo(buffer, getActualPegdownExtensions(pegdownExtensions), getActualParsingTimeout(parsingTimeout));
+    }
+
+    @NotNull
+    protected static MultiMarkdownParseCache.Entry getLexerParsingInfo(@NotNull final CharSequence buffer, final int actualPegdownExtensions, final int actualParsingTimeout) {
+        MultiMarkdownParseCache.Entry info = parseCache.get(null, buffer, actualPegdownExtensions, actualParsingTimeout, false);
+        if (info != null) return info;
+
+        if (buffer.length() >= MultiMarkdownIncrementalParser.MIN_INCREMENTAL_LENGTH) {
+            MultiMarkdownParseCache.Entry previous = parseCache.getLatestLexed(actualPegdownExtensions);
+            if (previous != null) {
+                MultiMarkdownLexerTokens lexerTokens = MultiMarkdownIncrementalParser.reparse(previous, buffer, new MultiMarkdownIncrementalParser.ChunkParser() {
+                    @Nullable
+                    @Override
+                    public MultiMarkdownLexerTokens parseChunk(@NotNull CharSequence chunk) {
+                        RootNode rootNode = parseRootNode(chunk, actualPegdownExtensions, actualParsingTimeout, null);
+                        return rootNode == null ? null : new MultiMarkdownLexParser().parseMarkdown(rootNode, chunk.length(), actualPegdownExtensions);
+                    }
+                });
+
+                if (lexerTokens != null) {
+                    if (log) logger.info("Lexer request satisfied by incremental re-lexing " + parseCache);
+                    return parseCache.putLexerTokens(buffer, actualPegdownExtensions, actualParsingTimeout, lexerTokens);
+                }
             }
+        }
+
+        return getParsingInfo(null, buffer, actualPegdownExtensions, actualParsingTimeout);
+    }
+
+    /**
+     * Number of times a document version was parsed, used to make sure that each version of a document is parsed only once.
+     * A document parse can run pegdown several times, on parallel chunks or on blocks after a failure.
+     */
+    public static long getDocumentParseCount() {
+        return documentParseCount.get();
+    }
+
+    /**
+     * Number of times pegdown was run, on whole texts, parallel chunks or blocks.
+     */
+    public static long getPegdownRunCount() {
+        return pegdownRunCount.get();
+    }
+
+    /**
+     * Number of parse requests that were served from the cache or by a parse of the same text on another thread
+     */
+    public static long getSavedParseCount() {
+        return parseCache.getSavedParses();
+    }
+
+    /**
+     * Number of blocks that pegdown could not parse and that were handled by the fallback parser instead.
+     */
+    public static long getDegradedBlocks() {
+        return degradedBlocks.get();
+    }
+
+    /**
+     * Get the cached parsing result for the buffer or parse it once and cache the result. All parse requests,
+     * root node or lexer tokens, go through here.
+     */
+    @NotNull
+    protected static MultiMarkdownParseCache.Entry getParsingInfo(@Nullable final Document document, @NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout) {
+        return getParsingInfo(document, document, buffer, actualPegdownExtensions, actualParsingTimeout);
+    }
 
-            if (log) logger.info("Root Parsing request not satisfied by cache for thread " + Thread.currentThread());
+    /**
+     * @param budgetDocument document whose learned parse time budget applies to the parse, can be given without
+     *                       document when the buffer is only a snapshot of the document's text
+     */
+    @NotNull
+    protected static MultiMarkdownParseCache.Entry getParsingInfo(@Nullable final Document document, @Nullable final Document budgetDocument, @NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout) {
+        MultiMarkdownParseCache.Entry info = parseCache.get(document, buffer, actualPegdownExtensions, actualParsingTimeout, true);
+        if (info != null) {
+            if (log) logger.info("Parsing request satisfied by cache for thread " + Thread.currentThread() + " " + parseCache);
+            return info;
         }
-        PegDownProcessor processor = new PegDownProcessor(actualPegdownExtensions, parsingTimeout != null ? parsingTimeout : MultiMarkdownGlobalSettings.getInstance().parsingTimeout.getValue());
 
-        char[] currentChars = buffer.toString().toCharArray();
-        RootNode rootNode = processor.parseMarkdown(currentChars);
-        String exceptionText = null;
+        if (log) logger.info("Parsing request not satisfied by cache for thread " + Thread.currentThread() + " " + parseCache);
+
+        // the highlighting and PSI lexers ask for a new version of the text at the same time, only one parses it
+        MultiMarkdownParseCache.Pending claimed = parseCache.claim(buffer, actualPegdownExtensions);
+        if (!claimed.isOwner()) {
+            info = parseCache.join(claimed, actualParsingTimeout, true);
+            if (info != null) {
+                if (log) logger.info("Parsing request satisfied by parse on another thread " + parseCache);
+                return info;
+            }
+        }
 
         try {
-            rootNode = processor.parseMarkdown(currentChars);
-        } catch (ParsingTimeoutException e) {
-            exceptionText = e.getMessage();
-        } catch (ParserRuntimeException e) {
-            exceptionText = e.getMessage();
+            int[] timedOut = new int[1];
+            RootNode rootNode = parseBuffer(budgetDocument, buffer, actualPegdownExtensions, actualParsingTimeout, timedOut);
+
+            // a degraded result is only good for requests that would not give pegdown more time than it had
+            info = parseCache.put(document, buffer, actualPegdownExtensions, timedOut[0] != 0 ? timedOut[0] : actualParsingTimeout, rootNode, timedOut[0] != 0);
+            return info;
+        } finally {
+            if (claimed.isOwner()) parseCache.release(claimed, info);
         }
+    }
+
+    /**
+     * Parse the buffer, bypassing the cache. Text that pegdown fails on is parsed block by block and only the failed
+     * blocks are degraded to fallback parser results.
+     *
+     * @param timedOut set to the pegdown timeout used if pegdown failed on some of the text, which can be less than
+     *                 the actual parsing timeout when the document has a learned budget, otherwise left at 0
+     */
+    @NotNull
+    protected static RootNode parseBuffer(@Nullable final Document budgetDocument, @NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout, @NotNull int[] timedOut) {
+        MultiMarkdownBlocks blocks = MultiMarkdownParseBudget.hasQuarantinedBlocks() ? MultiMarkdownBlocks.of(buffer, actualPegdownExtensions) : null;
+        RootNode rootNode;
 
-        if (rootNode == null) {
-            ErrorNode errorNode = new ErrorNode("Parser Timeout Error: " + exceptionText);
-            errorNode.setStartIndex(0);
-            errorNode.setEndIndex(buffer.length());
-            ArrayList<Node> nodes = new ArrayList<Node>();
-            nodes.add(errorNode);
-            rootNode = new RootNode(nodes);
+        if (blocks != null && MultiMarkdownParseBudget.hasQuarantinedBlock(buffer, blocks)) {
+            // pegdown is known to fail on some of the blocks, don't wait for it to fail on the whole text again
+            documentParseCount.incrementAndGet();
+            rootNode = parseDegradedRootNode(buffer, blocks, actualPegdownExtensions, actualParsingTimeout, false);
+            timedOut[0] = actualParsingTimeout;
+        } else {
+            int parsingTimeout = MultiMarkdownParseBudget.getParsingTimeout(budgetDocument, buffer.length(), actualParsingTimeout);
+            String[] exceptionText = new String[1];
+            ProgressManager.checkCanceled();
+            long start = System.nanoTime();
+            rootNode = parseRootNode(buffer, actualPegdownExtensions, parsingTimeout, exceptionText);
+
+            if (rootNode == null) {
+                timedOut[0] = parsingTimeout;
+                logger.info("Pegdown parse failed, parsing by blocks: " + exceptionText[0]);
+                MultiMarkdownParseBudget.timedOut(budgetDocument, buffer.length(), parsingTimeout);
+                rootNode = parseDegradedRootNode(buffer, blocks != null ? blocks : MultiMarkdownBlocks.of(buffer, actualPegdownExtensions), actualPegdownExtensions, parsingTimeout, true);
+            } else {
+                MultiMarkdownParseBudget.parsed(budgetDocument, buffer.length(), System.nanoTime() - start);
+            }
         }
 
-        if (!disable) lastParsingResult.set(new ParsingInfo(buffer, actualPegdownExtensions, rootNode, null, false));
         return rootNode;
     }
 
-    public static
+    /**
+     * Parse the buffer, bypassing the cache. Large documents are parsed in parallel chunks when they can be split.
+     *
+     * @return root node or null if pegdown timed out or failed, with the reason in exceptionText[0]
+     */
     @Nullable
-    MultiMarkdownLexParser.LexerToken[] parseMarkdown(@NotNull final CharSequence buffer, @Nullable Integer pegdownExtensions, @Nullable Integer parsingTimeout) {
-        int actualPegdownExtensions = (pegdownExtensions != null ? pegdownExtensions : MultiMarkdownGlobalSettings.getInstance().getExtensionsValue()) | (MultiMarkdownGlobalSettings.getInstance().githubWikiLinks.getValue() ? GITHUB_WIKI_LINKS : 0);
-        RootNode rootNode = null;
+    protected static RootNode parseRootNode(@NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout, @Nullable String[] exceptionText) {
+        documentParseCount.incrementAndGet();
 
-        if (!disable) {
-            final ParsingInfo info = lastParsingResult.get();
-            if (info != null && info.pegdownExtensions == actualPegdownExtensions && info.bufferHash == buffer.hashCode() && info.buffer.equals(buffer)) {
-                if (info.hadLexerTokens) {
-                    if (log) logger.info("LexerToken Parsing request satisfied by cache for thread " + Thread.currentThread());
-                    return info.lexerTokens;
-                }
-                if (log) logger.info("LexerToken Parsing request partially satisfied by cache for thread " + Thread.currentThread());
-                rootNode = info.rootNode;
+        if (buffer.length() >= MultiMarkdownParallelParser.MIN_PARALLEL_LENGTH) {
+            String[] chunkExceptionText = new String[1];
+            RootNode rootNode = MultiMarkdownParallelParser.parse(buffer, actualPegdownExtensions, actualParsingTimeout, chunkExceptionText);
+
+            // pegdown would fail on the whole text too, let the caller degrade the failed blocks instead
+            if (rootNode != null || chunkExceptionText[0] != null) {
+                if (exceptionText != null) exceptionText[0] = chunkExceptionText[0];
+                return rootNode;
             }
         }
 
-        char[] currentChars = buffer.toString().toCharArray();
+        return runPegdown(buffer, actualPegdownExtensions, actualParsingTimeout, exceptionText);
+    }
+
+    @Nullable
+    protected static RootNode runPegdown(@NotNull final CharSequence buffer, int actualPegdownExtensions, int actualParsingTimeout, @Nullable String[] exceptionText) {
+        return runPegdown(buffer, 0, buffer.length(), actualPegdownExtensions, actualParsingTimeout, exceptionText);
+    }
+
+    /**
+     * Parse the [start, end) range of the buffer, node offsets are relative to start
+     */
+    @Nullable
+    protected static RootNode runPegdown(@NotNull final CharSequence buffer, int start, int end, int actualPegdownExtensions, int actualParsingTimeout, @Nullable String[] exceptionText) {
+        pegdownRunCount.incrementAndGet();
+        char[] source = getPegdownSource(buffer, start, end);
+        PegDownProcessor processor = MultiMarkdownProcessorPool.acquire(actualPegdownExtensions, actualParsingTimeout);
+        RootNode rootNode = null;
+
+        try {
+            // source is already prepared, parseMarkdown() would copy it again to add the trailing line ends
+            rootNode = processor.parser.parse(source);
+            MultiMarkdownProcessorPool.release(processor, actualPegdownExtensions, actualParsingTimeout);
+        } catch (ParsingTimeoutException e) {
+            if (exceptionText != null) exceptionText[0] = e.getMessage();
+        } catch (ParserRuntimeException e) {
+            if (exceptionText != null) exceptionText[0] = e.getMessage();
+        }
+        return rootNode;
+    }
 
-        if (rootNode == null) {
-            if (log) logger.info("LexerToken Parsing request not satisfied by cache for thread " + Thread.currentThread());
-            PegDownProcessor processor = new PegDownProcessor(actualPegdownExtensions, parsingTimeout != null ? parsingTimeout : MultiMarkdownGlobalSettings.getInstance().parsingTimeout.getValue());
-            String exceptionText = null;
+    /**
+     * Copy the range into the array pegdown parses, with the two trailing line ends that
+     * {@link PegDownProcessor#prepareSource(char[])} would add. This is the only copy of the text made for a parse, the
+     * array cannot be reused between parses because pegdown takes the input length from the array length.
+     */
+    @NotNull
+    protected static char[] getPegdownSource(@NotNull CharSequence buffer, int start, int end) {
+        int length = end - start;
+        char[] source = new char[length + 2];
 
-            try {
-                rootNode = processor.parseMarkdown(currentChars);
-            } catch (ParsingTimeoutException e) {
-                exceptionText = e.getMessage();
-            } catch (ParserRuntimeException e) {
-                exceptionText = e.getMessage();
+        if (buffer instanceof String) {
+            ((String) buffer).getChars(start, end, source, 0);
+        } else if (buffer instanceof StringBuilder) {
+            ((StringBuilder) buffer).getChars(start, end, source, 0);
+        } else if (start == 0 && end == buffer.length()) {
+            CharArrayUtil.getChars(buffer, source, 0);
+        } else {
+            for (int i = 0; i < length; i++) {
+                source[i] = buffer.charAt(start + i);
             }
+        }
 
-            if (rootNode == null) {
-                ErrorNode errorNode = new ErrorNode("Parser Timeout Error: " + exceptionText);
-                errorNode.setStartIndex(0);
-                errorNode.setEndIndex(buffer.length());
-                ArrayList<Node> nodes = new ArrayList<Node>();
-                nodes.add(errorNode);
-                rootNode = new RootNode(nodes);
+        source[length] = '\n';
+        source[length + 1] = '\n';
+        return source;
+    }
+
+    /**
+     * Parse a buffer that pegdown failed on one block at a time so that only the blocks pegdown cannot handle are
+     * degraded to {@link MultiMarkdownFallbackParser} results, the rest of the document keeps its full parse.
+     * <p/>
+     * Blocks are parsed in chunks of up to DEGRADED_CHUNK_LENGTH, a chunk that fails is parsed again block by block,
+     * so each failed block costs at most two more pegdown failures. Quarantined blocks are not given to pegdown at all.
+     *
+     * @param wholeFailed true if pegdown already failed on the whole buffer
+     */
+    @NotNull
+    protected static RootNode parseDegradedRootNode(@NotNull final CharSequence buffer, @NotNull MultiMarkdownBlocks blocks, int actualPegdownExtensions, int actualParsingTimeout, boolean wholeFailed) {
+        int blockCount = blocks.getBlockCount();
+        ArrayList<RootNode> roots = new ArrayList<RootNode>();
+        int[] starts = new int[blockCount];
+
+        boolean[] quarantined = new boolean[blockCount];
+        if (MultiMarkdownParseBudget.hasQuarantinedBlocks()) {
+            for (int i = 0; i < blockCount; i++) {
+                quarantined[i] = MultiMarkdownParseBudget.isQuarantined(buffer.subSequence(blocks.getBlockStart(i), blocks.getBlockEnd(i)));
             }
         }
 
-        MultiMarkdownLexParser lexParser = new MultiMarkdownLexParser();
-        MultiMarkdownLexParser.LexerToken[] lexerTokens = lexParser.parseMarkdown(rootNode, currentChars, actualPegdownExtensions);
+        int blockIndex = 0;
+        while (blockIndex < blockCount) {
+            ProgressManager.checkCanceled();
+            int chunkStart = blocks.getBlockStart(blockIndex);
 
-        if (!disable) lastParsingResult.set(new ParsingInfo(buffer, actualPegdownExtensions, rootNode, lexerTokens, true));
-        return lexerTokens;
-    }
+            if (quarantined[blockIndex]) {
+                MultiMarkdownParseBudget.quarantineSkipped();
+                degradedBlocks.incrementAndGet();
+                starts[roots.size()] = chunkStart;
+                roots.add(MultiMarkdownFallbackParser.parse(buffer.subSequence(chunkStart, blocks.getBlockEnd(blockIndex)), actualPegdownExtensions));
+                blockIndex++;
+                continue;
+            }
+
+            int lastIndex = blockIndex;
+            while (lastIndex + 1 < blockCount && !quarantined[lastIndex + 1] && blocks.getBlockEnd(lastIndex + 1) - chunkStart <= DEGRADED_CHUNK_LENGTH) lastIndex++;
+
+            RootNode chunkRoot = wholeFailed && lastIndex + 1 - blockIndex == blockCount ? null
+                    : runPegdown(buffer, chunkStart, blocks.getBlockEnd(lastIndex), actualPegdownExtensions, actualParsingTimeout, null);
 
-    private static class ParsingInfo {
-        @NotNull final CharSequence buffer;
-        @Nullable final RootNode rootNode;
-        @Nullable MultiMarkdownLexParser.LexerToken[] lexerTokens;
-        final int bufferHash;
-        final int pegdownExtensions;
-        final boolean hadLexerTokens;
+            if (chunkRoot != null) {
+                starts[roots.size()] = chunkStart;
+                roots.add(chunkRoot);
+            } else {
+                for (int i = blockIndex; i <= lastIndex; i++) {
+                    CharSequence block = buffer.subSequence(blocks.getBlockStart(i), blocks.getBlockEnd(i));
+                    RootNode blockRoot = lastIndex > blockIndex ? runPegdown(block, actualPegdownExtensions, actualParsingTimeout, null) : null;
 
-        public ParsingInfo(@NotNull CharSequence buffer, int pegdownExtensions, @Nullable RootNode rootNode, @Nullable MultiMarkdownLexParser.LexerToken[] lexerTokens, boolean hadLexerTokens) {
-            this.buffer = buffer;
-            this.bufferHash = buffer.hashCode();
-            this.rootNode = rootNode;
-            this.pegdownExtensions = pegdownExtensions;
-            this.lexerTokens = lexerTokens;
-            this.hadLexerTokens = hadLexerTokens || rootNode == null || lexerTokens != null;
+                    if (blockRoot == null) {
+                        MultiMarkdownParseBudget.blockFailed(block);
+                        degradedBlocks.incrementAndGet();
+                        blockRoot = MultiMarkdownFallbackParser.parse(block, actualPegdownExtensions);
+                    }
+
+                    starts[roots.size()] = blocks.getBlockStart(i);
+                    roots.add(blockRoot);
+                }
+            }
+
+            blockIndex = lastIndex + 1;
         }
+
+        return MultiMarkdownParallelParser.stitch(roots.toArray(new RootNode[roots.size()]), Arrays.copyOf(starts, roots.size()));
     }
 }
@@ -23,12 +23,22 @@ package com.vladsch.idea.multimarkdown.parser;
 import com.intellij.lexer.Lexer;
 import com.intellij.lexer.LexerPosition;
 import com.intellij.psi.tree.IElementType;
+import com.vladsch.idea.multimarkdown.psi.MultiMarkdownTypes;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.pegdown.ast.RootNode;
 
+/**
+ * Lexer over the tokens of the whole buffer, which come from the shared parse cache.
+ * <p/>
+ * The state is 0 for tokens that start a top level block and 1 for all others, so that the editor highlighter only
+ * restarts lexing at block boundaries and {@link #start(CharSequence, int, int, int)} positions on the start offset.
+ */
 public class MultiMarkdownLexer extends Lexer {
+    public static final int BLOCK_START_STATE = 0;
+    public static final int IN_BLOCK_STATE = 1;
+
     private static final Logger logger = Logger.getLogger(MultiMarkdownLexer.class);
 
     protected int startOffset = 0;
@@ -36,10 +46,16 @@ public class MultiMarkdownLexer extends Lexer {
     protected int lexemeIndex = 0;
     protected int currentOffset = 0;
     protected CharSequence buffer = null;
-    protected MultiMarkdownLexParser.LexerToken lexerToken = null;
-    protected MultiMarkdownLexParser.LexerToken[] lexerTokens = null;
+    protected MultiMarkdownLexerTokens lexerTokens = null;
+
+    // current token, tokenType is null at the end
+    protected IElementType tokenType = null;
+    protected int tokenStart = 0;
+    protected int tokenEnd = 0;
+    protected MultiMarkdownBlocks blocks = null;
     protected Integer pegdownExtensions = null;
     protected Integer parsingTimeout = null;
+    protected boolean actualOptions = false;
 
     public MultiMarkdownLexer() {
         super();
@@ -50,10 +66,15 @@ public class MultiMarkdownLexer extends Lexer {
         this.pegdownExtensions = pegdownExtensions;
     }
 
+    /**
+     * Lexer for the actual pegdown extensions, including {@link MultiMarkdownLexParserManager#GITHUB_WIKI_LINKS}, and
+     * parsing timeout. Global settings are not consulted so the lexer can be used without a running application.
+     */
     public MultiMarkdownLexer(int pegdownExtensions, int parsingTimeout) {
         super();
         this.pegdownExtensions = pegdownExtensions;
         this.parsingTimeout = parsingTimeout;
+        this.actualOptions = true;
     }
 
     protected void logStackTrace() {
@@ -72,32 +93,49 @@ public class MultiMarkdownLexer extends Lexer {
         this.buffer = buffer;
         this.currentOffset = this.startOffset = startOffset;
         this.endOffset = endOffset;
-        lexemeIndex = initialState;
+        lexemeIndex = 0;
         lexerTokens = null;
+        blocks = null;
 
         if (buffer.length() > 0) {
-            lexerTokens = MultiMarkdownLexParserManager.parseMarkdown(buffer, pegdownExtensions, parsingTimeout);
+            MultiMarkdownParseCache.Entry parsingInfo = actualOptions
+                    ? MultiMarkdownLexParserManager.getLexerParsingInfo(buffer, pegdownExtensions.intValue(), parsingTimeout.intValue())
+                    : MultiMarkdownLexParserManager.getLexerParsingInfo(buffer, pegdownExtensions, parsingTimeout);
+            lexerTokens = parsingInfo.getLexerTokens();
+            blocks = parsingInfo.getBlocks();
         }
 
-        lexerToken = null;
         //logger.info(String.format("start lexer buffer end %d, start %d, end %d, state %d", buffer.length(), startOffset, endOffset, initialState));
+        seek(startOffset);
 
-        // prime the lexeme stream, if the first is white space we need to start with that
-        if (lexerTokens != null && lexerTokens.length > 0) {
-            lexerToken = lexerTokens[lexemeIndex];
-            if (currentOffset <= lexerToken.getRange().getStart()) {
-                lexerToken = MultiMarkdownLexParser.getSkippedSpaceToken(currentOffset, lexerToken.getRange().getStart());
-            } else {
-                lexemeIndex++;
-            }
+        if (tokenType == null) {
+            // a dummy whitespace token for the whole file
+            setSkippedSpace(currentOffset, this.endOffset);
+            currentOffset = tokenEnd;
         }
+    }
 
-        if (lexerToken == null) {
-            // create a dummy whitespace token for the whole file
-            lexerToken = MultiMarkdownLexParser.getSkippedSpaceToken(currentOffset, this.endOffset);
+    /**
+     * Make the token at offset the current one, the token containing offset or the space before the next token.
+     * Tokens are found by binary search so the lexer can be restarted anywhere in logarithmic time.
+     */
+    protected void seek(int offset) {
+        currentOffset = offset;
+        tokenType = null;
+        lexemeIndex = 0;
+
+        if (lexerTokens != null && (lexemeIndex = lexerTokens.getTokenIndex(offset)) < lexerTokens.size()) {
+            int start = lexerTokens.getStart(lexemeIndex);
+            if (offset < start) {
+                setSkippedSpace(offset, start);
+            } else {
+                setToken(lexemeIndex++);
+            }
+        } else if (offset < endOffset) {
+            setSkippedSpace(offset, endOffset);
         }
 
-        currentOffset = lexerToken.getRange().getEnd();
+        if (tokenType != null) currentOffset = tokenEnd;
 
         //assert currentOffset <= endOffset;
         if (currentOffset > endOffset) {
@@ -105,65 +143,76 @@ public class MultiMarkdownLexer extends Lexer {
         }
     }
 
+    protected void setToken(int index) {
+        tokenType = lexerTokens.getElementType(index);
+        tokenStart = lexerTokens.getStart(index);
+        tokenEnd = lexerTokens.getEnd(index);
+    }
+
+    protected void setSkippedSpace(int start, int end) {
+        tokenType = MultiMarkdownTypes.NONE;
+        tokenStart = start;
+        tokenEnd = end;
+    }
+
     @Override
     public int getState() {
-        return lexemeIndex;
+        if (tokenType == null) return BLOCK_START_STATE;
+        return tokenStart == 0 || blocks != null && blocks.isBlockStart(tokenStart) ? BLOCK_START_STATE : IN_BLOCK_STATE;
     }
 
     @Nullable
     @Override
     public IElementType getTokenType() {
-        //return lexerToken != null && lexerToken.getRange().getStart() < endOffset ? lexerToken.getElementType() : null;
-        return lexerToken != null ? lexerToken.getElementType() : null;
+        return tokenType;
     }
 
     @Override
     public int getTokenStart() {
-        return lexerToken != null ? lexerToken.getRange().getStart() : endOffset;
+        return tokenType != null ? tokenStart : endOffset;
     }
 
     @Override
     public int getTokenEnd() {
-        //return lexerToken != null && lexerToken.getRange().getEnd() <= endOffset ? lexerToken.getRange().getEnd() : endOffset;
-        return lexerToken != null ? lexerToken.getRange().getEnd() : endOffset;
+        return tokenType != null ? tokenEnd : endOffset;
     }
 
     @Override
     public void advance() {
         if (currentOffset < endOffset) {
             do {
-                if (lexerTokens != null && lexemeIndex >= 0 && lexemeIndex < lexerTokens.length) {
-                    if (lexerToken == null || currentOffset < lexerToken.getRange().getStart()) {
-                        lexerToken = MultiMarkdownLexParser.getSkippedSpaceToken(currentOffset, lexerTokens[lexemeIndex].getRange().getStart());
+                if (lexerTokens != null && lexemeIndex >= 0 && lexemeIndex < lexerTokens.size()) {
+                    if (tokenType == null || currentOffset < tokenStart) {
+                        setSkippedSpace(currentOffset, lexerTokens.getStart(lexemeIndex));
                     } else {
-                        lexerToken = lexerTokens[lexemeIndex];
-                        if (currentOffset < lexerToken.getRange().getStart()) {
-                            lexerToken = MultiMarkdownLexParser.getSkippedSpaceToken(currentOffset, lexerToken.getRange().getStart());
+                        int start = lexerTokens.getStart(lexemeIndex);
+                        if (currentOffset < start) {
+                            setSkippedSpace(currentOffset, start);
                         } else {
-                            lexemeIndex++;
+                            setToken(lexemeIndex++);
                         }
                     }
                 } else {
                     if (currentOffset < endOffset) {
-                        lexerToken = MultiMarkdownLexParser.getSkippedSpaceToken(currentOffset, endOffset);
+                        setSkippedSpace(currentOffset, endOffset);
                     } else {
-                        lexerToken = null;
+                        tokenType = null;
                     }
                 }
-            } while (lexerToken != null && lexerToken.getRange().getEnd() < currentOffset);
+            } while (tokenType != null && tokenEnd < currentOffset);
 
-            currentOffset = lexerToken == null ? endOffset : lexerToken.getRange().getEnd();
+            currentOffset = tokenType == null ? endOffset : tokenEnd;
         } else {
-            lexerToken = null;
+            tokenType = null;
         }
 
         //assert currentOffset <= endOffset;
         if (currentOffset > endOffset) {
-            lexerToken = null;
+            tokenType = null;
             currentOffset = endOffset;
         }
 
-        //logger.info("advanced to " + currentOffset + " (" + (lexerToken == null ? "null" : lexerToken.toString()) + ")");
+        //logger.info("advanced to " + currentOffset + " (" + tokenType + ")");
     }
 
     class MarkdownLexerPosition implements LexerPosition {
@@ -190,15 +239,12 @@ public class MultiMarkdownLexer extends Lexer {
     @NotNull
     @Override
     public LexerPosition getCurrentPosition() {
-        return new MarkdownLexerPosition(currentOffset, lexemeIndex);
+        return new MarkdownLexerPosition(currentOffset, getState());
     }
 
     @Override
     public void restore(@NotNull LexerPosition lexerPosition) {
-        currentOffset = lexerPosition.getOffset();
-        lexemeIndex = lexerPosition.getState();
-        lexerToken = null;
-        advance();
+        seek(lexerPosition.getOffset());
     }
 
     @NotNull
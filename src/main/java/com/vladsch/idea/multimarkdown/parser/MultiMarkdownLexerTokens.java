@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.psi.tree.IElementType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Immutable lexer token stream packed into a single int array, three ints per token: start offset, end offset and
+ * the index of the token's element type.
+ * <p/>
+ * Token arrays are shared through the parse cache by all lexers of a document so they are never modified once built.
+ */
+public class MultiMarkdownLexerTokens {
+    protected static final int START = 0;
+    protected static final int END = 1;
+    protected static final int TYPE = 2;
+    protected static final int STRIDE = 3;
+
+    public static final MultiMarkdownLexerTokens EMPTY = new MultiMarkdownLexerTokens(new int[0], 0);
+
+    protected final int[] tokens;
+    protected final int size;
+
+    protected MultiMarkdownLexerTokens(@NotNull int[] tokens, int size) {
+        this.tokens = tokens;
+        this.size = size;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public int getStart(int index) { return tokens[index * STRIDE + START]; }
+
+    public int getEnd(int index) { return tokens[index * STRIDE + END]; }
+
+    public int getTypeIndex(int index) { return tokens[index * STRIDE + TYPE]; }
+
+    public IElementType getElementType(int index) { return IElementType.find((short) tokens[index * STRIDE + TYPE]); }
+
+    /**
+     * @return index of the first token that ends after offset, size() if there is none
+     */
+    public int getTokenIndex(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens[mid * STRIDE + END] <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first token that starts at or after offset, size() if there is none
+     */
+    public int getFirstTokenAt(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens[mid * STRIDE + START] < offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("MultiMarkdownLexerTokens{size: ").append(size);
+        for (int i = 0; i < size && i < 10; i++) {
+            sb.append(", [").append(getStart(i)).append(", ").append(getEnd(i)).append(") ").append(getElementType(i));
+        }
+        if (size > 10) sb.append(", ...");
+        sb.append("}");
+        return sb.toString();
+    }
+
+    public static class Builder {
+        protected int[] tokens;
+        protected int size;
+
+        public Builder(int capacity) {
+            tokens = new int[Math.max(capacity, 1) * STRIDE];
+            size = 0;
+        }
+
+        public int size() { return size; }
+
+        public Builder add(int start, int end, int typeIndex) {
+            if ((size + 1) * STRIDE > tokens.length) tokens = Arrays.copyOf(tokens, tokens.length * 2);
+
+            int i = size * STRIDE;
+            tokens[i + START] = start;
+            tokens[i + END] = end;
+            tokens[i + TYPE] = typeIndex;
+            size++;
+            return this;
+        }
+
+        public Builder add(int start, int end, @NotNull IElementType elementType) {
+            return add(start, end, elementType.getIndex());
+        }
+
+        /**
+         * Append tokens [fromIndex, toIndex) of other with their offsets shifted by offset
+         */
+        public Builder addAll(@NotNull MultiMarkdownLexerTokens other, int fromIndex, int toIndex, int offset) {
+            for (int i = fromIndex; i < toIndex; i++) {
+                add(other.getStart(i) + offset, other.getEnd(i) + offset, other.getTypeIndex(i));
+            }
+            return this;
+        }
+
+        @NotNull
+        public MultiMarkdownLexerTokens build() {
+            // builders are created with the expected capacity so unused space is not trimmed
+            return size == 0 ? EMPTY : new MultiMarkdownLexerTokens(tokens, size);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.pegdown.Extensions;
+import org.pegdown.ast.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses large documents by splitting them at top level block boundaries and running pegdown on the chunks
+ * concurrently, each with its own processor from the pool.
+ * <p/>
+ * The chunk root nodes are shifted to their offset in the document and stitched into one root node. Pegdown only
+ * collects reference, abbreviation and footnote definitions while parsing, it does not use them to build the AST,
+ * so the definition lists of the chunks are concatenated in document order.
+ * <p/>
+ * Documents whose block scan is ambiguous are not split and neither are documents parsed with the TOC extension,
+ * a TocNode only gets the headers of its own chunk. For these the caller does a normal parse. When a chunk fails to
+ * parse the reason is returned instead so that the caller does not wait for pegdown to fail on the whole text again.
+ */
+public class MultiMarkdownParallelParser {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownParallelParser.class);
+
+    public static final int MIN_PARALLEL_LENGTH = 64 * 1024;
+    public static final int MIN_CHUNK_LENGTH = 16 * 1024;
+    public static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    protected static final AtomicLong parallelParses = new AtomicLong();
+    protected static ExecutorService executor = null;
+
+    public static long getParallelParses() { return parallelParses.get(); }
+
+    @NotNull
+    protected static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MultiMarkdown Parser " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return chunk start offsets, at least two chunks of MIN_CHUNK_LENGTH or more, or null if the text should not be split
+     */
+    @Nullable
+    protected static int[] getChunkStarts(@NotNull MultiMarkdownBlocks blocks, int parallelism) {
+        if (parallelism < 2 || blocks.isAmbiguous() || blocks.getLength() < MIN_PARALLEL_LENGTH) return null;
+
+        // twice as many chunks as threads to even out chunks that take longer
+        int chunkLength = Math.max(MIN_CHUNK_LENGTH, blocks.getLength() / (parallelism * 2));
+        int[] starts = new int[blocks.getBlockCount()];
+        int count = 0;
+        starts[count++] = 0;
+
+        for (int i = 1; i < blocks.getBlockCount(); i++) {
+            int blockStart = blocks.getBlockStart(i);
+            if (blockStart - starts[count - 1] >= chunkLength && blocks.getLength() - blockStart >= MIN_CHUNK_LENGTH) {
+                starts[count++] = blockStart;
+            }
+        }
+
+        if (count < 2) return null;
+
+        int[] chunkStarts = new int[count];
+        System.arraycopy(starts, 0, chunkStarts, 0, count);
+        return chunkStarts;
+    }
+
+    /**
+     * @param exceptionText set to the reason a chunk failed to parse
+     * @return root node for the whole buffer or null if it was not parsed in parallel or a chunk failed to parse,
+     * in which case exceptionText[0] is not null
+     */
+    @Nullable
+    public static RootNode parse(@NotNull final CharSequence buffer, final int pegdownExtensions, final int parsingTimeout, @NotNull String[] exceptionText) {
+        return parse(buffer, pegdownExtensions, parsingTimeout, PARALLELISM, exceptionText);
+    }
+
+    @Nullable
+    protected static RootNode parse(@NotNull final CharSequence buffer, final int pegdownExtensions, final int parsingTimeout, int parallelism, @NotNull String[] exceptionText) {
+        if ((pegdownExtensions & Extensions.TOC) != 0) return null;
+
+        final int[] chunkStarts = getChunkStarts(MultiMarkdownBlocks.of(buffer, pegdownExtensions), parallelism);
+        if (chunkStarts == null) return null;
+
+        final int length = buffer.length();
+        ArrayList<Callable<RootNode>> tasks = new ArrayList<Callable<RootNode>>(chunkStarts.length);
+        final String[][] chunkExceptionTexts = new String[chunkStarts.length][1];
+        for (int i = 0; i < chunkStarts.length; i++) {
+            final String[] chunkExceptionText = chunkExceptionTexts[i];
+            final int chunkStart = chunkStarts[i];
+            final int chunkEnd = i + 1 < chunkStarts.length ? chunkStarts[i + 1] : length;
+            tasks.add(new Callable<RootNode>() {
+                @Override
+                public RootNode call() throws Exception {
+                    return MultiMarkdownLexParserManager.runPegdown(buffer, chunkStart, chunkEnd, pegdownExtensions, parsingTimeout, chunkExceptionText);
+                }
+            });
+        }
+
+        RootNode[] chunkRoots = new RootNode[chunkStarts.length];
+        try {
+            List<Future<RootNode>> futures = getExecutor().invokeAll(tasks);
+            for (int i = 0; i < chunkRoots.length; i++) {
+                chunkRoots[i] = futures.get(i).get();
+                if (chunkRoots[i] == null) {
+                    exceptionText[0] = chunkExceptionTexts[i][0] != null ? chunkExceptionTexts[i][0] : "Pegdown failed on chunk at " + chunkStarts[i];
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.error("Parallel parse failed", e.getCause());
+            return null;
+        }
+
+        parallelParses.incrementAndGet();
+        return stitch(chunkRoots, chunkStarts);
+    }
+
+    @NotNull
+    protected static RootNode stitch(@NotNull RootNode[] chunkRoots, @NotNull int[] chunkStarts) {
+        ArrayList<Node> children = new ArrayList<Node>();
+        ArrayList<ReferenceNode> references = new ArrayList<ReferenceNode>();
+        ArrayList<AbbreviationNode> abbreviations = new ArrayList<AbbreviationNode>();
+        ArrayList<FootnoteNode> footnotes = new ArrayList<FootnoteNode>();
+
+        for (int i = 0; i < chunkRoots.length; i++) {
+            RootNode chunkRoot = chunkRoots[i];
+            int offset = chunkStarts[i];
+
+            if (offset != 0) {
+                chunkRoot.shiftIndices(offset);
+
+                // definitions that are not also in the tree of the root still need shifting
+                IdentityHashMap<Node, Boolean> shifted = new IdentityHashMap<Node, Boolean>();
+                addShifted(chunkRoot.getChildren(), shifted);
+                shiftIndices(offset, chunkRoot.getReferences(), shifted);
+                shiftIndices(offset, chunkRoot.getAbbreviations(), shifted);
+                shiftIndices(offset, chunkRoot.getFootnotes(), shifted);
+            }
+
+            children.addAll(chunkRoot.getChildren());
+            references.addAll(chunkRoot.getReferences());
+            abbreviations.addAll(chunkRoot.getAbbreviations());
+            footnotes.addAll(chunkRoot.getFootnotes());
+        }
+
+        RootNode rootNode = new RootNode(children, references, abbreviations, footnotes);
+        rootNode.setRange(chunkRoots[0].getStartIndex(), chunkRoots[chunkRoots.length - 1].getEndIndex());
+        return rootNode;
+    }
+
+    protected static void addShifted(@NotNull List<Node> nodes, @NotNull IdentityHashMap<Node, Boolean> shifted) {
+        for (Node node : nodes) {
+            shifted.put(node, Boolean.TRUE);
+            addShifted(node.getChildren(), shifted);
+        }
+    }
+
+    protected static void shiftIndices(int offset, @NotNull List<? extends Node> nodes, @NotNull IdentityHashMap<Node, Boolean> shifted) {
+        for (Node node : nodes) {
+            if (shifted.put(node, Boolean.TRUE) == null) {
+                ((AbstractNode) node).shiftIndices(offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.openapi.editor.Document;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parse time budgets learned from previous parses and quarantine of blocks that pegdown cannot parse.
+ * <p/>
+ * Each document keeps an exponentially weighted parse cost per character. Its pegdown timeout is that cost scaled
+ * by the document's length with some slack, so small documents stop early on text that hangs pegdown and large
+ * documents get the time they need instead of timing out on every edit. Budgets are rounded up to a power of two, up to
+ * the limit, so the processor pool, which is keyed by timeout, only holds a few of them.
+ * <p/>
+ * Blocks that fail to parse on their own are remembered by content hash. Once a block failed QUARANTINE_FAILURES
+ * times the manager stops giving it to pegdown and uses the fallback parser right away, until the block's text
+ * changes. Quarantine does not need a document so it also applies to the lexer, which only has the text.
+ */
+public class MultiMarkdownParseBudget {
+    public static final int MIN_PARSING_TIMEOUT = 64;
+    public static final int MAX_TIMEOUT_SCALE = 8;
+    public static final int TIMEOUT_SLACK = 8;
+    public static final int QUARANTINE_FAILURES = 2;
+    public static final int MAX_FAILED_BLOCKS = 256;
+
+    // weight of the newest sample in the parse cost average, in 1/16ths
+    protected static final int COST_WEIGHT = 4;
+
+    protected static final WeakHashMap<Document, Cost> documentCosts = new WeakHashMap<Document, Cost>();
+
+    protected static final LinkedHashMap<Long, Integer> failedBlocks = new LinkedHashMap<Long, Integer>(MAX_FAILED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            if (size() <= MAX_FAILED_BLOCKS) return false;
+            if (eldest.getValue() >= QUARANTINE_FAILURES) unquarantined(eldest.getKey());
+            return true;
+        }
+    };
+
+    // quarantined blocks in failedBlocks and the number of them by block length, guarded by failedBlocks
+    protected static volatile int quarantinedCount = 0;
+    protected static final HashMap<Integer, Integer> quarantinedLengths = new HashMap<Integer, Integer>();
+    protected static final AtomicLong quarantineSkips = new AtomicLong();
+
+    protected static class Cost {
+        // nanoseconds per 1024 characters
+        long cost;
+    }
+
+    /**
+     * @return number of block parses skipped because the block was quarantined
+     */
+    public static long getQuarantineSkips() { return quarantineSkips.get(); }
+
+    /**
+     * @return pegdown timeout to use for the document's next parse, the configured timeout until the document has
+     * been parsed at least once
+     */
+    public static int getParsingTimeout(@Nullable Document document, int length, int parsingTimeout) {
+        if (document == null) return parsingTimeout;
+
+        long cost;
+        synchronized (documentCosts) {
+            Cost documentCost = documentCosts.get(document);
+            if (documentCost == null) return parsingTimeout;
+            cost = documentCost.cost;
+        }
+
+        return getParsingTimeout(cost, length, parsingTimeout);
+    }
+
+    /**
+     * @param cost parse cost in nanoseconds per 1024 characters
+     */
+    protected static int getParsingTimeout(long cost, int length, int parsingTimeout) {
+        long expected = cost * length / 1024 / 1000000;
+        long timeout = Math.min(Math.max(MIN_PARSING_TIMEOUT, expected * TIMEOUT_SLACK), 1 << 30);
+        return (int) Math.min(roundUp((int) timeout), (long) parsingTimeout * MAX_TIMEOUT_SCALE);
+    }
+
+    protected static int roundUp(int timeout) {
+        int rounded = Integer.highestOneBit(timeout);
+        return rounded == timeout || rounded >= (1 << 30) ? timeout : rounded << 1;
+    }
+
+    public static void parsed(@Nullable Document document, int length, long nanos) {
+        if (document == null) return;
+
+        long cost = nanos * 1024 / Math.max(length, 1);
+        synchronized (documentCosts) {
+            Cost documentCost = documentCosts.get(document);
+            if (documentCost == null) {
+                documentCost = new Cost();
+                documentCost.cost = cost;
+                documentCosts.put(document, documentCost);
+            } else {
+                documentCost.cost += (cost - documentCost.cost) * COST_WEIGHT / 16;
+            }
+        }
+    }
+
+    /**
+     * A timed out parse took at least its timeout, the cost is raised so the next budget is larger, up to the limit.
+     */
+    public static void timedOut(@Nullable Document document, int length, int parsingTimeout) {
+        if (document == null) return;
+
+        long cost = (long) parsingTimeout * 1000000 * 1024 * 2 / TIMEOUT_SLACK / Math.max(length, 1);
+        synchronized (documentCosts) {
+            Cost documentCost = documentCosts.get(document);
+            if (documentCost == null) {
+                documentCost = new Cost();
+                documentCosts.put(document, documentCost);
+            }
+            documentCost.cost = Math.max(documentCost.cost, cost);
+        }
+    }
+
+    protected static long getBlockKey(@NotNull CharSequence block) {
+        return getBlockKey(block, 0, block.length());
+    }
+
+    // same key as for the block's subSequence, without copying it
+    protected static long getBlockKey(@NotNull CharSequence buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.charAt(i);
+        }
+        return ((long) (end - start) << 32) | (hash & 0xffffffffL);
+    }
+
+    // guarded by failedBlocks
+    protected static void quarantined(long key) {
+        Integer length = (int) (key >>> 32);
+        Integer count = quarantinedLengths.get(length);
+        quarantinedLengths.put(length, count == null ? 1 : count + 1);
+        quarantinedCount++;
+    }
+
+    // guarded by failedBlocks
+    protected static void unquarantined(long key) {
+        Integer length = (int) (key >>> 32);
+        Integer count = quarantinedLengths.get(length);
+        if (count == null) return;
+
+        if (count > 1) quarantinedLengths.put(length, count - 1);
+        else quarantinedLengths.remove(length);
+        quarantinedCount--;
+    }
+
+    /**
+     * Record a block that pegdown failed to parse on its own
+     */
+    public static void blockFailed(@NotNull CharSequence block) {
+        Long key = getBlockKey(block);
+        synchronized (failedBlocks) {
+            Integer failures = failedBlocks.get(key);
+            int count = failures == null ? 1 : failures + 1;
+            failedBlocks.put(key, count);
+            if (count == QUARANTINE_FAILURES) quarantined(key);
+        }
+    }
+
+    public static boolean hasQuarantinedBlocks() {
+        return quarantinedCount > 0;
+    }
+
+    public static boolean isQuarantined(@NotNull CharSequence block) {
+        if (quarantinedCount == 0) return false;
+
+        Long key = getBlockKey(block);
+        synchronized (failedBlocks) {
+            Integer failures = failedBlocks.get(key);
+            return failures != null && failures >= QUARANTINE_FAILURES;
+        }
+    }
+
+    /**
+     * @return true if any of the blocks is quarantined and the text should not be given to pegdown as a whole
+     */
+    public static boolean hasQuarantinedBlock(@NotNull CharSequence buffer, @NotNull MultiMarkdownBlocks blocks) {
+        if (quarantinedCount == 0) return false;
+
+        synchronized (failedBlocks) {
+            for (int i = 0; i < blocks.getBlockCount(); i++) {
+                int start = blocks.getBlockStart(i);
+                int end = blocks.getBlockEnd(i);
+
+                // only blocks with the length of a quarantined one need hashing
+                if (!quarantinedLengths.containsKey(end - start)) continue;
+
+                Integer failures = failedBlocks.get(getBlockKey(buffer, start, end));
+                if (failures != null && failures >= QUARANTINE_FAILURES) return true;
+            }
+        }
+        return false;
+    }
+
+    protected static void quarantineSkipped() {
+        quarantineSkips.incrementAndGet();
+    }
+
+    public static void clear() {
+        synchronized (documentCosts) {
+            documentCosts.clear();
+        }
+        synchronized (failedBlocks) {
+            failedBlocks.clear();
+            quarantinedLengths.clear();
+            quarantinedCount = 0;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.pegdown.ast.RootNode;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe LRU cache of pegdown parse results shared by the highlighting lexer, the PSI lexer,
+ * the preview editors and the indexer so that a given version of a document is parsed only once.
+ * <p/>
+ * Entries are keyed by document identity and modification stamp when the caller has a document, otherwise
+ * by the buffer's contents. Both include the effective pegdown extension flags. The lexers restart on the same
+ * immutable text many times, so a buffer that is the cached instance, or the last other instance of the same text
+ * that was looked up, matches without hashing its contents.
+ * <p/>
+ * Entries created by incremental re-lexing only have lexer tokens, they are never returned for root node requests.
+ * <p/>
+ * The highlighting and PSI lexers start on the same new text at about the same time, so a text that is being parsed
+ * is claimed with {@link #claim(CharSequence, int)} and other requests for it wait for that parse instead of running
+ * their own.
+ */
+public class MultiMarkdownParseCache {
+    public static final int MAX_ENTRIES = 16;
+    public static final int MAX_CACHED_CHARS = 8 * 1024 * 1024;
+
+    // most recently used is at the end
+    protected final ArrayList<Entry> entries = new ArrayList<Entry>(MAX_ENTRIES + 1);
+    protected int cachedChars = 0;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+    protected final AtomicLong joins = new AtomicLong();
+
+    // texts being parsed, guarded by entries
+    protected final ArrayList<Pending> pending = new ArrayList<Pending>();
+
+    public long getHits() { return hits.get(); }
+
+    /**
+     * Requests that used the result of a parse already running on another thread
+     */
+    public long getJoins() { return joins.get(); }
+
+    /**
+     * Parses that did not have to run because their result was cached or being computed
+     */
+    public long getSavedParses() { return hits.get() + joins.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Nullable
+    public Entry get(@Nullable Document document, @NotNull CharSequence buffer, int pegdownExtensions, int parsingTimeout, boolean needRootNode) {
+        synchronized (entries) {
+            // the contents are only hashed when there is no entry for the document or the same buffer instance
+            int i = indexOf(document, buffer, pegdownExtensions, parsingTimeout, needRootNode, false);
+            if (i < 0) i = indexOf(document, buffer, pegdownExtensions, parsingTimeout, needRootNode, true);
+
+            if (i >= 0) {
+                // move to most recently used
+                Entry entry = entries.remove(i);
+                if (entry.buffer != buffer && !isMutable(buffer)) entry.sameTextBuffer = buffer;
+                entries.add(entry);
+                hits.incrementAndGet();
+                return entry;
+            }
+
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    // guarded by entries
+    protected int indexOf(@Nullable Document document, @NotNull CharSequence buffer, int pegdownExtensions, int parsingTimeout, boolean needRootNode, boolean byContent) {
+        long modificationStamp = document != null ? document.getModificationStamp() : 0;
+        int bufferHash = 0;
+        boolean haveHash = false;
+
+        for (int i = entries.size(); i-- > 0; ) {
+            Entry entry = entries.get(i);
+            if (entry.pegdownExtensions != pegdownExtensions || entry.length != buffer.length()) continue;
+            if (needRootNode && entry.rootNode == null) continue;
+
+            boolean isMatched;
+            if (document != null && entry.getDocument() == document) {
+                isMatched = !byContent && entry.modificationStamp == modificationStamp;
+            } else if (byContent) {
+                if (!haveHash) {
+                    bufferHash = hashCode(buffer);
+                    haveHash = true;
+                }
+                isMatched = entry.bufferHash == bufferHash && contentEquals(entry.buffer, buffer);
+            } else {
+                isMatched = (entry.buffer == buffer || entry.sameTextBuffer == buffer) && !isMutable(buffer);
+            }
+
+            if (isMatched && entry.isUsableWith(parsingTimeout)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return most recently used entry for the extensions whose lexer tokens are available and complete, a candidate
+     * for incremental re-lexing of a modified version of its text
+     */
+    @Nullable
+    public Entry getLatestLexed(int pegdownExtensions) {
+        synchronized (entries) {
+            for (int i = entries.size(); i-- > 0; ) {
+                Entry entry = entries.get(i);
+                if (entry.pegdownExtensions == pegdownExtensions && !entry.hadTimeout && entry.hasLexerTokens()) return entry;
+            }
+            return null;
+        }
+    }
+
+    @NotNull
+    public Entry put(@Nullable Document document, @NotNull CharSequence buffer, int pegdownExtensions, int parsingTimeout, @NotNull RootNode rootNode, boolean hadTimeout) {
+        return add(new Entry(document, buffer, pegdownExtensions, parsingTimeout, rootNode, hadTimeout));
+    }
+
+    @NotNull
+    public Entry putLexerTokens(@NotNull CharSequence buffer, int pegdownExtensions, int parsingTimeout, @NotNull MultiMarkdownLexerTokens lexerTokens) {
+        Entry entry = new Entry(null, buffer, pegdownExtensions, parsingTimeout, null, false);
+        entry.lexerTokens = lexerTokens;
+        entry.hadLexerTokens = true;
+        return add(entry);
+    }
+
+    @NotNull
+    protected Entry add(@NotNull Entry entry) {
+        synchronized (entries) {
+            entries.add(entry);
+            cachedChars += entry.length;
+
+            while (entries.size() > 1 && (entries.size() > MAX_ENTRIES || cachedChars > MAX_CACHED_CHARS)) {
+                Entry evicted = entries.remove(0);
+                cachedChars -= evicted.length;
+                evictions.incrementAndGet();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Claim the parse of a text that was not found in the cache. The caller parses the text if it owns the claim and
+     * releases it with {@link #release(Pending, Entry)} when done, otherwise it can wait for the owner's result.
+     */
+    @NotNull
+    public Pending claim(@NotNull CharSequence buffer, int pegdownExtensions) {
+        int bufferHash = hashCode(buffer);
+        synchronized (entries) {
+            for (Pending claimed : pending) {
+                if (claimed.pegdownExtensions == pegdownExtensions && claimed.bufferHash == bufferHash && contentEquals(claimed.buffer, buffer)) {
+                    return claimed;
+                }
+            }
+
+            Pending claimed = new Pending(buffer, bufferHash, pegdownExtensions);
+            pending.add(claimed);
+            return claimed;
+        }
+    }
+
+    /**
+     * @param entry the cached result or null if the parse did not complete, waiting requests then parse themselves
+     */
+    public void release(@NotNull Pending claimed, @Nullable Entry entry) {
+        synchronized (entries) {
+            pending.remove(claimed);
+        }
+        claimed.entry = entry;
+        claimed.done.countDown();
+    }
+
+    /**
+     * Wait for the owner of the claim to finish parsing, checking for cancellation of the waiting request
+     *
+     * @return owner's entry if it is usable for the request, null if the request has to parse the text itself
+     */
+    @Nullable
+    public Entry join(@NotNull Pending claimed, int parsingTimeout, boolean needRootNode) {
+        try {
+            while (!claimed.done.await(Pending.CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                ProgressManager.checkCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Entry entry = claimed.entry;
+        if (entry == null || needRootNode && entry.rootNode == null || !entry.isUsableWith(parsingTimeout)) return null;
+
+        joins.incrementAndGet();
+        return entry;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            cachedChars = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return "MultiMarkdownParseCache{entries: " + size() + ", hits: " + hits + ", misses: " + getMisses() + ", evictions: " + getEvictions()
+                + ", hit rate: " + (total == 0 ? 0 : hits * 100 / total) + "%, joins: " + getJoins() + ", saved parses: " + getSavedParses() + "}";
+    }
+
+    /**
+     * The JDK's char sequences that can change after they were cached, builders and buffers, are all Appendable
+     */
+    public static boolean isMutable(@NotNull CharSequence buffer) {
+        return buffer instanceof Appendable;
+    }
+
+    public static int hashCode(@NotNull CharSequence buffer) {
+        // strings cache their hash code, which is computed the same way
+        if (buffer instanceof String) return buffer.hashCode();
+
+        int hash = 0;
+        int iMax = buffer.length();
+        for (int i = 0; i < iMax; i++) {
+            hash = 31 * hash + buffer.charAt(i);
+        }
+        return hash;
+    }
+
+    public static boolean contentEquals(@NotNull CharSequence buffer1, @NotNull CharSequence buffer2) {
+        if (buffer1 == buffer2) return true;
+
+        int iMax = buffer1.length();
+        if (iMax != buffer2.length()) return false;
+
+        for (int i = 0; i < iMax; i++) {
+            if (buffer1.charAt(i) != buffer2.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public static class Pending {
+        static final long CANCEL_CHECK_MILLIS = 20;
+
+        @NotNull final CharSequence buffer;
+        final int bufferHash;
+        final int pegdownExtensions;
+        final Thread owner;
+        final CountDownLatch done = new CountDownLatch(1);
+        @Nullable volatile Entry entry;
+
+        Pending(@NotNull CharSequence buffer, int bufferHash, int pegdownExtensions) {
+            this.buffer = buffer;
+            this.bufferHash = bufferHash;
+            this.pegdownExtensions = pegdownExtensions;
+            this.owner = Thread.currentThread();
+        }
+
+        /**
+         * The owner parses the text, a request for the same text from the owner's thread while it parses also owns it
+         */
+        public boolean isOwner() {
+            return owner == Thread.currentThread();
+        }
+    }
+
+    public static class Entry {
+        @Nullable final WeakReference<Document> documentRef;
+        final long modificationStamp;
+        @NotNull final CharSequence buffer;
+        final int bufferHash;
+        final int length;
+        final int pegdownExtensions;
+        final int parsingTimeout;
+        final boolean hadTimeout;
+        @Nullable final RootNode rootNode;
+        @Nullable private MultiMarkdownLexerTokens lexerTokens;
+        private boolean hadLexerTokens;
+        @Nullable private MultiMarkdownBlocks blocks;
+
+        // last other instance of the text that matched this entry, guarded by the cache's entries
+        @Nullable CharSequence sameTextBuffer;
+
+        Entry(@Nullable Document document, @NotNull CharSequence buffer, int pegdownExtensions, int parsingTimeout, @Nullable RootNode rootNode, boolean hadTimeout) {
+            this.documentRef = document != null ? new WeakReference<Document>(document) : null;
+            this.modificationStamp = document != null ? document.getModificationStamp() : 0;
+            this.buffer = buffer;
+            this.bufferHash = MultiMarkdownParseCache.hashCode(buffer);
+            this.length = buffer.length();
+            this.pegdownExtensions = pegdownExtensions;
+            this.parsingTimeout = parsingTimeout;
+            this.rootNode = rootNode;
+            this.hadTimeout = hadTimeout;
+            this.lexerTokens = null;
+            this.hadLexerTokens = false;
+        }
+
+        @Nullable
+        Document getDocument() {
+            return documentRef != null ? documentRef.get() : null;
+        }
+
+        /**
+         * Only null for entries created by incremental re-lexing, which are not returned for root node requests
+         */
+        @Nullable
+        public RootNode getRootNode() {
+            return rootNode;
+        }
+
+        @NotNull
+        public CharSequence getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return true if the buffer still has the contents the entry was created for, callers may have passed in a
+         * mutable char sequence
+         */
+        public boolean isBufferValid() {
+            return buffer.length() == length && MultiMarkdownParseCache.hashCode(buffer) == bufferHash;
+        }
+
+        public boolean hadTimeout() {
+            return hadTimeout;
+        }
+
+        // a timed out parse is only good for requests that would not have given pegdown more time
+        boolean isUsableWith(int parsingTimeout) {
+            return !hadTimeout || parsingTimeout <= this.parsingTimeout;
+        }
+
+        /**
+         * The tokens are computed once per entry and shared by all callers. The lexer parser does not change the
+         * AST, which is also used for the preview, so lexing that was cancelled part way through is retried on the
+         * same tree.
+         */
+        @Nullable
+        public synchronized MultiMarkdownLexerTokens getLexerTokens() {
+            if (!hadLexerTokens && rootNode != null) {
+                lexerTokens = newLexParser().parseMarkdown(rootNode, length, pegdownExtensions);
+                hadLexerTokens = true;
+            }
+            return lexerTokens;
+        }
+
+        @NotNull
+        protected MultiMarkdownLexParser newLexParser() {
+            return new MultiMarkdownLexParser();
+        }
+
+        synchronized boolean hasLexerTokens() {
+            return hadLexerTokens && lexerTokens != null;
+        }
+
+        /**
+         * Top level blocks of the text, computed on first use
+         */
+        @NotNull
+        public synchronized MultiMarkdownBlocks getBlocks() {
+            if (blocks == null) {
+                blocks = MultiMarkdownBlocks.of(buffer, pegdownExtensions);
+            }
+            return blocks;
+        }
+    }
+}
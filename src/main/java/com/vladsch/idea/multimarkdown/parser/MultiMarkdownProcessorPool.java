@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.pegdown.Extensions;
+import org.pegdown.Parser;
+import org.pegdown.PegDownProcessor;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ready to use PegDownProcessor instances keyed by extension flags and parsing timeout.
+ * <p/>
+ * A processor is not thread safe but can be reused for any number of parses, so callers check one out
+ * with {@link #acquire(int, int)} and give it back with {@link #release(PegDownProcessor, int, int)}
+ * once the parse completed normally.
+ * <p/>
+ * pegdown never clears the parser's header list between parses and TocNodes of a parsed root share that list, so
+ * processors are only pooled when the list can be cleared and the TOC extension is off.
+ */
+public class MultiMarkdownProcessorPool {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownProcessorPool.class);
+
+    // enough for the parallel parser to have one processor per thread
+    public static final int MAX_IDLE_PER_KEY = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    protected static final ConcurrentHashMap<Long, Processors> pools = new ConcurrentHashMap<Long, Processors>();
+
+    protected static final AtomicLong created = new AtomicLong();
+    protected static final AtomicLong reused = new AtomicLong();
+
+    @Nullable protected static final Field parserHeaders = getParserHeadersField();
+
+    protected static class Processors {
+        final ConcurrentLinkedQueue<PegDownProcessor> idle = new ConcurrentLinkedQueue<PegDownProcessor>();
+        final AtomicInteger idleCount = new AtomicInteger();
+    }
+
+    protected static long getKey(int pegdownExtensions, int parsingTimeout) {
+        return ((long) pegdownExtensions << 32) | (parsingTimeout & 0xffffffffL);
+    }
+
+    @NotNull
+    protected static Processors getProcessors(int pegdownExtensions, int parsingTimeout) {
+        Long key = getKey(pegdownExtensions, parsingTimeout);
+        Processors processors = pools.get(key);
+        if (processors == null) {
+            processors = new Processors();
+            Processors prev = pools.putIfAbsent(key, processors);
+            if (prev != null) processors = prev;
+        }
+        return processors;
+    }
+
+    @NotNull
+    public static PegDownProcessor acquire(int pegdownExtensions, int parsingTimeout) {
+        Processors processors = getProcessors(pegdownExtensions, parsingTimeout);
+        PegDownProcessor processor = processors.idle.poll();
+
+        if (processor != null) {
+            processors.idleCount.decrementAndGet();
+            reused.incrementAndGet();
+            return processor;
+        }
+
+        created.incrementAndGet();
+        return new PegDownProcessor(pegdownExtensions, parsingTimeout);
+    }
+
+    @Nullable
+    protected static Field getParserHeadersField() {
+        try {
+            Field field = Parser.class.getDeclaredField("headers");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            logger.info("Pegdown processors will not be pooled, parser headers are not accessible: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static boolean isPoolable(int pegdownExtensions) {
+        return parserHeaders != null && (pegdownExtensions & Extensions.TOC) == 0;
+    }
+
+    /**
+     * Clear the headers collected by the last parse, pegdown only clears the other lists it collects
+     *
+     * @return true if the processor no longer holds any state from its last parse
+     */
+    protected static boolean clearHeaders(@NotNull PegDownProcessor processor) {
+        if (parserHeaders == null) return false;
+
+        try {
+            ((List<?>) parserHeaders.get(processor.parser)).clear();
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to clear pegdown parser headers", e);
+            return false;
+        }
+    }
+
+    /**
+     * Only processors whose last parse completed without an exception should be released back to the pool. Processors
+     * that cannot be reset are dropped.
+     */
+    public static void release(@NotNull PegDownProcessor processor, int pegdownExtensions, int parsingTimeout) {
+        if (isPoolable(pegdownExtensions) && clearHeaders(processor)) {
+            offer(processor, pegdownExtensions, parsingTimeout);
+        }
+    }
+
+    protected static void offer(@NotNull PegDownProcessor processor, int pegdownExtensions, int parsingTimeout) {
+        Processors processors = getProcessors(pegdownExtensions, parsingTimeout);
+
+        if (processors.idleCount.incrementAndGet() <= MAX_IDLE_PER_KEY) {
+            processors.idle.offer(processor);
+        } else {
+            processors.idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Create an idle processor for the given settings unless one is already available, intended to be called from a
+     * background thread so that the first parse does not pay for parboiled's parser construction.
+     */
+    public static void prewarm(int pegdownExtensions, int parsingTimeout) {
+        Processors processors = getProcessors(pegdownExtensions, parsingTimeout);
+        if (processors.idleCount.get() == 0) {
+            long start = System.currentTimeMillis();
+            // a processor that has not parsed anything yet has no headers to clear, even with the TOC extension
+            offer(acquire(pegdownExtensions, parsingTimeout), pegdownExtensions, parsingTimeout);
+            logger.info("Pre-warmed pegdown processor for extensions 0x" + Integer.toHexString(pegdownExtensions) + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    public static void clear() {
+        pools.clear();
+    }
+
+    public static long getCreated() { return created.get(); }
+
+    public static long getReused() { return reused.get(); }
+}
@@ -102,17 +102,8 @@ public class MultiMarkdownReference extends PsiReferenceBase<MultiMarkdownNamedE
     @NotNull
     @Override
     public ResolveResult[] multiResolve(boolean incompleteCode) {
-        //if (incompleteCode) {
+        // references are re-created with the psi, link results are cached by the project's resolve cache instead
         return getMultiResolveResults(incompleteCode);
-        //} else {
-        //    if (resolveResults == null || resolveResultsName == null || !resolveResultsName.equals(getElement().getName())) {
-        //        resolveResultsName = getElement().getName();
-        //        if (resolveResultsName == null) resolveResultsName = "";
-        //        setRangeInElement(new TextRange(0, resolveResultsName.length()));
-        //        resolveResults = getMultiResolveResults(false);
-        //    }
-        //    return resolveResults;
-        //}
     }
 
     @Override
@@ -165,6 +156,18 @@ public class MultiMarkdownReference extends PsiReferenceBase<MultiMarkdownNamedE
         return new Object[0];
     }
 
+    /**
+     * @return key of the link in the project's resolve cache: containing file, link kind and link text with anchor
+     */
+    @Nullable
+    protected String getResolveCacheKey(boolean incompleteCode) {
+        MultiMarkdownPsiImplUtil.LinkRefElementTypes elementTypes = MultiMarkdownPsiImplUtil.getNamedElementTypes(myElement);
+        if (elementTypes == null) return null;
+
+        return MultiMarkdownResolveCache.getKey(myElement.getContainingFile().getVirtualFile().getPath(), elementTypes.parentType.toString(),
+                MultiMarkdownPsiImplUtil.getLinkRefTextWithAnchor(myElement), incompleteCode);
+    }
+
     /**
      * Default implementation resolves to missing element reference by namespace of the referencing element
      *
@@ -177,11 +180,24 @@ public class MultiMarkdownReference extends PsiReferenceBase<MultiMarkdownNamedE
         if (name != null) {
             if (myElement instanceof MultiMarkdownWikiLinkRef) {
                 if (myElement.getContainingFile() != null && myElement.getContainingFile().getVirtualFile() != null) {
+                    MultiMarkdownProjectComponent projectComponent = MultiMarkdownPlugin.getProjectComponent(myElement.getProject());
+                    String cacheKey = projectComponent == null ? null : getResolveCacheKey(incompleteCode);
+                    long modificationCount = projectComponent == null ? 0 : projectComponent.getLinkTargetModificationCount();
+
+                    if (cacheKey != null) {
+                        ResolveResult[] cachedResults = projectComponent.getResolveCache().get(cacheKey, modificationCount);
+                        if (cachedResults != null) {
+                            if (cachedResults.length > 0) removeReferenceChangeListener();
+                            return cachedResults;
+                        }
+                    }
+
                     LinkRef linkRef = MultiMarkdownPsiImplUtil.getLinkRef(myElement);
 
                     if (linkRef != null) {
                         GitHubLinkResolver resolver = new GitHubLinkResolver(myElement);
                         List<PathInfo> pathInfos = resolver.multiResolve(linkRef, LinkResolver.PREFER_LOCAL | (incompleteCode ? LinkResolver.LOOSE_MATCH : 0), null);
+                        ResolveResult[] resolveResults = EMPTY_RESULTS;
 
                         if (pathInfos.size() > 0) {
                             List<ResolveResult> results = new ArrayList<ResolveResult>();
@@ -196,11 +212,13 @@ public class MultiMarkdownReference extends PsiReferenceBase<MultiMarkdownNamedE
 
                             if (results.size() > 0) {
                                 removeReferenceChangeListener();
-                                return results.toArray(new ResolveResult[results.size()]);
+                                resolveResults = results.toArray(new ResolveResult[results.size()]);
                             }
                         }
+
                         //return new ResolveResult[] { new PsiElementResolveResult(getMissingRefElement(name)) };
-                        return EMPTY_RESULTS;
+                        if (cacheKey != null) projectComponent.getResolveCache().put(cacheKey, modificationCount, resolveResults);
+                        return resolveResults;
                     }
                 }
             } else {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.psi.impl;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.ResolveResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolve results of link references by the containing file, kind and text of the link.
+ * <p/>
+ * Which files a link resolves to only depends on the paths of the project's files and the link settings, so results
+ * stay valid until the project's link target modification count changes with a file being created, deleted, renamed or
+ * moved or with a settings change. All results are dropped when it does.
+ */
+public class MultiMarkdownResolveCache {
+    public static final int CACHE_SIZE = 1024;
+
+    protected final LinkedHashMap<String, ResolveResult[]> results = new LinkedHashMap<String, ResolveResult[]>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolveResult[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // modification count of the cached results, guarded by results
+    protected long modificationCount = -1;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    @NotNull
+    public static String getKey(@NotNull String containingFilePath, @NotNull String linkKind, @NotNull String linkText, boolean incompleteCode) {
+        return containingFilePath + "\n" + linkKind + "\n" + linkText + "\n" + incompleteCode;
+    }
+
+    /**
+     * @return cached results or null if the link needs to be resolved
+     */
+    @Nullable
+    public ResolveResult[] get(@NotNull String key, long modificationCount) {
+        ResolveResult[] resolveResults;
+        synchronized (results) {
+            if (this.modificationCount != modificationCount) {
+                results.clear();
+                this.modificationCount = modificationCount;
+            }
+            resolveResults = results.get(key);
+        }
+
+        if (resolveResults != null && isValid(resolveResults)) {
+            hits.incrementAndGet();
+            return resolveResults;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(@NotNull String key, long modificationCount, @NotNull ResolveResult[] resolveResults) {
+        synchronized (results) {
+            // results of a resolve that started before a change are not saved
+            if (this.modificationCount == modificationCount) results.put(key, resolveResults);
+        }
+    }
+
+    public void clear() {
+        synchronized (results) {
+            results.clear();
+            modificationCount = -1;
+        }
+    }
+
+    protected static boolean isValid(@NotNull ResolveResult[] resolveResults) {
+        // psi of a target file is replaced when its file type changes
+        for (ResolveResult resolveResult : resolveResults) {
+            PsiElement element = resolveResult.getElement();
+            if (element == null || !element.isValid()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return "MultiMarkdownResolveCache{entries: " + size() + ", hits: " + hits + ", misses: " + getMisses()
+                + ", hit rate: " + (total == 0 ? 0 : hits * 100 / total) + "%}";
+    }
+}
@@ -24,14 +24,17 @@ package com.vladsch.idea.multimarkdown.todo;
 import com.intellij.lexer.Lexer;
 import com.intellij.psi.impl.cache.impl.OccurrenceConsumer;
 import com.intellij.psi.impl.cache.impl.id.LexerBasedIdIndexer;
-import com.vladsch.idea.multimarkdown.parser.MultiMarkdownLexer;
+import com.vladsch.idea.multimarkdown.parser.MultiMarkdownIndexLexer;
 import com.vladsch.idea.multimarkdown.parser.MultiMarkdownPlainTextLexer;
 import com.vladsch.idea.multimarkdown.settings.MultiMarkdownGlobalSettings;
 
 public class MultiMarkdownIdIndexer extends LexerBasedIdIndexer {
 
+    /**
+     * Indexing only needs words and comments so it uses the single pass lexer instead of parsing every file with pegdown
+     */
     public static Lexer createIndexingLexer(OccurrenceConsumer consumer) {
-        return new MultiMarkdownFilterLexer(new MultiMarkdownLexer(), consumer);
+        return new MultiMarkdownFilterLexer(new MultiMarkdownIndexLexer(), consumer);
     }
 
     @Override
@@ -29,6 +29,38 @@ import kotlin.text.RegexOption
 class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val linkRef: LinkRef, val linkRefWasURI:Boolean) {
     companion object {
         private val logger = Logger.getLogger(GitHubLinkMatcher::class.java)
+
+        const val CACHE_SIZE = 256
+
+        // matchers with their compiled patterns, the same links are resolved over and over by annotator, completion and line markers
+        private val matcherCache = object : LinkedHashMap<String, GitHubLinkMatcher>(CACHE_SIZE, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, GitHubLinkMatcher>?): Boolean {
+                return size > CACHE_SIZE
+            }
+        }
+
+        @JvmStatic fun getMatcher(projectResolver: LinkResolver.ProjectResolver, linkRef: LinkRef, linkRefWasURI: Boolean): GitHubLinkMatcher {
+            // everything computeMatchText depends on: link kind and text, containing file, repo and project base paths
+            val key = linkRef.javaClass.name + "|" + linkRef.containingFile.filePath + "|" + linkRef.filePath + "|" + (if (linkRef.anchor == null) "" else "#" + linkRef.anchor) +
+                    "|" + projectResolver.vcsRepoBasePath(linkRef.containingFile).orEmpty() + "|" + projectResolver.projectBasePath + "|" + linkRefWasURI
+
+            synchronized(matcherCache) {
+                val matcher = matcherCache[key]
+                if (matcher != null) return matcher
+            }
+
+            val matcher = GitHubLinkMatcher(projectResolver, linkRef, linkRefWasURI)
+            synchronized(matcherCache) {
+                return matcherCache.getOrPut(key) { matcher }
+            }
+        }
+
+        // the cache is shared by all open projects, only the matchers of the closed project are removed
+        @JvmStatic fun clearCache(projectResolver: LinkResolver.ProjectResolver) {
+            synchronized(matcherCache) {
+                matcherCache.values.removeAll { it.projectResolver === projectResolver }
+            }
+        }
     }
 
     var fixedPrefix = ""
@@ -80,10 +112,28 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
     var effectiveExt: String? = null
         private set
 
+    // LinkTargetIndex keys of the file names matched by the patterns, null if any file name can match
+    var linkFileNameKeys: HashSet<String>? = HashSet()
+        private set
+
     val isOnlyLooseMatchValid by lazy {
         computeMatchText()
     }
 
+    // compiled match patterns, null if the pattern is not used by the link
+    val linkLooseMatchRegex: Regex? by lazy { compilePattern(ignoreCase = true) { linkLooseMatch } }
+    val linkAllMatchIgnoreCaseRegex: Regex? by lazy { compilePattern(ignoreCase = true) { linkAllMatch } }
+    val linkAllMatchRegex: Regex? by lazy { compilePattern(ignoreCase = false) { linkAllMatch } }
+    val linkFileMatchRegex: Regex? by lazy { compilePattern(ignoreCase = false) { linkFileMatch } }
+    val linkFileOrAnchorMatchRegex: Regex? by lazy { compilePattern(ignoreCase = false) { if (linkFileAnchorMatch == null) linkFileMatch else linkFileMatch + "|" + linkFileAnchorMatch } }
+
+    private fun compilePattern(ignoreCase: Boolean, pattern: () -> String?): Regex? {
+        // patterns are set by computeMatchText
+        isOnlyLooseMatchValid
+        val patternText = pattern() ?: return null
+        return if (ignoreCase) patternText.toRegex(RegexOption.IGNORE_CASE) else patternText.toRegex()
+    }
+
     private fun matchExt(ext: String?): String {
         return if (ext != null && !ext.isEmpty()) linkTextToFileMatch(ext.prefixWith('.')) else ""
     }
@@ -102,6 +152,19 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
         return linkRef.linkToFileRegex(linkRef.linkToFile(pathText.orEmpty())) + if (isOptional) "?" else ""
     }
 
+    // pattern for the file name part of a match, records the key of the file names it matches
+    fun fileNameToFileMatch(pathText: String?, emptyMatchesAll: Boolean): String {
+        if (pathText == null || pathText.isEmpty()) {
+            if (emptyMatchesAll) linkFileNameKeys = null
+            else linkFileNameKeys?.add("")
+        } else {
+            // same file name text as the pattern, only wiki links are not url decoded
+            val fileText = linkRef.linkToFile(pathText)
+            linkFileNameKeys?.add(LinkTargetIndex.fileNameKey(if (linkRef is WikiLinkRef) fileText else LinkRef.urlDecode(fileText)))
+        }
+        return linkTextToFileMatch(pathText, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+    }
+
     fun quoteMatchPattern(pathText: String?, isOptional: Boolean = false, emptyMatchesAll: Boolean = false): String {
         if (pathText == null || pathText.isEmpty()) return if (emptyMatchesAll) "(?:.*)" else ""
         return "(?:\\Q" + pathText + "\\E)" + if (isOptional) "?" else ""
@@ -109,7 +172,7 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
 
     fun patternRegex(looseMatch: Boolean): Regex? {
         if (isOnlyLooseMatchValid && !looseMatch) return null
-        return (if (looseMatch) linkLooseMatch else linkAllMatch)?.toRegex(RegexOption.IGNORE_CASE)
+        return if (looseMatch) linkLooseMatchRegex else linkAllMatchIgnoreCaseRegex
     }
 
     protected fun computeMatchText(): Boolean {
@@ -144,7 +207,7 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
             val pureAnchor = linkRef.filePath.isEmpty() && linkRef.anchor != null
             if (useLooseMatch) {
                 val looseAnchorPattern = linkTextToFileMatch(PathInfo(linkRef.anchorText).filePathNoExt, isOptional = true)
-                val looseFilenamePattern = linkTextToFileMatch(if (pureAnchor) linkRef.containingFile.fileNameNoExt else fileNameNoExt, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+                val looseFilenamePattern = fileNameToFileMatch(if (pureAnchor) linkRef.containingFile.fileNameNoExt else fileNameNoExt, emptyMatchesAll = emptyMatchesAll)
                 val looseExtensionPattern = (extensionPattern(ext, isOptional = true) + extensionPattern(PathInfo(linkRef.anchorText).ext, *linkExtensions, isOptional = true)).regexGroup()
                 linkLooseMatch = "^$fixedPrefix$subDirPattern$looseFilenamePattern$looseAnchorPattern$looseExtensionPattern$"
                 linkLooseMatchExtensions = arrayOf(ext, PathInfo(linkRef.anchorText).ext, *linkExtensions).filter { !it.isEmpty() }
@@ -156,7 +219,7 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
             // if it has extension then we inlude it as alternative before default extensions because it may not be an extension but part of the file name
             val defaultExtensions = extensionPattern(*linkExtensions, isOptional = false)
             val extensionPattern = if (!ext.isEmpty()) (extensionPattern(ext, isOptional = false) + "|" + extensionPattern(ext, isOptional = false) + defaultExtensions).regexGroup() else defaultExtensions
-            val filenamePattern = linkTextToFileMatch(filePath, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+            val filenamePattern = fileNameToFileMatch(filePath, emptyMatchesAll = emptyMatchesAll)
             linkAllMatchExtensions = arrayOf(ext, *linkExtensions).filter { !it.isEmpty() }
 
             linkFileMatch = "^$fixedPrefix$filenamePattern$"
@@ -341,7 +404,7 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
                 // if it has extension then we inlude it as alternative before default extensions because it may not be an extension but part of the file name
                 if (useLooseMatch) {
                     val looseAnchorPattern = linkTextToFileMatch(PathInfo(linkRef.anchorText).filePathNoExt, isOptional = true)
-                    val looseFilenamePattern = linkTextToFileMatch(fileNameNoExt, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+                    val looseFilenamePattern = fileNameToFileMatch(fileNameNoExt, emptyMatchesAll = emptyMatchesAll)
                     val looseFilePrefixPattern = linkTextToFileMatch(if (filePath.isEmpty()) linkRef.containingFile.filePath else linkRef.path)
                     val looseExtensionPattern = (extensionPattern(ext, isOptional = true) + extensionPattern(PathInfo(linkRef.anchorText).ext, *linkExtensions, isOptional = true)).regexGroup()
                     linkLooseMatch = "^$fixedPrefix$looseFilePrefixPattern$subDirPattern$looseFilenamePattern$looseAnchorPattern${looseExtensionPattern.suffixWith('?')}$"
@@ -350,8 +413,8 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
 
                 val defaultExtensions = extensionPattern(*linkExtensions, isOptional = false)
                 val extensionPattern = if (!ext.isEmpty()) (extensionPattern(ext, isOptional = false) + "|" + extensionPattern(ext, isOptional = false) + defaultExtensions).regexGroup() else defaultExtensions
-                val filenamePattern = linkTextToFileMatch(filePath, isOptional = false, emptyMatchesAll = emptyMatchesAll)
-                val filenameNoExtPattern = linkTextToFileMatch(filePathNoExt, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+                val filenamePattern = fileNameToFileMatch(filePath, emptyMatchesAll = emptyMatchesAll)
+                val filenameNoExtPattern = fileNameToFileMatch(filePathNoExt, emptyMatchesAll = emptyMatchesAll)
                 val anchorPattern = linkTextToFileMatch(linkRef.anchorText, isOptional = false)
 
                 linkFileMatch = "^$fixedPrefix$filenamePattern$"
@@ -365,12 +428,12 @@ class GitHubLinkMatcher(val projectResolver: LinkResolver.ProjectResolver, val l
             } else {
                 // regular repo match, we build up all options for looseMatch and later resolution as to what we really matched
                 val extensionPattern = if (linkRef.hasExt) extensionPattern(ext, isOptional = false) else extensionPattern(*linkExtensions, isOptional = false)
-                val filenamePattern = linkTextToFileMatch(filePath, isOptional = false, emptyMatchesAll = emptyMatchesAll)
-                val filenameNoExtPattern = linkTextToFileMatch(filePathNoExt, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+                val filenamePattern = fileNameToFileMatch(filePath, emptyMatchesAll = emptyMatchesAll)
+                val filenameNoExtPattern = fileNameToFileMatch(filePathNoExt, emptyMatchesAll = emptyMatchesAll)
 
                 if (useLooseMatch) {
                     val looseAnchorPattern = linkTextToFileMatch(PathInfo(linkRef.anchorText).filePathNoExt, isOptional = true)
-                    val looseFilenamePattern = linkTextToFileMatch(fileNameNoExt, isOptional = false, emptyMatchesAll = emptyMatchesAll)
+                    val looseFilenamePattern = fileNameToFileMatch(fileNameNoExt, emptyMatchesAll = emptyMatchesAll)
                     val looseExtensionPattern = extensionPattern(ext, PathInfo(linkRef.anchorText).ext, *linkExtensions, isOptional = true)
                     linkLooseMatch = "^$fixedPrefix$subDirPattern$looseFilenamePattern$looseAnchorPattern${looseExtensionPattern.suffixWith('?')}$"
                     linkLooseMatchExtensions = arrayOf(ext, PathInfo(linkRef.anchorText).ext, *linkExtensions).filter { !it.isEmpty() }
@@ -36,7 +36,6 @@ import com.intellij.util.indexing.FileBasedIndexImpl
 import com.vladsch.idea.multimarkdown.MultiMarkdownPlugin
 import java.net.URI
 import java.util.*
-import kotlin.text.RegexOption
 
 
 class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containingFile: FileRef, branchOrTag: String? = null) : LinkResolver(projectResolver, containingFile, branchOrTag) {
@@ -79,6 +78,8 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                 GITHUB_PULSE_NAME,
                 GITHUB_WIKI_NAME
         )
+
+        private val REPO_PREFIX_PATH_PATTERN = ("^([^/]+)\\Q/\\E([^/]+)\\Q/\\E").toRegex()
     }
 
     private var matcher: GitHubLinkMatcher? = null
@@ -86,7 +87,7 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
     fun getMatcher(linkRef: LinkRef, linkRefWasURI: Boolean): GitHubLinkMatcher {
         var _matcher = matcher
         if (_matcher === null || _matcher.linkRef != linkRef) {
-            _matcher = GitHubLinkMatcher(projectResolver, linkRef, linkRefWasURI)
+            _matcher = GitHubLinkMatcher.getMatcher(projectResolver, linkRef, linkRefWasURI)
             matcher = _matcher
         }
         return _matcher
@@ -171,6 +172,111 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
         return getMatchedRefs(relLink, linkRefMatcher, opts, inList)
     }
 
+    // resolves all links of a file with one pass over the project files, returns exact and loose matches in the order of linkRefs
+    override fun multiResolveAll(linkRefs: List<LinkRef>, options: Int): List<LinkMatches> {
+        val results = ArrayList<LinkMatches>(linkRefs.size)
+        if (project == null) {
+            // testing, no project files to index
+            for (linkRef in linkRefs) {
+                val looseMatches = multiResolve(linkRef, options or LOOSE_MATCH, null)
+                results.add(LinkMatches(linkRef, multiResolve(linkRef, options, looseMatches), looseMatches))
+            }
+            return results
+        }
+
+        val relLinks = ArrayList<LinkRef>(linkRefs.size)
+        val relOptions = IntArray(linkRefs.size)
+        val linkMatchers = ArrayList<GitHubLinkMatcher>(linkRefs.size)
+        val linkFileTypes = ArrayList<HashSet<FileType>?>(linkRefs.size)
+        val candidates = ArrayList<ArrayList<PathInfo>>(linkRefs.size)
+
+        // links by the name keys of the files they can match, links that can match any file name are checked against every file
+        val keyLinks = HashMap<String, ArrayList<Int>>()
+        val anyNameLinks = ArrayList<Int>()
+        val allFileTypes = HashSet<FileType>()
+
+        for (linkRef in linkRefs) {
+            assertContainingFile(linkRef)
+            var relLink = linkRef
+            var opts = options
+            if (linkRef.isURI) {
+                val relPath = uriToRelativeLink(linkRef)
+                if (relPath is LinkRef) {
+                    relLink = relPath
+                    opts = opts or LINK_REF_WAS_URI
+                }
+            }
+
+            val index = relLinks.size
+            val linkMatcher = getMatcher(relLink, linkRefWasURI(opts))
+            val fileTypes = if (linkMatcher.gitHubLinks || linkMatcher.linkLooseMatchRegex == null) null else getTargetFileTypes(linkMatcher.linkLooseMatchExtensions)
+
+            relLinks.add(relLink)
+            relOptions[index] = opts
+            linkMatchers.add(linkMatcher)
+            linkFileTypes.add(fileTypes)
+            candidates.add(ArrayList<PathInfo>())
+
+            if (fileTypes == null || fileTypes.isEmpty()) continue
+
+            allFileTypes.addAll(fileTypes)
+            val fileNameKeys = linkMatcher.linkFileNameKeys
+            if (fileNameKeys == null) {
+                anyNameLinks.add(index)
+            } else {
+                for (key in fileNameKeys) {
+                    keyLinks.getOrPut(key) { ArrayList<Int>() }.add(index)
+                }
+            }
+        }
+
+        val processor = Processor<VirtualFile> { virtualFile ->
+            var fileRef: ProjectFileRef? = null
+            val fileType = virtualFile.fileType
+            val filePath = virtualFile.path
+
+            for (indices in arrayOf(keyLinks[LinkTargetIndex.fileNameKey(virtualFile.name)], anyNameLinks)) {
+                if (indices == null) continue
+                for (index in indices) {
+                    if (fileType in linkFileTypes[index]!! && filePath.matches(linkMatchers[index].linkLooseMatchRegex!!)) {
+                        if (fileRef == null) fileRef = ProjectFileRef(virtualFile, project)
+                        candidates[index].add(fileRef)
+                    }
+                }
+            }
+            true
+        }
+
+        val linkTargetIndex = MultiMarkdownPlugin.getProjectComponent(project)?.linkTargetIndex
+        if (anyNameLinks.isEmpty() && linkTargetIndex != null) {
+            if (!keyLinks.isEmpty()) {
+                for (virtualFile in linkTargetIndex.getFiles(keyLinks.keys)) {
+                    processor.process(virtualFile)
+                }
+            }
+        } else {
+            val instance = FileBasedIndex.getInstance() as FileBasedIndexImpl
+            for (type in allFileTypes) {
+                instance.processFilesContainingAllKeys(FileTypeIndex.NAME, setOf(type), GlobalSearchScope.projectScope(project), null, processor)
+            }
+        }
+
+        // the rest of the matching works on the candidate list, exact matches come from the loose ones
+        for (index in linkRefs.indices) {
+            val relLink = relLinks[index]
+            val linkMatcher = linkMatchers[index]
+            val opts = relOptions[index]
+            val fileTypes = linkFileTypes[index]
+
+            val looseMatches =
+                    if (fileTypes != null && fileTypes.isEmpty()) ArrayList<PathInfo>(0)
+                    else getMatchedRefs(relLink, linkMatcher, opts or LOOSE_MATCH, if (linkMatcher.gitHubLinks) null else candidates[index])
+
+            results.add(LinkMatches(linkRefs[index], getMatchedRefs(relLink, linkMatcher, opts, looseMatches), looseMatches))
+        }
+        return results
+    }
+
     // TODO: change this to take an exact resolve list and a loose matched list so that
     // all types of issues could be analyzed, not just based on single target
     override fun inspect(linkRef: LinkRef, targetRef: FileRef, referenceId: Any?): List<InspectionResult> {
@@ -250,12 +356,12 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
             // TODO: need to have a flag or to modify the regex to exclude wiki matches when exact matching in the repo
             val allMatchWiki =
                     if (wantLooseMatch(options)) {
-                        linkLooseMatch.toRegex(RegexOption.IGNORE_CASE)
+                        linkMatcher.linkLooseMatchRegex!!
                     } else {
                         if (linkMatcher.wikiMatchingRules) {
-                            linkAllMatch.toRegex(RegexOption.IGNORE_CASE)
+                            linkMatcher.linkAllMatchIgnoreCaseRegex!!
                         } else {
-                            linkMatcher.linkFileMatch!!.toRegex()
+                            linkMatcher.linkFileMatchRegex!!
                         }
                     }
 
@@ -264,7 +370,7 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                         allMatchWiki
                     } else {
                         if (linkMatcher.wikiMatchingRules) {
-                            linkAllMatch.toRegex()
+                            linkMatcher.linkAllMatchRegex!!
                         } else {
                             allMatchWiki
                         }
@@ -279,6 +385,9 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
 
             //            val allFiles = ArrayList<String>()
 
+            // only files whose name has one of these keys can match, null if any file can
+            val fileNameKeys = linkMatcher.linkFileNameKeys
+
             if (fromList == null) {
                 val targetFileTypes = getTargetFileTypes(allExtensions)
                 if (targetFileTypes.isEmpty() || project == null) {
@@ -288,6 +397,8 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                     val projectFileList = projectResolver.projectFileList(allExtensions)
                     if (projectFileList != null) {
                         for (fileRef in projectFileList) {
+                            if (fileNameKeys != null && LinkTargetIndex.fileNameKey(fileRef.fileName) !in fileNameKeys) continue
+
                             if (fileRef.filePath.matches(if (fileRef.isWikiPage) allMatchWiki else allMatchNonWiki)) {
                                 // here we need to test for wiki page links that resolve to raw files, these have to match case sensitive
                                 if (allMatchNonWiki === allMatchWiki || !linkMatcher.wikiMatchingRules || !linkRef.hasExt || fileRef.filePath.matches(allMatchNonWiki)) {
@@ -298,18 +409,28 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                     }
                 } else {
                     //val projectFileList = projectResolver.projectFileList(targetFileTypes)
-                    val instance = FileBasedIndex.getInstance() as FileBasedIndexImpl
-                    for (type in targetFileTypes) {
-                        val containingFiles = instance.processFilesContainingAllKeys(FileTypeIndex.NAME, setOf(type), GlobalSearchScope.projectScope(project), null, Processor<VirtualFile> { virtualFile ->
-                            //                            allFiles.add(virtualFile.path)
-                            if (virtualFile.path.matches(allMatchWiki)) {
-                                val fileRef = ProjectFileRef(virtualFile, project)
-                                if (allMatchNonWiki === allMatchWiki || !linkMatcher.wikiMatchingRules || !linkRef.hasExt || fileRef.filePath.matches(allMatchNonWiki)) {
-                                    matches.add(fileRef)
-                                }
+                    val processor = Processor<VirtualFile> { virtualFile ->
+                        //                            allFiles.add(virtualFile.path)
+                        if (virtualFile.path.matches(allMatchWiki)) {
+                            val fileRef = ProjectFileRef(virtualFile, project)
+                            if (allMatchNonWiki === allMatchWiki || !linkMatcher.wikiMatchingRules || !linkRef.hasExt || fileRef.filePath.matches(allMatchNonWiki)) {
+                                matches.add(fileRef)
                             }
-                            true
-                        })
+                        }
+                        true
+                    }
+
+                    val linkTargetIndex = MultiMarkdownPlugin.getProjectComponent(project)?.linkTargetIndex
+                    if (fileNameKeys != null && linkTargetIndex != null) {
+                        // the index narrows the files down to the few with a matching name
+                        for (virtualFile in linkTargetIndex.getFiles(fileNameKeys)) {
+                            if (virtualFile.fileType in targetFileTypes) processor.process(virtualFile)
+                        }
+                    } else {
+                        val instance = FileBasedIndex.getInstance() as FileBasedIndexImpl
+                        for (type in targetFileTypes) {
+                            instance.processFilesContainingAllKeys(FileTypeIndex.NAME, setOf(type), GlobalSearchScope.projectScope(project), null, processor)
+                        }
                     }
                 }
             } else {
@@ -341,7 +462,7 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                     // these match raw file content
                     // case sensitive: linkFileMatch = "^$fixedPrefix$filenamePattern$"
                     // case sensitive: linkFileAnchorMatch = "^$fixedPrefix$filenamePattern$anchorPattern$"
-                    val fileOrAnchorMatch = (if (linkMatcher.linkFileAnchorMatch == null) linkMatcher.linkFileMatch else linkMatcher.linkFileMatch + "|" + linkMatcher.linkFileAnchorMatch)?.toRegex()
+                    val fileOrAnchorMatch = linkMatcher.linkFileOrAnchorMatchRegex
                     if (fileOrAnchorMatch != null) {
                         for (fileRef in matches) {
                             if (fileRef is FileRef && fileRef.filePath.matches(fileOrAnchorMatch)) {
@@ -356,7 +477,7 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
 
                     // these match raw file content and images
                     // case sensitive: linkFileMatch = "^$fixedPrefix$filenamePattern$"
-                    val fileMatch = linkMatcher.linkFileMatch?.toRegex()
+                    val fileMatch = linkMatcher.linkFileMatchRegex
                     if (fileMatch != null) {
                         for (fileRef in matches) {
                             if (fileRef is FileRef && (!fileRef.isWikiPageExt || fileRef.filePath.matches(fileMatch))) {
@@ -392,7 +513,7 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                 }
 
 
-                var linkFileMatchRegex = linkMatcher.linkFileMatch?.toRegex() ?: linkAllMatch.toRegex()
+                var linkFileMatchRegex = linkMatcher.linkFileMatchRegex ?: linkMatcher.linkAllMatchRegex!!
                 resolved.sort { self, other ->
                     if (self.filePath.matches(linkFileMatchRegex) && !other.filePath.matches(linkFileMatchRegex)) -1
                     else if (!self.filePath.matches(linkFileMatchRegex) && other.filePath.matches(linkFileMatchRegex)) 1
@@ -447,14 +568,12 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                     matches.add(urlRef)
                 }
             } else {
-                val linkLooseMatch = linkMatcher.linkLooseMatch
-                if (!linkMatcher.isOnlyLooseMatchValid && linkMatcher.effectiveExt.isNullOrEmpty() && linkLooseMatch != null) {
+                val allMatchWiki = linkMatcher.linkLooseMatchRegex
+                if (!linkMatcher.isOnlyLooseMatchValid && linkMatcher.effectiveExt.isNullOrEmpty() && allMatchWiki != null) {
                     val vcsRoot = projectResolver.getVcsRoot(linkRef.containingFile)
                     if (vcsRoot != null) {
                         val remoteUrl = vcsRoot.baseUrl
                         val basePath = vcsRoot.basePath
-                        val allMatchWiki = linkLooseMatch.toRegex(RegexOption.IGNORE_CASE)
-
                         assert(remoteUrl.startsWith("http://") || remoteUrl.startsWith("https://"), { "remote vcsRepoBase has to start with http:// or https://, instead got $remoteUrl" })
 
                         for (link in GITHUB_NON_FILE_LINKS) {
@@ -593,9 +712,8 @@ class GitHubLinkResolver(projectResolver: LinkResolver.ProjectResolver, containi
                             return filePath
                         } else {
                             // main repo file, if it starts with blob/something/ or raw/something then we can handle it
-                            var repoPrefixPathPattern = ("^([^/]+)\\Q/\\E([^/]+)\\Q/\\E").toRegex()
-                            if (fileName.matches(repoPrefixPathPattern)) {
-                                val match = repoPrefixPathPattern.find(fileName)
+                            if (fileName.matches(REPO_PREFIX_PATH_PATTERN)) {
+                                val match = REPO_PREFIX_PATH_PATTERN.find(fileName)
                                 if (match != null) {
                                     val oldGitHubLink = match.groups[0]
                                     val oldBranchOrTag = match.groups[1]
@@ -72,11 +72,15 @@ abstract class LinkResolver(val projectResolver: LinkResolver.ProjectResolver, v
         fun linkRefWasURI(options: Int): Boolean = (options and LINK_REF_WAS_URI != 0)
     }
 
+    // exact and loose matches of one link of a batch resolve, exact matches are a subset of the loose ones
+    class LinkMatches(val linkRef: LinkRef, val matches: List<PathInfo>, val looseMatches: List<PathInfo>)
+
     abstract fun inspect(linkRef: LinkRef, targetRef: FileRef, referenceId: Any? = null): List<InspectionResult>
     abstract fun isResolved(linkRef: LinkRef, options: Int = 0, inList: List<PathInfo>? = null): Boolean
     abstract fun isResolvedTo(linkRef: LinkRef, targetRef: FileRef, withExtForWikiPage: Boolean? = null, branchOrTag: String? = null): Boolean
     abstract fun linkAddress(linkRef: LinkRef, targetRef: PathInfo, withExtForWikiPage: Boolean? = null, branchOrTag: String? = null, anchor: String? = null): String
     abstract fun multiResolve(linkRef: LinkRef, options: Int = 0, inList: List<PathInfo>? = null): List<PathInfo>
+    abstract fun multiResolveAll(linkRefs: List<LinkRef>, options: Int = 0): List<LinkMatches>
     abstract fun relativePath(linkRef: LinkRef, targetRef: FileRef, withExtForWikiPage: Boolean, branchOrTag: String? = null): String
     abstract fun resolve(linkRef: LinkRef, options: Int = 0, inList: List<PathInfo>? = null): PathInfo?
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.util;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Project files by the key of their file name, so that a link's match patterns only need to be tried on the files
+ * with one of the keys of the link's file name instead of on every file of the project.
+ * <p/>
+ * The key of a file name is its text up to the first . or #, lower case and with spaces changed to dashes. All file
+ * names a link matches have the same key: case is ignored, extensions and anchors follow the part of the name that
+ * comes from the link, and wiki links match a dash with a space.
+ * <p/>
+ * The index is built from the project content on first use and updated from VFS events. Directory events and root
+ * changes drop it so that it is rebuilt on the next use.
+ */
+public class LinkTargetIndex {
+    @NotNull private final Project project;
+    @Nullable private HashMap<String, ArrayList<VirtualFile>> index = null;
+
+    public LinkTargetIndex(@NotNull Project project) {
+        this.project = project;
+    }
+
+    /**
+     * @param filePath file name or path, the key is for its last part
+     */
+    @NotNull
+    public static String fileNameKey(@NotNull String filePath) {
+        int start = filePath.lastIndexOf('/') + 1;
+        int end = filePath.length();
+
+        for (int i = start; i < end; i++) {
+            char c = filePath.charAt(i);
+            if (c == '.' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        return filePath.substring(start, end).toLowerCase(Locale.ROOT).replace(' ', '-');
+    }
+
+    /**
+     * @return project content files whose name has one of the keys
+     */
+    @NotNull
+    public synchronized List<VirtualFile> getFiles(@NotNull Collection<String> keys) {
+        HashMap<String, ArrayList<VirtualFile>> index = getIndex();
+        ProjectFileIndex fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+        ArrayList<VirtualFile> files = new ArrayList<VirtualFile>();
+
+        for (String key : keys) {
+            ArrayList<VirtualFile> keyFiles = index.get(key);
+            if (keyFiles == null) continue;
+
+            for (VirtualFile file : keyFiles) {
+                // moved files stay in the index, they may no longer be in the project
+                if (file.isValid() && fileIndex.isInContent(file)) files.add(file);
+            }
+        }
+        return files;
+    }
+
+    @NotNull
+    protected HashMap<String, ArrayList<VirtualFile>> getIndex() {
+        HashMap<String, ArrayList<VirtualFile>> index = this.index;
+        if (index == null) {
+            final HashMap<String, ArrayList<VirtualFile>> newIndex = new HashMap<String, ArrayList<VirtualFile>>();
+            ProjectRootManager.getInstance(project).getFileIndex().iterateContent(new ContentIterator() {
+                @Override
+                public boolean processFile(VirtualFile fileOrDir) {
+                    if (!fileOrDir.isDirectory()) add(newIndex, fileOrDir, fileOrDir.getName());
+                    return true;
+                }
+            });
+            this.index = index = newIndex;
+        }
+        return index;
+    }
+
+    protected static void add(@NotNull HashMap<String, ArrayList<VirtualFile>> index, @NotNull VirtualFile file, @NotNull String fileName) {
+        String key = fileNameKey(fileName);
+        ArrayList<VirtualFile> keyFiles = index.get(key);
+        if (keyFiles == null) index.put(key, keyFiles = new ArrayList<VirtualFile>(1));
+        if (!keyFiles.contains(file)) keyFiles.add(file);
+    }
+
+    protected static void remove(@NotNull HashMap<String, ArrayList<VirtualFile>> index, @NotNull VirtualFile file, @NotNull String fileName) {
+        String key = fileNameKey(fileName);
+        ArrayList<VirtualFile> keyFiles = index.get(key);
+        if (keyFiles != null && keyFiles.remove(file) && keyFiles.isEmpty()) index.remove(key);
+    }
+
+    public synchronized void invalidate() {
+        index = null;
+    }
+
+    public synchronized void fileCreated(@NotNull VirtualFile file) {
+        if (index == null) return;
+
+        if (file.isDirectory()) index = null;
+        else if (ProjectRootManager.getInstance(project).getFileIndex().isInContent(file)) add(index, file, file.getName());
+    }
+
+    public synchronized void fileDeleted(@NotNull VirtualFile file) {
+        if (index == null) return;
+
+        if (file.isDirectory()) index = null;
+        else remove(index, file, file.getName());
+    }
+
+    public synchronized void fileRenamed(@NotNull VirtualFile file, @NotNull String oldName) {
+        if (index == null) return;
+
+        if (file.isDirectory()) return;
+        remove(index, file, oldName);
+        if (ProjectRootManager.getInstance(project).getFileIndex().isInContent(file)) add(index, file, file.getName());
+    }
+
+    public synchronized void fileMoved(@NotNull VirtualFile file) {
+        if (index == null) return;
+
+        if (file.isDirectory()) index = null;
+        else if (ProjectRootManager.getInstance(project).getFileIndex().isInContent(file)) add(index, file, file.getName());
+        else remove(index, file, file.getName());
+    }
+
+}
@@ -20,6 +20,7 @@
  */
 package com.vladsch.idea.multimarkdown;
 
+import com.vladsch.idea.multimarkdown.parser.ParserTestSuite;
 import com.vladsch.idea.multimarkdown.spellchecking.SpellcheckingTestSuite;
 import com.vladsch.idea.multimarkdown.util.UtilTestSuite;
 import org.junit.runner.RunWith;
@@ -28,7 +29,8 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         UtilTestSuite.class,
-        SpellcheckingTestSuite.class
+        SpellcheckingTestSuite.class,
+        ParserTestSuite.class
 })
 public class TestSuite {
 }
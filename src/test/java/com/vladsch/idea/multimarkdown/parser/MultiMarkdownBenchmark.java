@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.lexer.Lexer;
+import com.vladsch.idea.multimarkdown.editor.MultiMarkdownToHtmlSerializer;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.pegdown.LinkRenderer;
+import org.pegdown.ast.RootNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the parser, the lexer and the HTML serializer on the performance files with every extension set and
+ * writes the results as JSON so that a release can be compared against the baseline of a previous one.
+ * <p/>
+ * Run from the project directory with the test classpath:
+ * <pre>
+ *     java -Dbenchmark.iterations=20 com.vladsch.idea.multimarkdown.parser.MultiMarkdownBenchmark results.json [baseline.json]
+ * </pre>
+ * Every benchmark has an untimed setup per invocation, each invocation is timed on its own and its allocations are
+ * counted with the thread allocation counter of the JVM when it has one. Extension sets are the actual extensions,
+ * global settings are not used so the benchmarks run without an application.
+ */
+public class MultiMarkdownBenchmark {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(MultiMarkdownBenchmark.class);
+
+    public static final int WARMUP_ITERATIONS = Integer.getInteger("benchmark.warmup", 5);
+    public static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 20);
+
+    public static abstract class Benchmark {
+        public final String name;
+
+        public Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Untimed, called before every invocation of run()
+         */
+        public void prepare(String text, int pegdownExtensions) {
+        }
+
+        public abstract Object run(String text, int pegdownExtensions);
+    }
+
+    public static final Benchmark PARSE_MARKDOWN_ROOT = new Benchmark("parseMarkdownRoot") {
+        @Override
+        public void prepare(String text, int pegdownExtensions) {
+            MultiMarkdownLexParserManager.getParseCache().clear();
+        }
+
+        @Override
+        public Object run(String text, int pegdownExtensions) {
+            // int extensions and timeout, the preview's entry point without the settings lookup
+            return MultiMarkdownLexParserManager.parseMarkdownRoot(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+        }
+    };
+
+    public static final Benchmark LEX_PARSER = new Benchmark("lexParser") {
+        private RootNode rootNode;
+
+        @Override
+        public void prepare(String text, int pegdownExtensions) {
+            // the lex parser modifies the AST so every invocation needs its own
+            rootNode = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+        }
+
+        @Override
+        public Object run(String text, int pegdownExtensions) {
+            return new MultiMarkdownLexParser().parseMarkdown(rootNode, text.length(), pegdownExtensions);
+        }
+    };
+
+    public static final Benchmark LEXER = new Benchmark("lexer") {
+        @Override
+        public Object run(String text, int pegdownExtensions) {
+            // tokens come from the parse cache after the first invocation, this measures the lexer itself
+            Lexer lexer = new MultiMarkdownLexer(pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+            int count = 0;
+            for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null; lexer.advance()) count++;
+            return count;
+        }
+    };
+
+    public static final Benchmark LEXER_RESTART = new Benchmark("lexerRestart") {
+        private CharSequence buffer;
+
+        @Override
+        public void prepare(String text, int pegdownExtensions) {
+            // documents give the lexers a char sequence that is not a String, the same instance until it is modified
+            if (buffer == null || !text.equals(buffer.toString())) {
+                buffer = new ParserTestData.TextSequence(text);
+            }
+        }
+
+        @Override
+        public Object run(String text, int pegdownExtensions) {
+            Lexer lexer = new MultiMarkdownLexer(pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+            lexer.start(buffer, 0, buffer.length(), 0);
+            return lexer.getTokenType();
+        }
+    };
+
+    public static final Benchmark TO_HTML = new Benchmark("toHtml") {
+        private RootNode rootNode;
+        private String rootNodeText;
+        private int rootNodeExtensions;
+
+        @Override
+        public void prepare(String text, int pegdownExtensions) {
+            // serializing does not modify the AST
+            if (rootNode == null || !text.equals(rootNodeText) || pegdownExtensions != rootNodeExtensions) {
+                rootNode = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+                rootNodeText = text;
+                rootNodeExtensions = pegdownExtensions;
+            }
+        }
+
+        @Override
+        public Object run(String text, int pegdownExtensions) {
+            return new MultiMarkdownToHtmlSerializer(new LinkRenderer()).toHtml(rootNode);
+        }
+    };
+
+    public static final Benchmark[] BENCHMARKS = new Benchmark[] { PARSE_MARKDOWN_ROOT, LEX_PARSER, LEXER, LEXER_RESTART, TO_HTML };
+
+    public static class Result {
+        public final String benchmark;
+        public final String fileName;
+        public final int pegdownExtensions;
+        public final long[] nanos;
+        // -1 if the JVM does not count allocations
+        public final long allocatedBytes;
+
+        public Result(String benchmark, String fileName, int pegdownExtensions, long[] nanos, long allocatedBytes) {
+            this.benchmark = benchmark;
+            this.fileName = fileName;
+            this.pegdownExtensions = pegdownExtensions;
+            this.nanos = nanos.clone();
+            this.allocatedBytes = allocatedBytes;
+            Arrays.sort(this.nanos);
+        }
+
+        public String getKey() {
+            return getKey(benchmark, fileName, pegdownExtensions);
+        }
+
+        public static String getKey(String benchmark, String fileName, int pegdownExtensions) {
+            return benchmark + " " + fileName + " 0x" + Integer.toHexString(pegdownExtensions);
+        }
+
+        public long getTotalNanos() {
+            long total = 0;
+            for (long time : nanos) total += time;
+            return total;
+        }
+
+        public double getOpsPerSecond() {
+            long total = getTotalNanos();
+            return total == 0 ? 0 : nanos.length * 1e9 / total;
+        }
+
+        public double getMeanMillis() {
+            return nanos.length == 0 ? 0 : getTotalNanos() / 1e6 / nanos.length;
+        }
+
+        /**
+         * Nearest rank percentile of the invocation times
+         */
+        public double getPercentileMillis(double percentile) {
+            if (nanos.length == 0) return 0;
+            int rank = (int) Math.ceil(percentile / 100 * nanos.length);
+            return nanos[Math.min(Math.max(rank - 1, 0), nanos.length - 1)] / 1e6;
+        }
+
+        public long getBytesPerOp() {
+            return allocatedBytes < 0 || nanos.length == 0 ? -1 : allocatedBytes / nanos.length;
+        }
+
+        public double getAllocationRate() {
+            long total = getTotalNanos();
+            return allocatedBytes < 0 || total == 0 ? -1 : allocatedBytes * 1e9 / total / (1024 * 1024);
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"benchmark\": \"%s\", \"file\": \"%s\", \"extensions\": \"0x%s\", \"ops\": %d, "
+                            + "\"opsPerSecond\": %.3f, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p90Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f, "
+                            + "\"bytesPerOp\": %d, \"allocationMBPerSecond\": %.1f}",
+                    benchmark, fileName, Integer.toHexString(pegdownExtensions), nanos.length,
+                    getOpsPerSecond(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99), getPercentileMillis(100),
+                    getBytesPerOp(), getAllocationRate());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-18s %-20s 0x%08x %9.2f ops/s  mean %8.3fms  p50 %8.3fms  p90 %8.3fms  p99 %8.3fms  %10dKB/op  %8.1fMB/s",
+                    benchmark, fileName, pegdownExtensions, getOpsPerSecond(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99),
+                    getBytesPerOp() / 1024, getAllocationRate());
+        }
+    }
+
+    /**
+     * @return thread allocation counter or null if the JVM does not have one
+     */
+    protected static com.sun.management.ThreadMXBean getAllocationCounter() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return null;
+
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threadMXBean;
+        return counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled() ? counter : null;
+    }
+
+    public static Result run(Benchmark benchmark, String fileName, String text, int pegdownExtensions, int warmupIterations, int iterations) {
+        com.sun.management.ThreadMXBean allocationCounter = getAllocationCounter();
+        long threadId = Thread.currentThread().getId();
+        Object blackHole = null;
+
+        for (int i = 0; i < warmupIterations; i++) {
+            benchmark.prepare(text, pegdownExtensions);
+            blackHole = benchmark.run(text, pegdownExtensions);
+        }
+
+        long[] nanos = new long[iterations];
+        long allocatedBytes = allocationCounter == null ? -1 : 0;
+
+        for (int i = 0; i < iterations; i++) {
+            benchmark.prepare(text, pegdownExtensions);
+
+            long allocated = allocationCounter == null ? 0 : allocationCounter.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            blackHole = benchmark.run(text, pegdownExtensions);
+            nanos[i] = System.nanoTime() - start;
+            if (allocationCounter != null) allocatedBytes += allocationCounter.getThreadAllocatedBytes(threadId) - allocated;
+        }
+
+        if (blackHole == null) throw new IllegalStateException(benchmark.name + " returned null for " + fileName);
+        return new Result(benchmark.name, fileName, pegdownExtensions, nanos, allocatedBytes);
+    }
+
+    public static ArrayList<Result> runAll(ArrayList<File> files, int[] extensionSets, int warmupIterations, int iterations) {
+        ArrayList<Result> results = new ArrayList<Result>();
+        for (File file : files) {
+            String text = ParserTestData.getText(file);
+            for (int pegdownExtensions : extensionSets) {
+                for (Benchmark benchmark : BENCHMARKS) {
+                    Result result = run(benchmark, file.getName(), text, pegdownExtensions, warmupIterations, iterations);
+                    logger.info(result);
+                    results.add(result);
+                }
+            }
+        }
+        return results;
+    }
+
+    public static String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        sb.append("  \"date\": \"").append(new Date()).append("\",\n");
+        sb.append("  \"warmup\": ").append(WARMUP_ITERATIONS).append(",\n");
+        sb.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i).toJson()).append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // one result per line, as written by toJson()
+    protected static final Pattern RESULT_PATTERN = Pattern.compile("\\{\"benchmark\": \"([^\"]*)\", \"file\": \"([^\"]*)\", \"extensions\": \"0x([0-9a-f]+)\".*\"opsPerSecond\": ([0-9.]+).*\"bytesPerOp\": (-?[0-9]+)");
+
+    /**
+     * @return opsPerSecond and bytesPerOp of each result in a baseline, keyed by {@link Result#getKey()}
+     */
+    public static HashMap<String, double[]> readBaseline(String json) {
+        HashMap<String, double[]> baseline = new HashMap<String, double[]>();
+        Matcher matcher = RESULT_PATTERN.matcher(json);
+        while (matcher.find()) {
+            int pegdownExtensions = (int) Long.parseLong(matcher.group(3), 16);
+            baseline.put(Result.getKey(matcher.group(1), matcher.group(2), pegdownExtensions),
+                    new double[] { Double.parseDouble(matcher.group(4)), Double.parseDouble(matcher.group(5)) });
+        }
+        return baseline;
+    }
+
+    public static void compare(List<Result> results, HashMap<String, double[]> baseline) {
+        for (Result result : results) {
+            double[] previous = baseline.get(result.getKey());
+            if (previous == null) {
+                System.out.println(String.format(Locale.US, "%-50s not in baseline", result.getKey()));
+            } else {
+                System.out.println(String.format(Locale.US, "%-50s throughput %6.1f%%  allocation %6.1f%%", result.getKey(),
+                        previous[0] == 0 ? 0 : (result.getOpsPerSecond() / previous[0] - 1) * 100,
+                        previous[1] <= 0 ? 0 : (result.getBytesPerOp() / previous[1] - 1) * 100));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: MultiMarkdownBenchmark results.json [baseline.json]");
+            System.exit(1);
+        }
+
+        ArrayList<Result> results = runAll(ParserTestData.getPerformanceFiles(false), ParserTestData.EXTENSION_SETS, WARMUP_ITERATIONS, ITERATIONS);
+        FileUtils.writeStringToFile(new File(args[0]), toJson(results), "UTF-8");
+
+        if (args.length > 1) {
+            compare(results, readBaseline(FileUtils.readFileToString(new File(args[1]), "UTF-8")));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.apache.commons.io.FileUtils;
+import org.pegdown.Extensions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class ParserTestData {
+    public static final String PERFORMANCE_DATA = "test/data/performance";
+    public static final String MARKDOWN_RESOURCES = "src/test/resources/markdown";
+
+    // files that are known to hang pegdown
+    public static final String[] HANG_PEGDOWN = new String[] { "hang-pegdown.md", "hang-pegdown2.md" };
+
+    public static final int PARSING_TIMEOUT = 10000;
+    public static final int DEFAULT_EXTENSIONS = Extensions.ALL | Extensions.TASKLISTITEMS | Extensions.ATXHEADERSPACE | Extensions.RELAXEDHRULES | MultiMarkdownLexParserManager.GITHUB_WIKI_LINKS;
+
+    public static final int[] EXTENSION_SETS = new int[] {
+            Extensions.NONE | MultiMarkdownLexParserManager.GITHUB_WIKI_LINKS,
+            DEFAULT_EXTENSIONS,
+            DEFAULT_EXTENSIONS | Extensions.FOOTNOTES | Extensions.ABBREVIATIONS | Extensions.QUOTES | Extensions.SMARTS,
+    };
+
+    public static boolean isHangPegdown(File file) {
+        return Arrays.asList(HANG_PEGDOWN).contains(file.getName());
+    }
+
+    public static ArrayList<File> getPerformanceFiles(boolean withHangPegdown) {
+        ArrayList<File> files = new ArrayList<File>();
+        addMarkdownFiles(files, new File(PERFORMANCE_DATA), withHangPegdown, false);
+        return files;
+    }
+
+    public static ArrayList<File> getAllFiles(boolean withHangPegdown) {
+        ArrayList<File> files = getPerformanceFiles(withHangPegdown);
+        addMarkdownFiles(files, new File(MARKDOWN_RESOURCES), withHangPegdown, true);
+        return files;
+    }
+
+    protected static void addMarkdownFiles(ArrayList<File> files, File dir, boolean withHangPegdown, boolean recursive) {
+        File[] dirFiles = dir.listFiles();
+        if (dirFiles == null) return;
+
+        Arrays.sort(dirFiles);
+        for (File file : dirFiles) {
+            if (file.isDirectory()) {
+                if (recursive) addMarkdownFiles(files, file, withHangPegdown, true);
+            } else if (file.getName().endsWith(".md") && (withHangPegdown || !isHangPegdown(file))) {
+                files.add(file);
+            }
+        }
+    }
+
+    public static Collection<Object[]> asParameters(ArrayList<File> files) {
+        ArrayList<Object[]> data = new ArrayList<Object[]>(files.size());
+        for (File file : files) {
+            data.add(new Object[] { file.getName(), file });
+        }
+        return data;
+    }
+
+    public static String getText(File file) {
+        try {
+            return FileUtils.readFileToString(file, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read test file " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Text that is not a String, like the char sequences of documents, counting the characters read from it
+     */
+    public static class TextSequence implements CharSequence {
+        private final String text;
+        private long charsRead;
+
+        public TextSequence(String text) {
+            this.text = text;
+        }
+
+        public long getCharsRead() {
+            return charsRead;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            charsRead++;
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new TextSequence(text.substring(start, end));
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The abbreviation matcher must find the same spans as the alternation regex it replaced
+ */
+public class TestAbbreviationMatcher {
+    private static final String[] WORDS = new String[] { "HTML", "HTM", "TML", "ML", "C", "C++", "C#", ".NET", "e.g.", "i.e", "W3C", "Html", "x_y", "API", "APIs", "a-b" };
+    private static final String[] SEPARATORS = new String[] { " ", " ", "  ", ", ", ".", "-", "_", "(", ")", "", "\n", "+", "\u00e9" };
+
+    protected static String regexMatches(List<String> abbreviations, String text) {
+        String regEx = "";
+        for (String abbreviation : abbreviations) {
+            if (regEx.length() > 0) regEx += "|";
+            regEx += "\\b\\Q" + abbreviation + "\\E\\b";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        Matcher m = Pattern.compile(regEx).matcher(text);
+        while (m.find()) sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    protected static String matcherMatches(List<String> abbreviations, String text) {
+        StringBuilder sb = new StringBuilder();
+        int[] matches = new MultiMarkdownAbbreviationMatcher(abbreviations).findMatches(text);
+        for (int i = 0; i < matches.length; i += 2) sb.append(matches[i]).append('-').append(matches[i + 1]).append(' ');
+        return sb.toString();
+    }
+
+    @Test
+    public void test_sameAsRegex() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ArrayList<String> abbreviations = new ArrayList<String>();
+            int count = 1 + random.nextInt(WORDS.length);
+            for (int i = 0; i < count; i++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                if (!abbreviations.contains(word)) abbreviations.add(word);
+            }
+
+            StringBuilder text = new StringBuilder();
+            int words = random.nextInt(60);
+            for (int i = 0; i < words; i++) {
+                text.append(random.nextInt(3) == 0 ? "text" : WORDS[random.nextInt(WORDS.length)]);
+                text.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+            }
+
+            assertEquals("round " + round + " " + abbreviations, regexMatches(abbreviations, text.toString()), matcherMatches(abbreviations, text.toString()));
+        }
+    }
+
+    @Test
+    public void test_priorityByDefinitionOrder() {
+        assertEquals("0-1 ", matcherMatches(Arrays.asList("e", "e.g"), "e.g x"));
+        assertEquals("0-3 ", matcherMatches(Arrays.asList("e.g", "e"), "e.g x"));
+        assertEquals("0-5 6-10 ", matcherMatches(Arrays.asList("HTML", "HTML5"), "HTML5 HTML"));
+    }
+
+    @Test
+    public void test_cachedByAbbreviations() {
+        List<String> abbreviations = Arrays.asList("HTML", "CSS");
+        assertSame(MultiMarkdownAbbreviationMatcher.getMatcher(abbreviations), MultiMarkdownAbbreviationMatcher.getMatcher(new ArrayList<String>(abbreviations)));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs every benchmark for a couple of invocations so that the harness keeps working, the numbers are not checked
+ */
+public class TestBenchmark {
+    @Test
+    public void test_benchmarks() {
+        ArrayList<File> files = new ArrayList<File>();
+        files.add(new File(ParserTestData.PERFORMANCE_DATA, "table.md"));
+
+        ArrayList<MultiMarkdownBenchmark.Result> results = MultiMarkdownBenchmark.runAll(files, ParserTestData.EXTENSION_SETS, 1, 3);
+        assertEquals(MultiMarkdownBenchmark.BENCHMARKS.length * ParserTestData.EXTENSION_SETS.length, results.size());
+
+        for (MultiMarkdownBenchmark.Result result : results) {
+            assertEquals(result.getKey(), 3, result.nanos.length);
+            assertTrue(result.getKey(), result.getPercentileMillis(50) <= result.getPercentileMillis(99));
+        }
+    }
+
+    @Test
+    public void test_baseline() {
+        ArrayList<MultiMarkdownBenchmark.Result> results = new ArrayList<MultiMarkdownBenchmark.Result>();
+        results.add(new MultiMarkdownBenchmark.Result("lexer", "spec.md", ParserTestData.DEFAULT_EXTENSIONS, new long[] { 3000000, 1000000, 2000000 }, 3000));
+        results.add(new MultiMarkdownBenchmark.Result("toHtml", "spec.md", ParserTestData.EXTENSION_SETS[0], new long[] { 4000000 }, -1));
+
+        HashMap<String, double[]> baseline = MultiMarkdownBenchmark.readBaseline(MultiMarkdownBenchmark.toJson(results));
+        assertEquals(2, baseline.size());
+
+        double[] lexer = baseline.get(results.get(0).getKey());
+        assertEquals(500.0, lexer[0], 0.001);
+        assertEquals(1000.0, lexer[1], 0.001);
+        assertEquals(2.0, results.get(0).getPercentileMillis(50), 0.001);
+        assertEquals(3.0, results.get(0).getPercentileMillis(99), 0.001);
+
+        double[] toHtml = baseline.get(results.get(1).getKey());
+        assertEquals(250.0, toHtml[0], 0.001);
+        assertEquals(-1.0, toHtml[1], 0.001);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+import org.pegdown.Extensions;
+import org.pegdown.LinkRenderer;
+import org.pegdown.ToHtmlSerializer;
+import org.pegdown.ast.RootNode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Block scan of text used to split lexing and parsing at top level block boundaries
+ */
+public class TestBlocks {
+    @Test
+    public void test_indentedContinuation() {
+        assertEquals(1, MultiMarkdownBlocks.of("* item\n\n    continued para\n").getBlockCount());
+        assertEquals(1, MultiMarkdownBlocks.of("* item\n\n\tcontinued para\n").getBlockCount());
+        assertEquals(1, MultiMarkdownBlocks.of("* item\n\n  \tcontinued para\n").getBlockCount());
+    }
+
+    @Test
+    public void test_unindentedParagraph() {
+        MultiMarkdownBlocks blocks = MultiMarkdownBlocks.of("* item\n\nnext para\n");
+        assertEquals(2, blocks.getBlockCount());
+        assertEquals(8, blocks.getBlockStart(1));
+    }
+
+    protected static int[] getBlockStarts(String text, int pegdownExtensions) {
+        MultiMarkdownBlocks blocks = MultiMarkdownBlocks.of(text, pegdownExtensions);
+        int[] starts = new int[blocks.getBlockCount()];
+        for (int i = 0; i < starts.length; i++) starts[i] = blocks.getBlockStart(i);
+        return starts;
+    }
+
+    @Test
+    public void test_fencePairing() {
+        int pegdownExtensions = ParserTestData.DEFAULT_EXTENSIONS;
+
+        // a longer fence is code, a fence without a closing one is text
+        assertArrayEquals(new int[] { 0, 22 }, getBlockStarts("```\na\n\nb\n````\n\nc\n```\n\nd\n", pegdownExtensions));
+        assertArrayEquals(new int[] { 0, 7 }, getBlockStarts("```\na\n\nb\n", pegdownExtensions));
+
+        // a fence too long for a code span over a setext underline is a heading, the next one has nothing to close it
+        assertArrayEquals(new int[] { 0, 12, 15, 23 }, getBlockStarts("``````\n===\n\nb\n\n``````\n\nc\n", pegdownExtensions));
+    }
+
+    @Test
+    public void test_fenceAsText() {
+        int pegdownExtensions = ParserTestData.DEFAULT_EXTENSIONS;
+
+        // in a code span and as a lazy line of a list item
+        assertArrayEquals(new int[] { 0, 13, 16 }, getBlockStarts("a `b\n```\nc`\n\nd\n\n```\n", pegdownExtensions));
+        assertArrayEquals(new int[] { 0, 15 }, getBlockStarts("- a\n```\nb\n```\n\nc\n", pegdownExtensions));
+    }
+
+    @Test
+    public void test_fenceEndsParagraph() {
+        assertArrayEquals(new int[] { 0, 2 }, getBlockStarts("a\n```\nb\n```\n", ParserTestData.DEFAULT_EXTENSIONS));
+        assertArrayEquals(new int[] { 0, 2 }, getBlockStarts("a\n```\nb\n```\n", ParserTestData.EXTENSION_SETS[0]));
+
+        // without fenced code the paragraph still ends only if the fence is closed, text up to the close can't be split
+        assertArrayEquals(new int[] { 0, 2, 15 }, getBlockStarts("a\n```\n\nb\n\n```\n\nc\n", ParserTestData.EXTENSION_SETS[0]));
+    }
+
+    @Test
+    public void test_getIndent() {
+        assertEquals(0, MultiMarkdownBlocks.getIndent("text", 0, 4));
+        assertEquals(3, MultiMarkdownBlocks.getIndent("   text", 0, 7));
+        assertEquals(4, MultiMarkdownBlocks.getIndent("\ttext", 0, 5));
+        assertEquals(4, MultiMarkdownBlocks.getIndent("  \ttext", 0, 7));
+        assertEquals(8, MultiMarkdownBlocks.getIndent(" \t\ttext", 0, 7));
+    }
+
+    protected static String getSplitText(String block) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 2 * MultiMarkdownParallelParser.MIN_PARALLEL_LENGTH; i++) {
+            sb.append("# Heading ").append(i).append("\n\n").append(block).append("\nSome text for paragraph ").append(i).append(".\n\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_tabContinuationParallel() {
+        String text = getSplitText("* item\n\n\tcontinued para\n");
+        int pegdownExtensions = ParserTestData.EXTENSION_SETS[1];
+
+        RootNode parallel = MultiMarkdownParallelParser.parse(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, 4, new String[1]);
+        RootNode sequential = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+        assertNotNull(parallel);
+        assertNotNull(sequential);
+        assertEquals(new ToHtmlSerializer(new LinkRenderer()).toHtml(sequential), new ToHtmlSerializer(new LinkRenderer()).toHtml(parallel));
+    }
+
+    @Test
+    public void test_tocNotParallel() {
+        String text = "[TOC]\n\n" + getSplitText("");
+        String[] exceptionText = new String[1];
+
+        assertNull(MultiMarkdownParallelParser.parse(text, ParserTestData.EXTENSION_SETS[1] | Extensions.TOC, ParserTestData.PARSING_TIMEOUT, 4, exceptionText));
+        assertNull(exceptionText[0]);
+        assertNotNull(MultiMarkdownParallelParser.parse(text, ParserTestData.EXTENSION_SETS[1] & ~Extensions.TOC, ParserTestData.PARSING_TIMEOUT, 4, exceptionText));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.pegdown.ast.Node;
+import org.pegdown.ast.RootNode;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Lexing must leave the AST shared with the preview unchanged, so that lexing which was cancelled after the AST
+ * visit gives the same tokens on the next attempt
+ */
+@RunWith(value = Parameterized.class)
+public class TestCancelledLexing {
+    private final String fileName;
+    private final String text;
+
+    public TestCancelledLexing(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getAllFiles(false));
+    }
+
+    static class CancelledException extends RuntimeException {
+    }
+
+    static class CancelledLexParser extends MultiMarkdownLexParser {
+        @Override
+        public MultiMarkdownLexerTokens parseMarkdown(RootNode rootNode, int textLength, int pegdownExtensions) {
+            super.parseMarkdown(rootNode, textLength, pegdownExtensions);
+            throw new CancelledException();
+        }
+    }
+
+    @Test
+    public void test_lexAfterCancel() {
+        int extensions = ParserTestData.DEFAULT_EXTENSIONS;
+        RootNode rootNode = MultiMarkdownLexParserManager.runPegdown(text, extensions, ParserTestData.PARSING_TIMEOUT, null);
+        RootNode expectedRootNode = MultiMarkdownLexParserManager.runPegdown(text, extensions, ParserTestData.PARSING_TIMEOUT, null);
+
+        final boolean[] cancel = new boolean[] { true };
+        MultiMarkdownParseCache.Entry entry = new MultiMarkdownParseCache.Entry(null, text, extensions, ParserTestData.PARSING_TIMEOUT, rootNode, false) {
+            @NotNull
+            @Override
+            protected MultiMarkdownLexParser newLexParser() {
+                if (!cancel[0]) return super.newLexParser();
+                cancel[0] = false;
+                return new CancelledLexParser();
+            }
+        };
+
+        try {
+            entry.getLexerTokens();
+            fail(fileName + " was not cancelled");
+        } catch (CancelledException ignored) {
+        }
+
+        MultiMarkdownLexerTokens expected = new MultiMarkdownLexParser().parseMarkdown(expectedRootNode, text.length(), extensions);
+        assertEquals(fileName, TestSplitLexemes.tokensText(expected), TestSplitLexemes.tokensText(entry.getLexerTokens()));
+    }
+
+    protected static void appendRanges(@NotNull StringBuilder out, @NotNull List<Node> nodes) {
+        for (Node node : nodes) {
+            out.append(node.getClass().getSimpleName()).append('[').append(node.getStartIndex()).append(", ").append(node.getEndIndex()).append("] ");
+            appendRanges(out, node.getChildren());
+        }
+    }
+
+    @Test
+    public void test_lexKeepsTree() {
+        int extensions = ParserTestData.DEFAULT_EXTENSIONS;
+        RootNode rootNode = MultiMarkdownLexParserManager.runPegdown(text, extensions, ParserTestData.PARSING_TIMEOUT, null);
+        StringBuilder expected = new StringBuilder();
+        appendRanges(expected, rootNode.getChildren());
+
+        new MultiMarkdownLexParser().parseMarkdown(rootNode, text.length(), extensions);
+        StringBuilder actual = new StringBuilder();
+        appendRanges(actual, rootNode.getChildren());
+        assertEquals(fileName, expected.toString(), actual.toString());
+    }
+}
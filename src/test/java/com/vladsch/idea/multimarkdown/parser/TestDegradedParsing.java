@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.psi.tree.IElementType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static com.vladsch.idea.multimarkdown.psi.MultiMarkdownTypes.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Blocks pegdown fails on are handled by the fallback parser while the rest of the document keeps its pegdown tokens
+ */
+public class TestDegradedParsing {
+    private static final int PARSING_TIMEOUT = 500;
+
+    private static final String BEFORE = "# Title\n\nSee [[Home]] and *the* [docs](docs.md).\n\n";
+    private static final String AFTER = "\n\n## Later\n\n- item with [[Other|Page]]\n- `code`\n";
+
+    @Before
+    public void setUp() {
+        MultiMarkdownLexParserManager.getParseCache().clear();
+        MultiMarkdownParseBudget.clear();
+    }
+
+    // longer than the test data file so that pegdown runs out of time even when fully warmed up
+    protected static String getHangText() {
+        String hang = ParserTestData.getText(new File(ParserTestData.PERFORMANCE_DATA, ParserTestData.HANG_PEGDOWN[0])).trim();
+        return hang + hang;
+    }
+
+    protected static MultiMarkdownLexerTokens lex(CharSequence text) {
+        return MultiMarkdownLexParserManager.getParsingInfo(null, text, ParserTestData.DEFAULT_EXTENSIONS, PARSING_TIMEOUT).getLexerTokens();
+    }
+
+    protected static String tokens(MultiMarkdownLexerTokens tokens, int start, int end, int offset) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.getStart(i) >= start && tokens.getEnd(i) <= end) {
+                sb.append(tokens.getElementType(i)).append('[').append(tokens.getStart(i) - offset).append(", ").append(tokens.getEnd(i) - offset).append(")\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static ArrayList<IElementType> fallbackTypes(String text) {
+        MultiMarkdownLexerTokens tokens = new MultiMarkdownLexParser().parseMarkdown(MultiMarkdownFallbackParser.parse(text, ParserTestData.DEFAULT_EXTENSIONS), text.length(), ParserTestData.DEFAULT_EXTENSIONS);
+        ArrayList<IElementType> types = new ArrayList<IElementType>();
+        for (int i = 0; i < tokens.size(); i++) types.add(tokens.getElementType(i));
+        return types;
+    }
+
+    @Test
+    public void test_onlyFailedBlockDegraded() {
+        String bad = "Bad " + getHangText();
+        String text = BEFORE + bad + AFTER;
+        int badStart = BEFORE.length();
+        int badEnd = badStart + bad.length();
+
+        long degraded = MultiMarkdownLexParserManager.getDegradedBlocks();
+        MultiMarkdownParseCache.Entry info = MultiMarkdownLexParserManager.getParsingInfo(null, text, ParserTestData.DEFAULT_EXTENSIONS, PARSING_TIMEOUT);
+        assertTrue(info.hadTimeout());
+        assertEquals(1, MultiMarkdownLexParserManager.getDegradedBlocks() - degraded);
+
+        MultiMarkdownLexerTokens tokens = info.getLexerTokens();
+        assertEquals(tokens(lex(BEFORE), 0, BEFORE.length(), 0), tokens(tokens, 0, badStart, 0));
+        assertEquals(tokens(lex(AFTER), 0, AFTER.length(), 0), tokens(tokens, badEnd, text.length(), badEnd));
+        assertEquals("TEXT[" + badStart + ", " + badEnd + ")\n", tokens(tokens, badStart, badEnd, 0));
+    }
+
+    @Test
+    public void test_quarantine() {
+        String bad = "Bad " + getHangText();
+
+        long degraded = MultiMarkdownLexParserManager.getDegradedBlocks();
+        for (int i = 0; i < MultiMarkdownParseBudget.QUARANTINE_FAILURES; i++) {
+            assertEquals(0, MultiMarkdownParseBudget.getQuarantineSkips());
+            lex(BEFORE + "version " + i + "\n\n" + bad + AFTER);
+        }
+        assertEquals(MultiMarkdownParseBudget.QUARANTINE_FAILURES, MultiMarkdownLexParserManager.getDegradedBlocks() - degraded);
+
+        // quarantined block is no longer given to pegdown, the rest of the text still is
+        String text = BEFORE + bad + AFTER + "more text\n";
+        long start = System.currentTimeMillis();
+        MultiMarkdownLexerTokens tokens = lex(text);
+        assertTrue(System.currentTimeMillis() - start < PARSING_TIMEOUT);
+        assertEquals(1, MultiMarkdownParseBudget.getQuarantineSkips());
+        assertEquals(tokens(lex(BEFORE), 0, BEFORE.length(), 0), tokens(tokens, 0, BEFORE.length(), 0));
+
+        // changed block is given another chance
+        lex(BEFORE + bad + "\n" + AFTER);
+        assertEquals(1, MultiMarkdownParseBudget.getQuarantineSkips());
+    }
+
+    @Test
+    public void test_quarantineEvicted() {
+        String block = "quarantined block\n";
+        for (int i = 0; i < MultiMarkdownParseBudget.QUARANTINE_FAILURES; i++) MultiMarkdownParseBudget.blockFailed(block);
+        assertTrue(MultiMarkdownParseBudget.hasQuarantinedBlocks());
+        assertTrue(MultiMarkdownParseBudget.hasQuarantinedBlock(BEFORE + block, MultiMarkdownBlocks.of(BEFORE + block)));
+
+        // blocks that failed once push the quarantined one out, the text is no longer scanned for it
+        for (int i = 0; i < MultiMarkdownParseBudget.MAX_FAILED_BLOCKS; i++) MultiMarkdownParseBudget.blockFailed("failed block " + i + "\n");
+        assertFalse(MultiMarkdownParseBudget.hasQuarantinedBlocks());
+        assertFalse(MultiMarkdownParseBudget.isQuarantined(block));
+    }
+
+    @Test
+    public void test_blockKey() {
+        String text = BEFORE + AFTER;
+        assertEquals(MultiMarkdownParseBudget.getBlockKey(text.substring(BEFORE.length())), MultiMarkdownParseBudget.getBlockKey(text, BEFORE.length(), text.length()));
+    }
+
+    @Test
+    public void test_degradedTimeoutCached() {
+        String text = BEFORE + "Bad " + getHangText() + AFTER;
+        Document document = new DocumentImpl(text);
+
+        // a learned budget shorter than the parsing timeout
+        MultiMarkdownParseBudget.parsed(document, text.length(), 1000);
+        int parsingTimeout = MultiMarkdownParseBudget.getParsingTimeout(document, text.length(), PARSING_TIMEOUT);
+        assertTrue(parsingTimeout < PARSING_TIMEOUT);
+
+        MultiMarkdownParseCache.Entry info = MultiMarkdownLexParserManager.getParsingInfo(document, text, ParserTestData.DEFAULT_EXTENSIONS, PARSING_TIMEOUT);
+        assertTrue(info.hadTimeout());
+        assertEquals(parsingTimeout, info.parsingTimeout);
+
+        // pegdown did not get the time a request with the parsing timeout would give it
+        assertNull(MultiMarkdownLexParserManager.getParseCache().get(document, text, ParserTestData.DEFAULT_EXTENSIONS, PARSING_TIMEOUT, true));
+        assertNotNull(MultiMarkdownLexParserManager.getParseCache().get(document, text, ParserTestData.DEFAULT_EXTENSIONS, parsingTimeout, true));
+    }
+
+    @Test
+    public void test_parsingTimeoutBudget() {
+        // 1ms per 1024 characters
+        assertEquals(MultiMarkdownParseBudget.MIN_PARSING_TIMEOUT, MultiMarkdownParseBudget.getParsingTimeout(1000000, 1024, 200));
+        assertEquals(128, MultiMarkdownParseBudget.getParsingTimeout(1000000, 10 * 1024, 200));
+        assertEquals(200 * MultiMarkdownParseBudget.MAX_TIMEOUT_SCALE, MultiMarkdownParseBudget.getParsingTimeout(1000000, 1024 * 1024, 200));
+        assertEquals(200, MultiMarkdownParseBudget.getParsingTimeout(null, 1024 * 1024, 200));
+    }
+
+    @Test
+    public void test_fallbackElements() {
+        ArrayList<IElementType> types = fallbackTypes("## Head [[Page#anchor]]\n\n```java\ncode\n```\n<!-- a\n\ncomment -->\ntext [link](url.md) [[Text|Ref]]\n");
+
+        assertTrue(types.toString(), types.contains(HEADER_LEVEL_2));
+        assertTrue(types.toString(), types.contains(WIKI_LINK_REF_ANCHOR));
+        assertTrue(types.toString(), types.contains(VERBATIM));
+        assertTrue(types.toString(), types.contains(COMMENT));
+        assertTrue(types.toString(), types.contains(EXPLICIT_LINK));
+        assertTrue(types.toString(), types.contains(WIKI_LINK_SEPARATOR));
+        assertEquals(types.toString(), 2, count(types, WIKI_LINK_OPEN));
+    }
+
+    @Test
+    public void test_fallbackUnbalanced() {
+        assertEquals(0, count(fallbackTypes("[[[[[[[[[[ [ [[ ]( (((\n"), WIKI_LINK_OPEN));
+        assertEquals(1, count(fallbackTypes("[[[[x]]"), WIKI_LINK_OPEN));
+        assertEquals(1, count(fallbackTypes("[[[a](b)"), EXPLICIT_LINK));
+    }
+
+    @Test(timeout = 10000)
+    public void test_fallbackLinear() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) sb.append("[[<!--[(");
+        MultiMarkdownFallbackParser.parse(sb, ParserTestData.DEFAULT_EXTENSIONS);
+    }
+
+    protected static int count(ArrayList<IElementType> types, IElementType type) {
+        int count = 0;
+        for (IElementType t : types) if (t == type) count++;
+        return count;
+    }
+}
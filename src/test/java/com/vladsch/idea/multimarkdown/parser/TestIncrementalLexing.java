@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Edits in large files re-lexed incrementally must give the same tokens as a full parse
+ */
+@RunWith(value = Parameterized.class)
+public class TestIncrementalLexing {
+    // spec examples are wrapped in fences whose contents have fence-like lines that the block scan does not follow
+    private static final String[] NOT_SPLICED = new String[] { "spec.md" };
+    private static final String[] EDITS = new String[] { "x", "word ", "\n\n", "*", "`", "\n\n```\n", "# ", "" };
+
+    private final String fileName;
+    private final String text;
+
+    public TestIncrementalLexing(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getPerformanceFiles(false));
+    }
+
+    @Before
+    public void setUp() {
+        MultiMarkdownLexParserManager.getParseCache().clear();
+    }
+
+    protected static String tokensText(MultiMarkdownLexerTokens tokens) {
+        StringBuilder sb = new StringBuilder();
+        if (tokens != null) {
+            for (int i = 0; i < tokens.size(); i++) {
+                sb.append(tokens.getStart(i)).append('-').append(tokens.getEnd(i)).append(' ').append(tokens.getElementType(i)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_edits() {
+        if (text.length() < MultiMarkdownIncrementalParser.MIN_INCREMENTAL_LENGTH) return;
+
+        int extensions = ParserTestData.DEFAULT_EXTENSIONS;
+        String edited = text;
+        MultiMarkdownLexParserManager.getLexerParsingInfo(edited, extensions, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+
+        for (int i = 0; i < 12; i++) {
+            int offset = (int) ((long) edited.length() * (i * 5 % 12) / 12);
+            String edit = EDITS[i % EDITS.length];
+            edited = edit.isEmpty() ? edited.substring(0, offset) + edited.substring(Math.min(offset + 3, edited.length()))
+                    : edited.substring(0, offset) + edit + edited.substring(offset);
+
+            MultiMarkdownLexerTokens tokens = MultiMarkdownLexParserManager.getLexerParsingInfo(edited, extensions, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+            MultiMarkdownLexerTokens expected = MultiMarkdownLexParserManager.getParsingInfo(null, edited, extensions, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+            assertEquals(fileName + " edit " + i + " at " + offset, tokensText(expected), tokensText(tokens));
+        }
+    }
+
+    @Test
+    public void test_typingIsSpliced() {
+        if (text.length() < MultiMarkdownIncrementalParser.MIN_INCREMENTAL_LENGTH || Arrays.asList(NOT_SPLICED).contains(fileName)) return;
+
+        int extensions = ParserTestData.DEFAULT_EXTENSIONS;
+        int offset = text.indexOf(".\n\n", text.length() / 2);
+        MultiMarkdownLexParserManager.getLexerParsingInfo(text, extensions, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+
+        long splices = MultiMarkdownIncrementalParser.getSplices();
+        String typed = text.substring(0, offset) + " typing" + text.substring(offset);
+        MultiMarkdownLexParserManager.getLexerParsingInfo(typed, extensions, ParserTestData.PARSING_TIMEOUT);
+        assertEquals(fileName, splices + 1, MultiMarkdownIncrementalParser.getSplices());
+    }
+}
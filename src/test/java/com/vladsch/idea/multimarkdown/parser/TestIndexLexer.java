@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.lexer.Lexer;
+import com.vladsch.idea.multimarkdown.psi.MultiMarkdownTypes;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The index lexer must give the id and todo indexers the same occurrences as the full lexer. Underscore emphasis
+ * markers are only split off words where pegdown matches them, which the index lexer approximates, so words are
+ * compared without underscores.
+ */
+@RunWith(value = Parameterized.class)
+public class TestIndexLexer {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(TestIndexLexer.class);
+
+    private static final Pattern TODO_PATTERN = Pattern.compile("\\btodo\\b.*", Pattern.CASE_INSENSITIVE);
+    private static final int TIMING_RUNS = 5;
+
+    private final String fileName;
+    private final String text;
+
+    public TestIndexLexer(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getAllFiles(false));
+    }
+
+    protected static MultiMarkdownLexer newFullLexer() {
+        return new MultiMarkdownLexer(ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT);
+    }
+
+    protected static MultiMarkdownIndexLexer newIndexLexer() {
+        return new MultiMarkdownIndexLexer(ParserTestData.DEFAULT_EXTENSIONS);
+    }
+
+    protected static boolean isWordStart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c != '$' && Character.isJavaIdentifierStart(c);
+    }
+
+    protected static boolean isWordPart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c != '$' && Character.isJavaIdentifierPart(c);
+    }
+
+    /**
+     * Words of each token the way the id index scans them, counted with underscores taken out
+     */
+    protected static HashMap<String, Integer> getWords(Lexer lexer, String text) {
+        HashMap<String, Integer> words = new HashMap<String, Integer>();
+        for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null; lexer.advance()) {
+            int end = lexer.getTokenEnd();
+            int pos = lexer.getTokenStart();
+            while (true) {
+                while (pos < end && !isWordStart(text.charAt(pos))) pos++;
+                if (pos >= end) break;
+
+                int start = pos++;
+                while (pos < end && isWordPart(text.charAt(pos))) pos++;
+
+                for (String word : text.substring(start, pos).split("_+")) {
+                    if (word.isEmpty()) continue;
+                    Integer count = words.get(word);
+                    words.put(word, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Lines with todo items found by matching the pattern in each token, as the todo indexer does
+     */
+    protected static TreeSet<Integer> getTodoLines(Lexer lexer, String text) {
+        TreeSet<Integer> lines = new TreeSet<Integer>();
+        int line = 0;
+        int lineOffset = 0;
+        for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null; lexer.advance()) {
+            Matcher matcher = TODO_PATTERN.matcher(text.substring(lexer.getTokenStart(), lexer.getTokenEnd()));
+            while (matcher.find()) {
+                int offset = lexer.getTokenStart() + matcher.start();
+                for (; lineOffset < offset; lineOffset++) {
+                    if (text.charAt(lineOffset) == '\n') line++;
+                }
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void test_fullLexerTokens() {
+        // the comparisons are only meaningful when the full lexer has the text lexed by pegdown
+        if (text.trim().isEmpty()) return;
+
+        MultiMarkdownLexer lexer = newFullLexer();
+        boolean lexed = false;
+        for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null && !lexed; lexer.advance()) {
+            lexed = lexer.getTokenType() != MultiMarkdownTypes.NONE;
+        }
+        assertTrue(fileName, lexed);
+    }
+
+    @Test
+    public void test_wordOccurrences() {
+        assertEquals(fileName, getWords(newFullLexer(), text), getWords(newIndexLexer(), text));
+    }
+
+    @Test
+    public void test_todoOccurrences() {
+        // todo items in every kind of element
+        String todoText = text.replaceAll("\\b([Tt])he\\b", "$1odo");
+        assertEquals(fileName, getTodoLines(newFullLexer(), todoText), getTodoLines(newIndexLexer(), todoText));
+    }
+
+    @Test
+    public void test_tokensCoverText() {
+        MultiMarkdownIndexLexer lexer = newIndexLexer();
+        int offset = 0;
+        for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null; lexer.advance()) {
+            assertEquals(fileName + " token start", offset, lexer.getTokenStart());
+            offset = lexer.getTokenEnd();
+        }
+        assertEquals(fileName + " end", text.length(), offset);
+    }
+
+    @Test
+    public void test_indexingTime() {
+        long fullTime = 0;
+        long indexTime = 0;
+
+        for (int i = 0; i < TIMING_RUNS; i++) {
+            // a re-index lexes every file once, so nothing is cached
+            MultiMarkdownLexParserManager.getParseCache().clear();
+            long start = System.nanoTime();
+            lexAll(newFullLexer());
+            fullTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            lexAll(newIndexLexer());
+            indexTime += System.nanoTime() - start;
+        }
+
+        logger.info(String.format("%s: full lexer %.2fms, index lexer %.2fms", fileName, fullTime / TIMING_RUNS / 1e6, indexTime / TIMING_RUNS / 1e6));
+    }
+
+    protected void lexAll(Lexer lexer) {
+        for (lexer.start(text, 0, text.length(), 0); lexer.getTokenType() != null; lexer.advance()) ;
+    }
+}
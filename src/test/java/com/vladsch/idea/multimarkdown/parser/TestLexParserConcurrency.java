@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+import org.pegdown.ast.RootNode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Lexes many files on several threads at once and compares the tokens to single threaded runs
+ */
+public class TestLexParserConcurrency {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 3;
+    // the big performance files only slow the test down without adding constructs
+    private static final int MAX_LENGTH = 32 * 1024;
+
+    protected static String lex(String text, int pegdownExtensions) {
+        RootNode rootNode = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+        MultiMarkdownLexerTokens tokens = new MultiMarkdownLexParser().parseMarkdown(rootNode, text.length(), pegdownExtensions);
+
+        StringBuilder sb = new StringBuilder();
+        if (tokens != null) {
+            for (int i = 0; i < tokens.size(); i++) {
+                sb.append(tokens.getStart(i)).append('-').append(tokens.getEnd(i)).append(' ').append(tokens.getElementType(i)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_parallelSameAsSequential() throws Exception {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> texts = new ArrayList<String>();
+        final ArrayList<Integer> extensions = new ArrayList<Integer>();
+        final ArrayList<String> expected = new ArrayList<String>();
+
+        for (File file : ParserTestData.getAllFiles(false)) {
+            String text = ParserTestData.getText(file);
+            if (text.length() > MAX_LENGTH) continue;
+
+            for (int pegdownExtensions : ParserTestData.EXTENSION_SETS) {
+                names.add(file.getName() + " extensions 0x" + Integer.toHexString(pegdownExtensions));
+                texts.add(text);
+                extensions.add(pegdownExtensions);
+                expected.add(lex(text, pegdownExtensions));
+            }
+        }
+
+        ArrayList<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            tasks.add(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    ArrayList<Integer> order = new ArrayList<Integer>();
+                    for (int i = 0; i < texts.size(); i++) order.add(i);
+
+                    ArrayList<String> failures = new ArrayList<String>();
+                    Random random = new Random(seed);
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Collections.shuffle(order, random);
+                        for (int i : order) {
+                            if (!expected.get(i).equals(lex(texts.get(i), extensions.get(i)))) failures.add(names.get(i));
+                        }
+                    }
+                    return failures;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            ArrayList<String> failures = new ArrayList<String>();
+            for (Future<List<String>> future : executor.invokeAll(tasks)) {
+                failures.addAll(future.get());
+            }
+            assertEquals("Tokens differ from single threaded run", "[]", failures.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.lexer.LexerPosition;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Restarting the lexer at any token, by restore() or by start() at a block start, must continue with the same
+ * tokens as lexing the whole text
+ */
+@RunWith(value = Parameterized.class)
+public class TestLexerSeek {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(TestLexerSeek.class);
+
+    private static final int RESTARTS = 2000;
+
+    private final String fileName;
+    private final String text;
+
+    public TestLexerSeek(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getPerformanceFiles(false));
+    }
+
+    static String tokenText(MultiMarkdownLexer lexer) {
+        return lexer.getTokenStart() + "-" + lexer.getTokenEnd() + " " + lexer.getTokenType() + " " + lexer.getState();
+    }
+
+    protected MultiMarkdownLexer newLexer() {
+        return new MultiMarkdownLexer(ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT);
+    }
+
+    @Test
+    public void test_randomRestarts() {
+        MultiMarkdownLexer lexer = newLexer();
+        lexer.start(text, 0, text.length(), MultiMarkdownLexer.BLOCK_START_STATE);
+
+        ArrayList<String> tokens = new ArrayList<String>();
+        ArrayList<LexerPosition> positions = new ArrayList<LexerPosition>();
+        int tokenCount = 0;
+
+        while (lexer.getTokenType() != null) {
+            tokens.add(tokenText(lexer));
+            positions.add(lexer.getCurrentPosition());
+            lexer.advance();
+            tokenCount++;
+        }
+        if (tokenCount == 0) return;
+
+        Random random = new Random(42);
+        MultiMarkdownLexer restarted = newLexer();
+        restarted.start(text, 0, text.length(), MultiMarkdownLexer.BLOCK_START_STATE);
+
+        long restoreTime = 0;
+        long startTime = 0;
+        int starts = 0;
+
+        for (int i = 0; i < RESTARTS; i++) {
+            // position taken on a token is the position after it
+            int index = random.nextInt(tokenCount);
+            long time = System.nanoTime();
+            restarted.restore(positions.get(index));
+            restoreTime += System.nanoTime() - time;
+
+            if (index + 1 < tokenCount) {
+                assertEquals(fileName + " restore after token " + index, tokens.get(index + 1), tokenText(restarted));
+                restarted.advance();
+                if (index + 2 < tokenCount) assertEquals(fileName + " advance after restore " + index, tokens.get(index + 2), tokenText(restarted));
+            } else {
+                assertEquals(fileName + " restore after last token", null, restarted.getTokenType());
+            }
+
+            String token = tokens.get(index);
+            if (token.endsWith(" " + MultiMarkdownLexer.BLOCK_START_STATE)) {
+                int offset = Integer.parseInt(token.substring(0, token.indexOf('-')));
+                time = System.nanoTime();
+                restarted.start(text, offset, text.length(), MultiMarkdownLexer.BLOCK_START_STATE);
+                startTime += System.nanoTime() - time;
+                starts++;
+                assertEquals(fileName + " start at token " + index, token, tokenText(restarted));
+            }
+        }
+
+        logger.info(fileName + ": " + tokenCount + " tokens, restore " + restoreTime / RESTARTS + "ns, start " + (starts == 0 ? 0 : startTime / starts) + "ns");
+    }
+}
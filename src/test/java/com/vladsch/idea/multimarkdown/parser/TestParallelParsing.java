@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.pegdown.LinkRenderer;
+import org.pegdown.ToHtmlSerializer;
+import org.pegdown.ast.MailLinkNode;
+import org.pegdown.ast.RootNode;
+
+import java.io.File;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parallel parsing of large documents must give the same root node as parsing them in one piece
+ */
+@RunWith(value = Parameterized.class)
+public class TestParallelParsing {
+    // split as if there were this many cores, whatever the machine running the tests has
+    private static final int PARALLELISM = 4;
+
+    // pegdown obfuscates mail links at random, the html of two parses only compares equal without it
+    private static final LinkRenderer LINK_RENDERER = new LinkRenderer() {
+        @Override
+        public Rendering render(MailLinkNode node) {
+            return new Rendering("mailto:" + node.getText(), node.getText());
+        }
+    };
+
+    private final String fileName;
+    private final String text;
+
+    public TestParallelParsing(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getPerformanceFiles(false));
+    }
+
+    protected static String tokensText(RootNode rootNode, int length, int pegdownExtensions) {
+        StringBuilder sb = new StringBuilder();
+        MultiMarkdownLexerTokens tokens = new MultiMarkdownLexParser().parseMarkdown(rootNode, length, pegdownExtensions);
+        if (tokens != null) {
+            for (int i = 0; i < tokens.size(); i++) {
+                sb.append(tokens.getStart(i)).append('-').append(tokens.getEnd(i)).append(' ').append(tokens.getElementType(i)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_sameAsSequential() {
+        for (int pegdownExtensions : ParserTestData.EXTENSION_SETS) {
+            RootNode parallel = MultiMarkdownParallelParser.parse(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, PARALLELISM, new String[1]);
+            if (text.length() < MultiMarkdownParallelParser.MIN_PARALLEL_LENGTH) {
+                assertNull(fileName, parallel);
+                continue;
+            }
+
+            // the performance files are what parallel parsing is for, they have to be split
+            assertNotNull(fileName, parallel);
+
+            RootNode sequential = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+            assertNotNull(fileName, sequential);
+
+            String message = fileName + " extensions 0x" + Integer.toHexString(pegdownExtensions);
+            assertEquals(message, new ToHtmlSerializer(LINK_RENDERER).toHtml(sequential), new ToHtmlSerializer(LINK_RENDERER).toHtml(parallel));
+            assertEquals(message, sequential.getReferences().size(), parallel.getReferences().size());
+            assertEquals(message, sequential.getAbbreviations().size(), parallel.getAbbreviations().size());
+            assertEquals(message, sequential.getFootnotes().size(), parallel.getFootnotes().size());
+            assertEquals(message, tokensText(sequential, text.length(), pegdownExtensions), tokensText(parallel, text.length(), pegdownExtensions));
+        }
+    }
+
+    @Test
+    public void test_splitsLargeFiles() {
+        MultiMarkdownBlocks blocks = MultiMarkdownBlocks.of(text, ParserTestData.DEFAULT_EXTENSIONS);
+        int[] chunkStarts = MultiMarkdownParallelParser.getChunkStarts(blocks, PARALLELISM);
+
+        assertEquals(fileName, false, blocks.isAmbiguous());
+        assertEquals(fileName, text.length() >= MultiMarkdownParallelParser.MIN_PARALLEL_LENGTH, chunkStarts != null);
+        if (chunkStarts != null) {
+            for (int chunkStart : chunkStarts) {
+                assertEquals(fileName, true, blocks.isBlockStart(chunkStart));
+            }
+        }
+
+        int chunkedFiles = 0;
+        for (File file : ParserTestData.getPerformanceFiles(false)) {
+            if (MultiMarkdownParallelParser.getChunkStarts(MultiMarkdownBlocks.of(ParserTestData.getText(file), ParserTestData.DEFAULT_EXTENSIONS), PARALLELISM) != null) chunkedFiles++;
+        }
+        assertTrue(chunkedFiles > 0);
+    }
+}
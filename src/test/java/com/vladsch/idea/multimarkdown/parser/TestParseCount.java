@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.pegdown.Extensions;
+import org.pegdown.PegDownProcessor;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts document parses per preview update so that a document version is never parsed more than once
+ */
+@RunWith(value = Parameterized.class)
+public class TestParseCount {
+    private static final Logger logger = org.apache.log4j.Logger.getLogger(TestParseCount.class);
+
+    private final String fileName;
+    private final String text;
+
+    public TestParseCount(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getPerformanceFiles(true));
+    }
+
+    @Before
+    public void setUp() {
+        MultiMarkdownLexParserManager.getParseCache().clear();
+    }
+
+    // the preview's update of its html content
+    protected long previewUpdate(Document document) {
+        long parseCount = MultiMarkdownLexParserManager.getDocumentParseCount();
+        MultiMarkdownLexParserManager.parseMarkdownRoot(document, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT);
+        return MultiMarkdownLexParserManager.getDocumentParseCount() - parseCount;
+    }
+
+    protected long lexerStart(CharSequence buffer) {
+        long parseCount = MultiMarkdownLexParserManager.getDocumentParseCount();
+        MultiMarkdownLexParserManager.getParsingInfo(null, buffer, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+        return MultiMarkdownLexParserManager.getDocumentParseCount() - parseCount;
+    }
+
+    @Test
+    public void test_previewUpdate() {
+        assertEquals(fileName, 1, previewUpdate(new DocumentImpl(text)));
+    }
+
+    @Test
+    public void test_repeatedPreviewUpdate() {
+        Document document = new DocumentImpl(text);
+        assertEquals(fileName, 1, previewUpdate(document));
+        assertEquals(fileName, 0, previewUpdate(document));
+        assertEquals(fileName, 0, previewUpdate(new DocumentImpl(new StringBuilder(text))));
+    }
+
+    @Test
+    public void test_backgroundParsedPreviewUpdate() {
+        // the preview's update timer has the text parsed in the background before updating
+        Document document = new DocumentImpl(text);
+        long parseCount = MultiMarkdownLexParserManager.getDocumentParseCount();
+        MultiMarkdownLexParserManager.parseSnapshot(document, document.getText(), ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT);
+        assertEquals(fileName, 1, MultiMarkdownLexParserManager.getDocumentParseCount() - parseCount);
+        assertEquals(fileName, 0, previewUpdate(document));
+    }
+
+    @Test
+    public void test_pegdownRuns() {
+        // without TOC large documents are parsed in parallel chunks, each chunk is a pegdown run of the one parse
+        int extensions = ParserTestData.DEFAULT_EXTENSIONS & ~Extensions.TOC;
+        int[] chunkStarts = text.length() < MultiMarkdownParallelParser.MIN_PARALLEL_LENGTH ? null
+                : MultiMarkdownParallelParser.getChunkStarts(MultiMarkdownBlocks.of(text, extensions), MultiMarkdownParallelParser.PARALLELISM);
+
+        long parseCount = MultiMarkdownLexParserManager.getDocumentParseCount();
+        long runCount = MultiMarkdownLexParserManager.getPegdownRunCount();
+        MultiMarkdownLexParserManager.parseMarkdownRoot(new DocumentImpl(text), extensions, ParserTestData.PARSING_TIMEOUT);
+        assertEquals(fileName, 1, MultiMarkdownLexParserManager.getDocumentParseCount() - parseCount);
+        assertEquals(fileName, chunkStarts == null ? 1 : chunkStarts.length, MultiMarkdownLexParserManager.getPegdownRunCount() - runCount);
+    }
+
+    @Test
+    public void test_lexerAfterPreviewUpdate() {
+        assertEquals(fileName, 1, previewUpdate(new DocumentImpl(text)));
+        assertEquals(fileName, 0, lexerStart(text));
+        assertEquals(fileName, 0, lexerStart(text));
+    }
+
+    @Test
+    public void test_modifiedPreviewUpdate() {
+        Document document = new DocumentImpl(text);
+        assertEquals(fileName, 1, previewUpdate(document));
+        assertEquals(fileName, 1, previewUpdate(new DocumentImpl(text + "\nmodified\n")));
+        assertEquals(fileName, 0, previewUpdate(document));
+    }
+
+    @Test
+    public void test_sameBufferNotHashed() {
+        ParserTestData.TextSequence buffer = new ParserTestData.TextSequence(text);
+        assertEquals(fileName, 1, lexerStart(buffer));
+
+        // a lexer restart on the same document text finds it in the cache without reading it again
+        long charsRead = buffer.getCharsRead();
+        assertEquals(fileName, 0, lexerStart(buffer));
+        assertEquals(fileName, charsRead, buffer.getCharsRead());
+    }
+
+    @Test
+    public void test_sameRootNode() {
+        MultiMarkdownParseCache.Entry info = MultiMarkdownLexParserManager.getParsingInfo(null, text, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT);
+        assertSame(fileName, info.getRootNode(), MultiMarkdownLexParserManager.getParsingInfo(null, text, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT).getRootNode());
+    }
+
+    @Test
+    public void test_concurrentLexers() throws Exception {
+        final int threads = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        ArrayList<Callable<MultiMarkdownLexerTokens>> lexers = new ArrayList<Callable<MultiMarkdownLexerTokens>>();
+        for (int i = 0; i < threads; i++) {
+            lexers.add(new Callable<MultiMarkdownLexerTokens>() {
+                @Override
+                public MultiMarkdownLexerTokens call() throws Exception {
+                    barrier.await();
+                    return MultiMarkdownLexParserManager.getLexerParsingInfo(text, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+                }
+            });
+        }
+
+        long parseCount = MultiMarkdownLexParserManager.getDocumentParseCount();
+        long savedCount = MultiMarkdownLexParserManager.getSavedParseCount();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            MultiMarkdownLexerTokens tokens = null;
+            for (Future<MultiMarkdownLexerTokens> future : executor.invokeAll(lexers)) {
+                if (tokens == null) tokens = future.get();
+                assertSame(fileName, tokens, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(fileName, 1, MultiMarkdownLexParserManager.getDocumentParseCount() - parseCount);
+        assertEquals(fileName, threads - 1, MultiMarkdownLexParserManager.getSavedParseCount() - savedCount);
+    }
+
+    @Test
+    public void test_pegdownSource() {
+        char[] expected = new PegDownProcessor().prepareSource(text.toCharArray());
+        assertArrayEquals(fileName, expected, MultiMarkdownLexParserManager.getPegdownSource(text, 0, text.length()));
+        assertArrayEquals(fileName, expected, MultiMarkdownLexParserManager.getPegdownSource(new StringBuilder(text), 0, text.length()));
+
+        int start = text.length() / 3;
+        int end = text.length() - start;
+        expected = new PegDownProcessor().prepareSource(text.substring(start, end).toCharArray());
+        assertArrayEquals(fileName, expected, MultiMarkdownLexParserManager.getPegdownSource(new StringBuilder(text), start, end));
+    }
+
+    @Test
+    public void test_parseAllocation() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        long threadId = Thread.currentThread().getId();
+
+        // documents are not strings, so the old toString().toCharArray() made two copies before pegdown's own
+        CharSequence buffer = new StringBuilder(text);
+
+        long allocated = allocations.getThreadAllocatedBytes(threadId);
+        new PegDownProcessor().prepareSource(buffer.toString().toCharArray());
+        long copyBytes = allocations.getThreadAllocatedBytes(threadId) - allocated;
+
+        allocated = allocations.getThreadAllocatedBytes(threadId);
+        MultiMarkdownLexParserManager.getPegdownSource(buffer, 0, buffer.length());
+        long sourceBytes = allocations.getThreadAllocatedBytes(threadId) - allocated;
+
+        allocated = allocations.getThreadAllocatedBytes(threadId);
+        MultiMarkdownLexParserManager.getParsingInfo(null, buffer, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+        long parseBytes = allocations.getThreadAllocatedBytes(threadId) - allocated;
+
+        allocated = allocations.getThreadAllocatedBytes(threadId);
+        MultiMarkdownLexParserManager.getParsingInfo(null, buffer, ParserTestData.DEFAULT_EXTENSIONS, ParserTestData.PARSING_TIMEOUT).getLexerTokens();
+        long cachedBytes = allocations.getThreadAllocatedBytes(threadId) - allocated;
+
+        logger.info(String.format("%s: %d chars, source copy %dKB (was %dKB), parse and lex %dKB, cached %dB",
+                fileName, text.length(), sourceBytes / 1024, copyBytes / 1024, parseBytes / 1024, cachedBytes));
+
+        // one char array of the text plus its header
+        assertTrue(fileName + ": " + sourceBytes, sourceBytes <= (text.length() + 2) * 2 + 64);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pegdown.Extensions;
+import org.pegdown.PegDownProcessor;
+import org.pegdown.ast.HeaderNode;
+import org.pegdown.ast.RootNode;
+import org.pegdown.ast.TocNode;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Pooled processors must not carry anything from one parse into the next
+ */
+public class TestProcessorPool {
+    private static final String TEXT = "# Heading 1\n\ntext\n\n## Heading 2\n\n[TOC]\n";
+
+    @Before
+    public void setUp() {
+        MultiMarkdownProcessorPool.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static List<HeaderNode> getHeaders(PegDownProcessor processor) throws IllegalAccessException {
+        return (List<HeaderNode>) MultiMarkdownProcessorPool.parserHeaders.get(processor.parser);
+    }
+
+    @Test
+    public void test_headersClearedOnRelease() throws Exception {
+        int pegdownExtensions = ParserTestData.EXTENSION_SETS[0] & ~Extensions.TOC;
+        PegDownProcessor first = null;
+
+        for (int i = 0; i < 5; i++) {
+            PegDownProcessor processor = MultiMarkdownProcessorPool.acquire(pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+            if (first == null) first = processor;
+            else assertSame(first, processor);
+
+            processor.parser.parse(MultiMarkdownLexParserManager.getPegdownSource(TEXT, 0, TEXT.length()));
+            MultiMarkdownProcessorPool.release(processor, pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+            assertEquals(0, getHeaders(processor).size());
+        }
+    }
+
+    @Test
+    public void test_tocProcessorsNotReused() throws Exception {
+        int pegdownExtensions = ParserTestData.EXTENSION_SETS[0] | Extensions.TOC;
+
+        PegDownProcessor processor = MultiMarkdownProcessorPool.acquire(pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+        RootNode rootNode = processor.parser.parse(MultiMarkdownLexParserManager.getPegdownSource(TEXT, 0, TEXT.length()));
+        MultiMarkdownProcessorPool.release(processor, pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+
+        TocNode tocNode = (TocNode) rootNode.getChildren().get(rootNode.getChildren().size() - 1);
+        assertEquals(2, tocNode.getHeaders().size());
+
+        PegDownProcessor next = MultiMarkdownProcessorPool.acquire(pegdownExtensions, ParserTestData.PARSING_TIMEOUT);
+        assertNotSame(processor, next);
+        next.parser.parse(MultiMarkdownLexParserManager.getPegdownSource(TEXT, 0, TEXT.length()));
+        assertEquals(2, tocNode.getHeaders().size());
+    }
+}
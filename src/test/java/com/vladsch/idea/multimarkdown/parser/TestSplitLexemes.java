@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.parser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.pegdown.ast.RootNode;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The single pass lexeme splitter must give the same lexemes as the recursive splitter it replaced
+ */
+@RunWith(value = Parameterized.class)
+public class TestSplitLexemes {
+    private final String fileName;
+    private final String text;
+
+    public TestSplitLexemes(String fileName, File file) {
+        this.fileName = fileName;
+        this.text = ParserTestData.getText(file);
+    }
+
+    @Parameterized.Parameters(name = "{index}: {0}")
+    public static Collection<Object[]> data() {
+        return ParserTestData.asParameters(ParserTestData.getAllFiles(false));
+    }
+
+    /**
+     * The previous recursive splitter, kept as the reference for the single pass one
+     */
+    static class ReferenceLexParser extends MultiMarkdownLexParser {
+        @Override
+        public MultiMarkdownLexerTokens splitLexerTokens(int[] tokens, int count) {
+            MultiMarkdownLexerTokens lexerTokens = super.splitLexerTokens(tokens, count);
+            assertEquals(tokensText(referenceSplitLexerTokens(tokens, count)), tokensText(lexerTokens));
+            return lexerTokens;
+        }
+    }
+
+    static MultiMarkdownLexerTokens referenceSplitLexerTokens(int[] tokens, int count) {
+        MultiMarkdownLexerTokens.Builder lexemes = new MultiMarkdownLexerTokens.Builder(count);
+        if (count > 0) referenceSplitLexemes(lexemes, tokens, count, 0, Integer.MAX_VALUE);
+        return lexemes.build();
+    }
+
+    static int referenceSplitLexemes(MultiMarkdownLexerTokens.Builder lexemes, int[] tokens, int count, int start, int rangeEnd) {
+        int token = start * 3;
+        int rangeStart = tokens[token];
+        int rangeEndOffset = tokens[token + 1];
+
+        if (rangeEndOffset <= rangeEnd) {
+            start++;
+            for (; start < count && tokens[start * 3 + 1] <= rangeEnd; start++) {
+                int start1 = tokens[start * 3];
+                int end1 = tokens[start * 3 + 1];
+                boolean compareBefore = rangeStart < start1 || rangeStart == start1 && rangeEndOffset >= end1;
+
+                if (compareBefore && (end1 <= rangeStart || start1 >= rangeEndOffset)) {
+                    lexemes.add(rangeStart, rangeEndOffset, tokens[token + 2]);
+                    token = start * 3;
+                    rangeStart = start1;
+                    rangeEndOffset = end1;
+                } else if (!(rangeEndOffset >= end1 && rangeStart <= start1)) {
+                    lexemes.add(tokens[token], tokens[token + 1], tokens[token + 2]);
+                    token = start * 3;
+                    rangeStart = start1;
+                    rangeEndOffset = end1;
+                } else if (!(end1 <= rangeStart || start1 >= rangeEndOffset) && !(rangeEndOffset >= end1 && rangeStart <= start1)) {
+                    if (rangeStart >= start1) {
+                        token = start * 3;
+                        rangeStart = start1;
+                        rangeEndOffset = end1;
+                    } else {
+                        lexemes.add(rangeStart, start1, tokens[token + 2]);
+
+                        rangeStart = end1;
+                        if (rangeStart >= rangeEndOffset) {
+                            token = start * 3;
+                            rangeStart = start1;
+                            rangeEndOffset = end1;
+                        } else {
+                            start = referenceSplitLexemes(lexemes, tokens, count, start, rangeStart);
+                        }
+                    }
+                }
+            }
+
+            if (rangeStart < rangeEndOffset) {
+                lexemes.add(rangeStart, rangeEndOffset, tokens[token + 2]);
+            }
+        }
+        return start;
+    }
+
+    static String tokensText(MultiMarkdownLexerTokens tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            sb.append(tokens.getStart(i)).append('-').append(tokens.getEnd(i)).append(' ').append(tokens.getTypeIndex(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_sameAsReference() {
+        for (int pegdownExtensions : ParserTestData.EXTENSION_SETS) {
+            RootNode rootNode = MultiMarkdownLexParserManager.runPegdown(text, pegdownExtensions, ParserTestData.PARSING_TIMEOUT, null);
+            if (rootNode == null) continue;
+
+            new ReferenceLexParser().parseMarkdown(rootNode, text.length(), pegdownExtensions);
+        }
+    }
+
+    @Test
+    public void test_randomTokens() {
+        // random nested and overlapping ranges, including empty ones, sorted the way the lex parser sorts them
+        Random random = new Random(fileName.hashCode());
+        for (int round = 0; round < 20; round++) {
+            int count = 1 + random.nextInt(200);
+            int[] raw = new int[count * MultiMarkdownLexParser.TOKEN_STRIDE];
+            for (int i = 0; i < count; i++) {
+                int start = random.nextInt(300);
+                int end = start + random.nextInt(round % 2 == 0 ? 40 : 5);
+                raw[i * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_START] = start;
+                raw[i * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_END] = end;
+                raw[i * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_NESTING] = random.nextInt(4);
+                raw[i * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_TYPE] = i;
+            }
+
+            int[] order = MultiMarkdownLexParser.sortTokens(raw, count);
+            int[] tokens = new int[count * 3];
+            for (int i = 0; i < count; i++) {
+                tokens[i * 3] = raw[order[i] * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_START];
+                tokens[i * 3 + 1] = raw[order[i] * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_END];
+                tokens[i * 3 + 2] = raw[order[i] * MultiMarkdownLexParser.TOKEN_STRIDE + MultiMarkdownLexParser.TOKEN_TYPE];
+            }
+
+            assertEquals(fileName + " round " + round, tokensText(referenceSplitLexerTokens(tokens, count)),
+                    tokensText(new MultiMarkdownLexParser().splitLexerTokens(tokens, count)));
+        }
+    }
+}
@@ -22,12 +22,23 @@
 package com.vladsch.idea.multimarkdown.util
 
 import com.vladsch.idea.multimarkdown.TestUtils.*
+import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.util.*
 
 class TestLinkMatcher_MultiSub {
     val projectResolver = MarkdownTestData
 
+    @Test fun test_matcherCache() {
+        val linkInfo = FileRef("/Users/vlad/src/MarkdownTest/MarkdownTest.wiki/Multiple-Match.md")
+        val linkRefMatcher = GitHubLinkMatcher.getMatcher(projectResolver, LinkRef(linkInfo, linkInfo.fileNameNoExt, null, null), false)
+
+        assertTrue(linkRefMatcher === GitHubLinkMatcher.getMatcher(projectResolver, LinkRef(linkInfo, linkInfo.fileNameNoExt, null, null), false))
+        assertTrue(linkRefMatcher.patternRegex(true) === linkRefMatcher.patternRegex(true))
+        assertTrue(linkRefMatcher !== GitHubLinkMatcher.getMatcher(projectResolver, WikiLinkRef(linkInfo, linkInfo.fileNameNoExt, null, null), false))
+        assertTrue(linkRefMatcher !== GitHubLinkMatcher.getMatcher(projectResolver, LinkRef(linkInfo, linkInfo.fileNameNoExt, "anchor", null), false))
+    }
+
     @Test fun test_linkRefMatcher_SubDirMultiWiki() {
         val linkInfo = FileRef("/Users/vlad/src/MarkdownTest/MarkdownTest.wiki/Multiple-Match.md")
         val linkRef = LinkRef(linkInfo, linkInfo.fileNameNoExt, null, null)
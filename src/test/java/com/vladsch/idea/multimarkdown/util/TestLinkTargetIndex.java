@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015-2015 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vladsch.idea.multimarkdown.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLinkTargetIndex {
+    @Test
+    public void test_fileNameKey() {
+        assertEquals("normal-file", LinkTargetIndex.fileNameKey("normal-file.md"));
+        assertEquals("normal-file", LinkTargetIndex.fileNameKey("Normal File"));
+        assertEquals("normal-file", LinkTargetIndex.fileNameKey("/Users/vlad/src/MarkdownTest/MarkdownTest.wiki/Normal-File.markdown"));
+        assertEquals("test", LinkTargetIndex.fileNameKey("Test.kt.md"));
+        assertEquals("file", LinkTargetIndex.fileNameKey("file#anchor.md"));
+        assertEquals("", LinkTargetIndex.fileNameKey(".gitignore"));
+        assertEquals("", LinkTargetIndex.fileNameKey("sub/"));
+    }
+
+    @Test
+    public void test_linkKeysMatchFileKeys() {
+        // a link's file name text is a prefix of the names it matches, up to an anchor or extension
+        assertEquals(LinkTargetIndex.fileNameKey("Normal File"), LinkTargetIndex.fileNameKey("normal-file#anchor.md"));
+        assertEquals(LinkTargetIndex.fileNameKey("Test.kt"), LinkTargetIndex.fileNameKey("Test.kt.md"));
+        assertEquals(LinkTargetIndex.fileNameKey("../sub/Image"), LinkTargetIndex.fileNameKey("image.png"));
+    }
+}
@@ -32,7 +32,8 @@ import org.junit.runners.Suite;
         TestLinkMatcher_MultiSub.class,
         TestLinkResolver_Basic_wiki_Home.class,
         TestLinkResolver_Basic_wiki_normal_file.class,
-        TestLinkResolver_Completion.class
+        TestLinkResolver_Completion.class,
+        TestLinkTargetIndex.class
 })
 public class UtilTestSuite {
 }